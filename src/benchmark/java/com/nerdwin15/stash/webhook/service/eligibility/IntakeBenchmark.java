@@ -0,0 +1,158 @@
+package com.nerdwin15.stash.webhook.service.eligibility;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.atlassian.stash.repository.Repository;
+import com.nerdwin15.stash.webhook.service.eligibility.EventRingBuffer.WaitStrategy;
+
+/**
+ * Compares the sustained rate at which events can be handed off the event
+ * threads by the {@link EligibilityStage} ring buffer with submitting a task
+ * per event to a cached thread pool.  Several threads publish at once, like
+ * Stash's event threads during a push storm.  Run with {@code -prof gc} to
+ * compare allocation rates.
+ *
+ * Both intakes hold the same number of events, and a publisher waits for room
+ * rather than spilling onto the stage's overflow queue, so the rates measure
+ * events handed to and taken by the consumers.  How often the ring was found full is reported separately as
+ * the {@code fullRing} counter.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class IntakeBenchmark {
+
+  private static final Object EVENT = new Object();
+  private static final String USER = "pinky";
+  private static final int CAPACITY = 1024;
+
+  /**
+   * The ring buffer intake, with each wait strategy.
+   */
+  @State(Scope.Benchmark)
+  public static class Ring {
+
+    @Param({ "BLOCKING", "YIELDING", "BUSY_SPIN" })
+    public String waitStrategy;
+
+    private final AtomicLong evaluated = new AtomicLong();
+    private EligibilityStage stage;
+    private final EligibilityStage.Handler handler =
+        new EligibilityStage.Handler() {
+      @Override
+      public void evaluate(Object event, Repository repository, String user) {
+        evaluated.incrementAndGet();
+      }
+    };
+
+    @Setup
+    public void setUp() {
+      stage = new EligibilityStage(2, CAPACITY, 1,
+          WaitStrategy.valueOf(waitStrategy), false);
+    }
+
+    @TearDown
+    public void tearDown() {
+      stage.destroy();
+    }
+  }
+
+  /**
+   * Counts, per publishing thread, the attempts that found the ring full.
+   */
+  @State(Scope.Thread)
+  @AuxCounters
+  public static class Overflow {
+
+    public long fullRing;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      fullRing = 0;
+    }
+  }
+
+  /**
+   * A cached thread pool, given a new task for every event.  The number of
+   * tasks waiting or running is capped like the ring, as the pool's own queue
+   * would otherwise grow without bound.
+   */
+  @State(Scope.Benchmark)
+  public static class Pool {
+
+    private final AtomicLong evaluated = new AtomicLong();
+    private final Semaphore capacity = new Semaphore(CAPACITY);
+    private ExecutorService executor;
+
+    @Setup
+    public void setUp() {
+      executor = Executors.newCachedThreadPool();
+    }
+
+    @TearDown
+    public void tearDown() {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Publish an event to the ring buffer, waiting for a free slot.
+   * @param ring The ring buffer intake
+   * @param overflow Counts the attempts that found the ring full
+   */
+  @Benchmark
+  public void ringBuffer(Ring ring, Overflow overflow) {
+    while (ring.stage.getQueuedCount() >= CAPACITY) {
+      overflow.fullRing++;
+      Thread.yield();
+    }
+    ring.stage.submit(ring.handler, EVENT, null, USER);
+  }
+
+  /**
+   * Submit a task for an event to the cached thread pool.
+   * @param pool The thread pool
+   * @return The future of the task
+   * @throws InterruptedException
+   */
+  @Benchmark
+  public Future<Object> cachedThreadPool(final Pool pool)
+      throws InterruptedException {
+    pool.capacity.acquire();
+    return pool.executor.submit(new Callable<Object>() {
+      @Override
+      public Object call() {
+        try {
+          return pool.evaluated.incrementAndGet();
+        } finally {
+          pool.capacity.release();
+        }
+      }
+    });
+  }
+}
@@ -1,5 +1,8 @@
 package com.nerdwin15.stash.webhook;
 
+import java.util.Collection;
+import java.util.Collections;
+
 
 /**
  * A model object that wraps the result from a notification attempt.
@@ -11,6 +14,9 @@ public class NotificationResult {
   private final boolean successful;
   private final String url;
   private final String message;
+  private final Collection<String> includedRefs;
+  private final Collection<String> filteredRefs;
+  private final boolean retryable;
   
   /**
    * Create a new result
@@ -20,9 +26,47 @@ public class NotificationResult {
    * Jenkins
    */
   public NotificationResult(boolean successful, String url, String message) {
+    this(successful, url, message, Collections.<String>emptyList(),
+        Collections.<String>emptyList());
+  }
+  
+  /**
+   * Create a new result for a notification covering several refs
+   * @param successful Was the notification successful?
+   * @param url The URL that was used for notification
+   * @param message Either an error message or the body of the response from
+   * Jenkins
+   * @param includedRefs The refs that were included in the notification
+   * @param filteredRefs The refs that were filtered out of the notification
+   */
+  public NotificationResult(boolean successful, String url, String message,
+      Collection<String> includedRefs, Collection<String> filteredRefs) {
+    this(successful, url, message, includedRefs, filteredRefs, false);
+  }
+
+  private NotificationResult(boolean successful, String url, String message,
+      Collection<String> includedRefs, Collection<String> filteredRefs,
+      boolean retryable) {
     this.successful = successful;
     this.url = url;
     this.message = message;
+    this.includedRefs = includedRefs;
+    this.filteredRefs = filteredRefs;
+    this.retryable = retryable;
+  }
+
+  /**
+   * Create a result for a failure that may go away if the notification is
+   * retried, such as a connection error, a timeout or a 5xx response
+   * @param url The URL that was used for notification
+   * @param message The error message
+   * @return The failed result
+   */
+  public static NotificationResult retryableFailure(String url,
+      String message) {
+    return new NotificationResult(false, url, message,
+        Collections.<String>emptyList(), Collections.<String>emptyList(),
+        true);
   }
   
   /**
@@ -49,13 +93,38 @@ public class NotificationResult {
     return url;
   }
   
+  /**
+   * Gets the {@code retryable} property.
+   * @return Could the notification succeed if it was retried?
+   */
+  public boolean isRetryable() {
+    return retryable;
+  }
+  
+  /**
+   * Gets the {@code includedRefs} property.
+   * @return The refs that were included in the notification
+   */
+  public Collection<String> getIncludedRefs() {
+    return includedRefs;
+  }
+  
+  /**
+   * Gets the {@code filteredRefs} property.
+   * @return The refs that were filtered out of the notification
+   */
+  public Collection<String> getFilteredRefs() {
+    return filteredRefs;
+  }
+  
   /**
    * {@inheritDoc}
    */
   @Override
   public String toString() {
     return "Result: successful? " + successful + "; url: " + url 
-        + "; message: " + message;
+        + "; message: " + message + "; included refs: " + includedRefs
+        + "; filtered refs: " + filteredRefs;
   }
   
 }
@@ -1,32 +1,56 @@
 package com.nerdwin15.stash.webhook;
 
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
-import com.atlassian.util.concurrent.ThreadFactories;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.atlassian.stash.hook.repository.RepositoryHook;
 import com.atlassian.stash.repository.Repository;
-import com.atlassian.stash.setting.Settings;
-import com.google.common.base.Charsets;
-import com.google.common.io.CharStreams;
+import com.atlassian.util.concurrent.ThreadFactories;
+import com.google.common.base.Function;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import com.nerdwin15.stash.webhook.service.HttpClientFactory;
 import com.nerdwin15.stash.webhook.service.SettingsService;
+import com.nerdwin15.stash.webhook.service.SettingsSnapshot;
+import com.nerdwin15.stash.webhook.service.delivery.AsyncNotificationEngine;
+import com.nerdwin15.stash.webhook.service.delivery.CircuitBreaker;
+import com.nerdwin15.stash.webhook.service.delivery.FairNotificationScheduler;
+import com.nerdwin15.stash.webhook.service.delivery.NotificationCoalescer;
+import com.nerdwin15.stash.webhook.service.delivery.NotificationExecutor;
+import com.nerdwin15.stash.webhook.service.delivery.NotificationOutbox;
+import com.nerdwin15.stash.webhook.service.delivery.ResponseReader;
+import com.nerdwin15.stash.webhook.service.delivery.RetryPolicy;
 import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
 
 /**
  * Service object that does the actual notification.
@@ -34,7 +58,7 @@ import org.springframework.beans.factory.DisposableBean;
  * @author Michael Irwin (mikesir87)
  * @author Peter Leibiger (kuhnroyal)
  */
-public class Notifier implements DisposableBean {
+public class Notifier implements InitializingBean, DisposableBean {
 
   /**
    * Key for the repository hook
@@ -77,46 +101,422 @@ public class Notifier implements DisposableBean {
    */
   public static final String BRANCH_OPTIONS_BRANCHES = "branchOptionsBranches";
 
+  /**
+   * Field name for the changed paths that trigger a build
+   */
+  public static final String PATH_INCLUDES = "pathIncludes";
+
+  /**
+   * Field name for the changed paths that never trigger a build
+   */
+  public static final String PATH_EXCLUDES = "pathExcludes";
+
+  /**
+   * Field name for the commit message marker that skips a build
+   */
+  public static final String SKIP_MARKER = "skipMarker";
+
+  /**
+   * Field name for the notify all branches (multi-ref) property
+   */
+  public static final String NOTIFY_ALL_BRANCHES = "notifyAllBranches";
+
   private static final Logger LOGGER = 
       LoggerFactory.getLogger(Notifier.class);
+  private static final String NOTIFY_PATH = "/git/notifyCommit";
   private static final String URL_SHORT = "%s/git/notifyCommit?url=%s";
   private static final String URL = "%s/git/notifyCommit?url=%s&branches=%s&sha1=%s";
   private static final String URL_NO_HASH = "%s/git/notifyCommit?url=%s&branches=%s";
 
+  private static final int POOL_SIZE =
+      Integer.getInteger("jenkins.webhook.executor.poolSize", 4);
+  private static final long COALESCE_QUIET_PERIOD_MS =
+      Long.getLong("jenkins.webhook.coalesce.quietPeriodMs", 0L);
+  private static final long COALESCE_MAX_DELAY_MS =
+      Long.getLong("jenkins.webhook.coalesce.maxDelayMs", 5000L);
+  private static final String ENGINE =
+      System.getProperty("jenkins.webhook.engine", "blocking");
+  private static final int ASYNC_IO_THREADS =
+      Integer.getInteger("jenkins.webhook.async.ioThreads", 2);
+  private static final int ASYNC_MAX_TOTAL =
+      Integer.getInteger("jenkins.webhook.async.maxTotal", 2000);
+  private static final int ASYNC_MAX_PER_ROUTE =
+      Integer.getInteger("jenkins.webhook.async.maxPerRoute", 1000);
+  private static final int RETRY_MAX_ATTEMPTS =
+      Integer.getInteger("jenkins.webhook.retry.maxAttempts", 3);
+  private static final long RETRY_BASE_DELAY_MS =
+      Long.getLong("jenkins.webhook.retry.baseDelayMs", 1000L);
+  private static final long RETRY_MAX_DELAY_MS =
+      Long.getLong("jenkins.webhook.retry.maxDelayMs", 30000L);
+  private static final String FAIR_MAX_IN_FLIGHT =
+      "jenkins.webhook.fair.maxInFlight";
+  private static final int FAIR_QUEUE_SIZE =
+      Integer.getInteger("jenkins.webhook.fair.queueSize", 1000);
+  private static final int FAIR_DEFAULT_WEIGHT =
+      Integer.getInteger("jenkins.webhook.fair.defaultWeight", 1);
+  private static final String FAIR_WEIGHTS =
+      System.getProperty("jenkins.webhook.fair.weights");
+  private static final int BREAKER_FAILURE_THRESHOLD =
+      Integer.getInteger("jenkins.webhook.breaker.failureThreshold", 5);
+  private static final long BREAKER_OPEN_MS =
+      Long.getLong("jenkins.webhook.breaker.openMs", 60000L);
+
   private final HttpClientFactory httpClientFactory;
   private final SettingsService settingsService;
-  private final ExecutorService executorService;
+  private final NotificationExecutor executor;
+  private final NotificationCoalescer coalescer;
+  private final AsyncNotificationEngine asyncEngine;
+  private final FairNotificationScheduler scheduler;
+  private final NotificationOutbox outbox;
+  private final RetryPolicy retryPolicy;
+  private final ScheduledExecutorService retryScheduler;
+  private final ConcurrentMap<String, CircuitBreaker> circuitBreakers =
+      new ConcurrentHashMap<String, CircuitBreaker>();
 
   /**
    * Create a new instance
    * @param settingsService Service used to get webhook settings
    * @param httpClientFactory Factory to generate HttpClients
+   * @param outbox Keeps background notifications until Jenkins accepts them
    */
   public Notifier(SettingsService settingsService,
-      HttpClientFactory httpClientFactory) {
+      HttpClientFactory httpClientFactory, NotificationOutbox outbox) {
     
     this.httpClientFactory = httpClientFactory;
+    this.outbox = outbox;
+    this.retryPolicy = new RetryPolicy(RETRY_MAX_ATTEMPTS,
+        RETRY_BASE_DELAY_MS, RETRY_MAX_DELAY_MS);
+    this.retryScheduler = Executors.newSingleThreadScheduledExecutor(
+        ThreadFactories.namedThreadFactory("JenkinsWebhookRetry",
+            ThreadFactories.Type.DAEMON));
     this.settingsService = settingsService;
-    this.executorService = Executors.newCachedThreadPool(ThreadFactories.namedThreadFactory("JenkinsWebhook", ThreadFactories.Type.DAEMON));
+    this.asyncEngine = "async".equalsIgnoreCase(ENGINE)
+        ? new AsyncNotificationEngine(httpClientFactory, ASYNC_IO_THREADS,
+            ASYNC_MAX_TOTAL, ASYNC_MAX_PER_ROUTE)
+        : null;
+    // Enough to keep every lane busy, or the async connection pool full
+    this.scheduler = new FairNotificationScheduler(
+        Integer.getInteger(FAIR_MAX_IN_FLIGHT,
+            (asyncEngine != null) ? ASYNC_MAX_TOTAL : 2 * POOL_SIZE),
+        FAIR_QUEUE_SIZE, FAIR_DEFAULT_WEIGHT,
+        FairNotificationScheduler.parseWeights(FAIR_WEIGHTS));
+    // Everything in flight may hash to the same lane, so a lane never fills
+    this.executor = new NotificationExecutor(POOL_SIZE,
+        scheduler.getMaxInFlight());
+    this.coalescer = COALESCE_QUIET_PERIOD_MS <= 0 ? null
+        : new NotificationCoalescer(COALESCE_QUIET_PERIOD_MS,
+            COALESCE_MAX_DELAY_MS, new NotificationCoalescer.Dispatcher() {
+          @Override
+          public Future<NotificationResult> dispatch(Repository repo,
+              SettingsSnapshot snapshot, String strRef, String strSha1) {
+            return submit(repo, snapshot, strRef, strSha1);
+          }
+        });
   }
 
   /**
    * Send notification to Jenkins for the provided repository on a background thread.
    * This is better when running as a background task, to release the calling thread.
+   * The notification is kept in the outbox until Jenkins accepts it.
+   * If the async engine is enabled, the notification is sent without holding
+   * a thread while waiting for Jenkins.
+   * If coalescing is enabled, notifications for the same branch that arrive
+   * within the quiet period are folded into one for the newest SHA1.
+   * Notifications are sent in turn per project, so a burst in one project
+   * doesn't hold up the others.
    * @param repo The repository to base the notification on.
+   * @param snapshot The webhook configuration the event was judged against
    * @return A future of the text result from Jenkins
    */
   @Nonnull
   public Future<NotificationResult> notifyBackground(@Nonnull final Repository repo, //CHECKSTYLE:annot
-      final String strRef, final String strSha1) {
-    return executorService.submit(new Callable<NotificationResult>() {
+      SettingsSnapshot snapshot, final String strRef, final String strSha1) {
+    if (coalescer != null)
+      return coalescer.submit(getKey(repo, strRef), repo, snapshot, strRef,
+          strSha1);
+    return submit(repo, snapshot, strRef, strSha1);
+  }
+
+  /**
+   * Send a single notification to Jenkins covering several branches of the
+   * provided repository on a background thread.
+   * @param repo The repository to base the notification on.
+   * @param snapshot The webhook configuration the event was judged against
+   * @param branches The branches to include, mapped to their new SHA1
+   * @param filteredBranches The branches that were filtered out, to be
+   *        reported on the result
+   * @return A future of the text result from Jenkins
+   */
+  @Nonnull
+  public Future<NotificationResult> notifyBackground(@Nonnull Repository repo, //CHECKSTYLE:annot
+      SettingsSnapshot snapshot, Map<String, String> branches,
+      Collection<String> filteredBranches) {
+    final Collection<String> includedRefs =
+        ImmutableList.copyOf(branches.keySet());
+    final Collection<String> filteredRefs =
+        ImmutableList.copyOf(filteredBranches);
+    // Jenkins only takes a single SHA1, so it's only sent for a single branch
+    String strSha1 = (branches.size() == 1)
+        ? Iterables.getOnlyElement(branches.values()) : null;
+
+    return Futures.lazyTransform(
+        notifyBackground(repo, snapshot, Joiner.on(',').join(includedRefs),
+            strSha1),
+        new Function<NotificationResult, NotificationResult>() {
+          @Override
+          public NotificationResult apply(NotificationResult result) {
+            if (result == null)
+              return null;
+            return new NotificationResult(result.isSuccessful(),
+                result.getUrl(), result.getMessage(), includedRefs,
+                filteredRefs);
+          }
+        });
+  }
+
+  /**
+   * Records the notification in the outbox and hands it to the configured
+   * engine.  The URL is built from the snapshot the event was judged against,
+   * so nothing is looked up again and nothing is lost if the notification is
+   * still queued when Stash shuts down.
+   */
+  private Future<NotificationResult> submit(Repository repo,
+      SettingsSnapshot snapshot, String strRef, String strSha1) {
+    if (!snapshot.isEnabled()) {
+      LOGGER.debug("Hook not configured correctly or not enabled, returning.");
+      return Futures.immediateFuture(null);
+    }
+
+    String url = getUrl(repo, snapshot.getJenkinsBase(),
+        snapshot.getCloneUrl(), strRef, strSha1, snapshot.isOmitHashCode());
+    return dispatch(outbox.append(getKey(repo, strRef), url,
+        snapshot.isIgnoreCerts()));
+  }
+
+  /**
+   * Sends a notification recorded in the outbox, retrying transient failures,
+   * and acknowledges it once Jenkins has accepted it.
+   */
+  private Future<NotificationResult> dispatch(NotificationOutbox.Entry entry) {
+    SettableFuture<NotificationResult> result = SettableFuture.create();
+    attempt(entry, 1, result);
+    return result;
+  }
+
+  private void attempt(final NotificationOutbox.Entry entry,
+      final int attempt, final SettableFuture<NotificationResult> result) {
+    final CircuitBreaker breaker = getCircuitBreaker(entry.getUrl());
+    if (!breaker.allowRequest()) {
+      // Left in the outbox to be replayed once Jenkins is back
+      complete(entry, result, NotificationResult.retryableFailure(
+          entry.getUrl(), "Jenkins is unavailable, notification deferred"));
+      return;
+    }
+
+    ListenableFuture<NotificationResult> future = scheduler.schedule(
+        getProject(entry.getKey()), entry.getKey(),
+        new Callable<ListenableFuture<NotificationResult>>() {
+      @Override
+      public ListenableFuture<NotificationResult> call() {
+        return send(entry);
+      }
+    });
+
+    Futures.addCallback(future, new FutureCallback<NotificationResult>() {
+      @Override
+      public void onSuccess(NotificationResult attemptResult) {
+        if (attemptResult.isRetryable())
+          breaker.recordFailure();
+        else
+          breaker.recordSuccess();
+
+        if (retryPolicy.shouldRetry(attempt, attemptResult)
+            && outbox.isPending(entry))
+          retry(entry, attempt, result, attemptResult);
+        else
+          complete(entry, result, attemptResult);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        if (t instanceof RejectedExecutionException) {
+          // Left in the outbox to be replayed later
+          complete(entry, result, NotificationResult.retryableFailure(
+              entry.getUrl(), t.getMessage()));
+          return;
+        }
+        if (t instanceof CancellationException) {
+          // Superseded by a newer notification for the same branch, or
+          // still queued at shutdown and left to be replayed
+          outbox.completed(entry, false);
+          result.cancel(false);
+          return;
+        }
+        // Would fail the same way every time it is replayed
+        LOGGER.error("Unable to send notification for "
+            + NotificationOutbox.stripUserInfo(entry.getUrl()), t);
+        outbox.completed(entry, true);
+        result.setException(t);
+      }
+    }, MoreExecutors.sameThreadExecutor());
+  }
+
+  /**
+   * Hands a notification to the configured engine, once it is its project's
+   * turn.
+   * @throws RejectedExecutionException If the executor has been shut down
+   */
+  private ListenableFuture<NotificationResult> send(
+      final NotificationOutbox.Entry entry) {
+    if (asyncEngine != null) {
+      // The request doesn't hold a thread while waiting for Jenkins
+      return asyncEngine.notify(entry.getUrl(), entry.isTrustAllCerts());
+    }
+    return executor.submit(entry.getKey(),
+        new Callable<NotificationResult>() {
       @Override
       public NotificationResult call() throws Exception {
-        return Notifier.this.notify(repo, strRef, strSha1);
+        return send(entry.getUrl(), entry.isTrustAllCerts());
       }
     });
   }
 
+  private void retry(final NotificationOutbox.Entry entry, final int attempt,
+      final SettableFuture<NotificationResult> result,
+      final NotificationResult attemptResult) {
+    long delay = retryPolicy.getDelayMs(attempt);
+    LOGGER.debug("Retrying notification for {} in {} ms",
+        NotificationOutbox.stripUserInfo(entry.getUrl()), delay);
+    try {
+      retryScheduler.schedule(new Runnable() {
+        @Override
+        public void run() {
+          // A newer notification for the branch may have been queued since
+          if (outbox.isPending(entry))
+            attempt(entry, attempt + 1, result);
+          else
+            complete(entry, result, attemptResult);
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      complete(entry, result, attemptResult);
+    }
+  }
+
+  /**
+   * Acknowledges the notification unless it failed for a reason that may go
+   * away, in which case it is left in the outbox to be replayed.
+   */
+  private void complete(NotificationOutbox.Entry entry,
+      SettableFuture<NotificationResult> result,
+      NotificationResult attemptResult) {
+    outbox.completed(entry, !attemptResult.isRetryable());
+    result.set(attemptResult);
+  }
+
+  /**
+   * Replays a notification left in the outbox, unless the hook has since been
+   * disabled or now points at a different Jenkins or clone URL, in which case
+   * the notification is acknowledged without being sent.  The journal doesn't
+   * keep credentials, so the Jenkins URL is taken from the current settings.
+   */
+  private void replay(NotificationOutbox.Entry entry) {
+    Integer repositoryId = getRepositoryId(entry.getKey());
+    SettingsSnapshot snapshot = (repositoryId == null) ? null
+        : settingsService.getSnapshot(repositoryId);
+    String url = (snapshot == null || !snapshot.isEnabled()
+        || snapshot.isIgnoreCerts() != entry.isTrustAllCerts()) ? null
+        : getReplayUrl(entry.getUrl(), snapshot);
+    if (url == null) {
+      LOGGER.info("Dropping notification for {}, the webhook is no longer "
+          + "configured for it", NotificationOutbox.stripUserInfo(
+              entry.getUrl()));
+      outbox.completed(entry, true);
+      return;
+    }
+    if (!url.equals(entry.getUrl())) {
+      // Takes the place of the entry, with the credentials restored
+      entry = outbox.append(entry.getKey(), url, entry.isTrustAllCerts());
+    }
+    dispatch(entry);
+  }
+
+  /**
+   * Gets the URL to replay a notification with, or null if it was meant for
+   * a different Jenkins or clone URL than the one now configured.
+   */
+  private static String getReplayUrl(String url, SettingsSnapshot snapshot) {
+    String prefix = String.format(URL_SHORT, snapshot.getJenkinsBase(),
+        urlEncode(snapshot.getCloneUrl()));
+    String journaled = NotificationOutbox.stripUserInfo(url);
+    String expected = NotificationOutbox.stripUserInfo(prefix);
+    if (!journaled.equals(expected) && !journaled.startsWith(expected + "&"))
+      return null;
+    return prefix + journaled.substring(expected.length());
+  }
+
+  private CircuitBreaker getCircuitBreaker(String url) {
+    int end = url.indexOf(NOTIFY_PATH);
+    String jenkinsBase = end < 0 ? url : url.substring(0, end);
+    CircuitBreaker breaker = circuitBreakers.get(jenkinsBase);
+    if (breaker == null) {
+      CircuitBreaker created =
+          new CircuitBreaker(BREAKER_FAILURE_THRESHOLD, BREAKER_OPEN_MS);
+      breaker = circuitBreakers.putIfAbsent(jenkinsBase, created);
+      if (breaker == null)
+        breaker = created;
+    }
+    return breaker;
+  }
+
+  /**
+   * Gets the executor used to deliver background notifications.
+   * @return The notification executor
+   */
+  public NotificationExecutor getExecutor() {
+    return executor;
+  }
+
+  /**
+   * Gets the coalescer used to fold rapid-fire notifications together.
+   * @return The notification coalescer, or null if coalescing is disabled
+   */
+  public @Nullable NotificationCoalescer getCoalescer() { //CHECKSTYLE:annot
+    return coalescer;
+  }
+
+  /**
+   * Gets the scheduler sharing notifications fairly between projects.
+   * @return The fair notification scheduler
+   */
+  public FairNotificationScheduler getScheduler() {
+    return scheduler;
+  }
+
+  /**
+   * Gets the outbox that keeps notifications until Jenkins accepts them.
+   * @return The notification outbox
+   */
+  public NotificationOutbox getOutbox() {
+    return outbox;
+  }
+
+  /**
+   * Gets the circuit breakers guarding each Jenkins instance.
+   * @return The circuit breakers, keyed by Jenkins base URL
+   */
+  public Map<String, CircuitBreaker> getCircuitBreakers() {
+    return Collections.unmodifiableMap(circuitBreakers);
+  }
+
+  /**
+   * Gets the non-blocking engine used to deliver background notifications.
+   * @return The async engine, or null if the blocking engine is used
+   */
+  public @Nullable AsyncNotificationEngine getAsyncEngine() { //CHECKSTYLE:annot
+    return asyncEngine;
+  }
+
   /**
    * Send notification to Jenkins for the provided repository.
    * @param repo The repository to base the notification on.
@@ -124,18 +524,14 @@ public class Notifier implements DisposableBean {
    */
   public @Nullable NotificationResult notify(@Nonnull Repository repo, //CHECKSTYLE:annot
       String strRef, String strSha1) {
-    final RepositoryHook hook = settingsService.getRepositoryHook(repo);
-    final Settings settings = settingsService.getSettings(repo);
-    if (hook == null || !hook.isEnabled() || settings == null) {
+    final SettingsSnapshot snapshot = settingsService.getSnapshot(repo);
+    if (!snapshot.isEnabled()) {
       LOGGER.debug("Hook not configured correctly or not enabled, returning.");
       return null;
     }
 
-    return notify(repo, settings.getString(JENKINS_BASE), 
-        settings.getBoolean(IGNORE_CERTS, false),
-        settings.getString(CLONE_URL),
-        strRef, strSha1,
-        settings.getBoolean(OMIT_HASH_CODE, false));
+    return notify(repo, snapshot.getJenkinsBase(), snapshot.isIgnoreCerts(),
+        snapshot.getCloneUrl(), strRef, strSha1, snapshot.isOmitHashCode());
   }
 
   /**
@@ -153,38 +549,78 @@ public class Notifier implements DisposableBean {
       String jenkinsBase, boolean ignoreCerts, String cloneUrl,
       String strRef, String strSha1, boolean omitHashCode) {
     
-    HttpClient client = null;
-    final String url = getUrl(repo, maybeReplaceSlash(jenkinsBase),
-        cloneUrl, strRef, strSha1, omitHashCode);
+    return send(getUrl(repo, maybeReplaceSlash(jenkinsBase),
+        cloneUrl, strRef, strSha1, omitHashCode), ignoreCerts);
+  }
 
+  private NotificationResult send(String url, boolean ignoreCerts) {
     try {
-      client = httpClientFactory.getHttpClient(url.startsWith("https"), 
+      HttpClient client = httpClientFactory.getHttpClient(url.startsWith("https"), 
           ignoreCerts);
 
-      HttpResponse response = client.execute(new HttpGet(url));
-      LOGGER.debug("Successfully triggered jenkins with url '{}': ", url);
-      InputStream content = response.getEntity().getContent();
-      String responseBody =  CharStreams.toString(
-          new InputStreamReader(content, Charsets.UTF_8));
-      boolean successful = responseBody.startsWith("Scheduled");
-      
-      NotificationResult result = new NotificationResult(successful, url, 
-              "Jenkins response: " + responseBody);
+      HttpGet request = new HttpGet(url);
+      HttpResponse response = client.execute(request);
+      HttpEntity entity = response.getEntity();
+      String bodyPrefix = "";
+      if (entity != null) {
+        InputStream content = entity.getContent();
+        boolean reusable = false;
+        try {
+          bodyPrefix = ResponseReader.readPrefix(content);
+          reusable = ResponseReader.drain(content);
+        } finally {
+          // Hand the connection back to the pool for reuse, unless the body
+          // was too large to be worth reading
+          if (reusable)
+            content.close();
+          else
+            request.abort();
+        }
+      }
+
+      NotificationResult result = ResponseReader.toResult(url,
+          response.getStatusLine(), bodyPrefix);
+      if (result.isRetryable())
+        LOGGER.warn("Jenkins responded with '{}' for url '{}'",
+            response.getStatusLine(), url);
+      else
+        LOGGER.debug("Successfully triggered jenkins with url '{}': ", url);
       return result;
+    } catch (IOException e) {
+      // Connection errors and timeouts may go away by themselves
+      LOGGER.error("Error triggering jenkins with url '" + url + "'", e);
+      return NotificationResult.retryableFailure(url, e.getMessage());
     } catch (Exception e) {
       LOGGER.error("Error triggering jenkins with url '" + url + "'", e);
       return new NotificationResult(false, url, e.getMessage());
-    } finally {
-      if (client != null) {
-        client.getConnectionManager().shutdown();
-        LOGGER.debug("Successfully shutdown connection");
-      }
     }
   }
 
+  /**
+   * Start replaying notifications left in the outbox, including those that
+   * were still pending when Stash was last shut down.  The settings of each
+   * repository are looked up again before its notification is replayed.
+   */
+  @Override
+  public void afterPropertiesSet() {
+    outbox.startReplay(new NotificationOutbox.Replayer() {
+      @Override
+      public void replay(NotificationOutbox.Entry entry) {
+        Notifier.this.replay(entry);
+      }
+    });
+  }
+
   @Override
   public void destroy() {
-    executorService.shutdownNow();
+    if (coalescer != null)
+      coalescer.shutdownNow();
+    scheduler.shutdownNow();
+    retryScheduler.shutdownNow();
+    executor.shutdownNow();
+    if (asyncEngine != null)
+      asyncEngine.shutdown();
+    httpClientFactory.shutdown();
   }
 
   /**
@@ -198,12 +634,42 @@ public class Notifier implements DisposableBean {
       String cloneUrl, String strRef, String strSha1, boolean omitHashCode) {
     if (strRef == null)
       return String.format(URL_SHORT, jenkinsBase, urlEncode(cloneUrl));
-    else if (omitHashCode)
+    else if (omitHashCode || strSha1 == null)
       return String.format(URL_NO_HASH, jenkinsBase, urlEncode(cloneUrl), strRef);
     else 
       return String.format(URL, jenkinsBase, urlEncode(cloneUrl), strRef, strSha1);
   }
   
+  /**
+   * Gets the key of a notification,
+   * {@code <project key>/<repository id>:<branch>}
+   */
+  private static String getKey(Repository repo, String strRef) {
+    String project = (repo.getProject() != null)
+        ? repo.getProject().getKey() : "";
+    return project + "/" + repo.getId() + ":" + strRef;
+  }
+
+  /**
+   * Gets the project part of a notification key.
+   */
+  private static String getProject(String key) {
+    return key.substring(0, key.indexOf('/'));
+  }
+
+  /**
+   * Gets the repository id of a notification key, or null if the key is
+   * malformed.
+   */
+  private static Integer getRepositoryId(String key) {
+    try {
+      return Integer.valueOf(key.substring(key.indexOf('/') + 1,
+          key.indexOf(':')));
+    } catch (RuntimeException e) {
+      return null;
+    }
+  }
+
   private static String urlEncode(String string) {
     try {
       return URLEncoder.encode(string, "UTF-8");
@@ -12,6 +12,7 @@ import com.atlassian.stash.setting.RepositorySettingsValidator;
 import com.atlassian.stash.setting.Settings;
 import com.atlassian.stash.setting.SettingsValidationErrors;
 import com.google.common.base.Strings;
+import com.nerdwin15.stash.webhook.service.BranchMatcher;
 
 /**
  * Note that hooks can implement RepositorySettingsValidator directly.
@@ -44,12 +45,29 @@ public class PostReceiveHook implements AsyncPostReceiveRepositoryHook,
     }
     
     final String branchSelection = settings.getString(Notifier.BRANCH_OPTIONS);
-    if (!Strings.isNullOrEmpty(branchSelection)) {
-      String branches = settings.getString(Notifier.BRANCH_OPTIONS_BRANCHES);
-      if (Strings.isNullOrEmpty(branches)) {
+    final String branches =
+        settings.getString(Notifier.BRANCH_OPTIONS_BRANCHES);
+    if (Strings.isNullOrEmpty(branches)) {
+      if (!Strings.isNullOrEmpty(branchSelection)) {
         errors.addFieldError(Notifier.BRANCH_OPTIONS_BRANCHES, 
             "No branches were specified to " + branchSelection);
       }
+    } else {
+      // Saved patterns are kept even without an option, so they are checked
+      // before they can be put to use
+      validateBranchPatterns(branches, errors);
+    }
+  }
+
+  private void validateBranchPatterns(String branches,
+      SettingsValidationErrors errors) {
+    for (String pattern : branches.trim().split("\\s+")) {
+      String error = BranchMatcher.validate(pattern);
+      if (error != null) {
+        errors.addFieldError(Notifier.BRANCH_OPTIONS_BRANCHES,
+            error + ": " + pattern);
+        return;
+      }
     }
   }
 }
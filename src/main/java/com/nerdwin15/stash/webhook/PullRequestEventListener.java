@@ -1,39 +1,80 @@
 package com.nerdwin15.stash.webhook;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.atlassian.event.api.EventListener;
 import com.atlassian.stash.event.pull.PullRequestEvent;
 import com.atlassian.stash.event.pull.PullRequestOpenedEvent;
 import com.atlassian.stash.event.pull.PullRequestReopenedEvent;
 import com.atlassian.stash.event.pull.PullRequestRescopedEvent;
+import com.atlassian.stash.pull.PullRequest;
+import com.atlassian.stash.pull.PullRequestRef;
+import com.atlassian.stash.repository.Repository;
 import com.nerdwin15.stash.webhook.service.SettingsService;
+import com.nerdwin15.stash.webhook.service.SettingsSnapshot;
 import com.nerdwin15.stash.webhook.service.eligibility.EligibilityFilterChain;
+import com.nerdwin15.stash.webhook.service.eligibility.EligibilityStage;
 import com.nerdwin15.stash.webhook.service.eligibility.EventContext;
 
 /**
- * Event listener that listens to PullRequestRescopedEvent events.
- * 
+ * Event listener that listens to pull request opened, reopened and rescoped
+ * events.
+ *
+ * Like the {@link RepositoryChangeListener}, the listener only queues events
+ * on the {@link EligibilityStage}, so the mergeability check and the other
+ * filters never run on Stash's event threads.  At most one event per pull
+ * request is queued at a time: while it waits, any later event for the same
+ * pull request takes its place, so a burst of events is notified once, for
+ * the latest from-hash.
+ *
  * @author Michael Irwin (mikesir87)
  * @author Melvyn de Kort (lordmatanza)
  */
 public class PullRequestEventListener {
-  
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(PullRequestEventListener.class);
+  private static final String REFS_HEADS = "refs/heads/";
+
   private final EligibilityFilterChain filterChain;
   private final Notifier notifier;
   private final SettingsService settingsService;
+  private final EligibilityStage eligibilityStage;
+  private final ConcurrentMap<String, PullRequestEvent> pending =
+      new ConcurrentHashMap<String, PullRequestEvent>();
+  private final AtomicLong collapsedCount = new AtomicLong();
+  private final EligibilityStage.Handler handler =
+      new EligibilityStage.Handler() {
+    @Override
+    public void evaluate(Object event, Repository repository, String user) {
+      PullRequestEvent latest =
+          pending.remove(getKey((PullRequestEvent) event));
+      if (latest != null)
+        PullRequestEventListener.this.evaluate(latest);
+    }
+  };
 
   /**
    * Construct a new instance.
    * @param filterChain The filter chain to test for eligibility
    * @param notifier The notifier service
    * @param settingsService Service to be used to get the Settings
+   * @param eligibilityStage The stage evaluating events off the event thread
    */
   public PullRequestEventListener(EligibilityFilterChain filterChain,
-      Notifier notifier, SettingsService settingsService) {
+      Notifier notifier, SettingsService settingsService,
+      EligibilityStage eligibilityStage) {
     this.filterChain = filterChain;
     this.notifier = notifier;
     this.settingsService = settingsService;
+    this.eligibilityStage = eligibilityStage;
   }
-  
+
   /**
    * Event listener that is notified of pull request open events
    * @param event The pull request event
@@ -42,7 +83,7 @@ public class PullRequestEventListener {
   public void onPullRequestOpened(PullRequestOpenedEvent event) {
     handleEvent(event);
   }
-  
+
   /**
    * Event listener that is notified of pull request reopen events
    * @param event The pull request event
@@ -51,29 +92,117 @@ public class PullRequestEventListener {
   public void onPullRequestReopened(PullRequestReopenedEvent event) {
     handleEvent(event);
   }
-  
+
+  /**
+   * Event listener that is notified of pull request rescope events
+   * @param event The pull request event
+   */
+  @EventListener
+  public void onPullRequestRescoped(PullRequestRescopedEvent event) {
+    handleEvent(event);
+  }
+
   /**
-   * Actually handles the event that was triggered. 
+   * Queues the event for evaluation, or lets it take the place of an event
+   * for the same pull request that is still queued.
    * (Made protected to make unit testing easier)
    * @param event The event to be handled
    */
   protected void handleEvent(PullRequestEvent event) {
-//    if (settingsService.getSettings(event.getPullRequest().getToRef()
-//        .getRepository()) == null) {
-//      return;
-//    }
-//
-//    Get branch name from stash ref 'project/repo:refs/heads/master'
-//    String strRef = event.getPullRequest().getFromRef().toString()
-//        .replaceFirst(".*refs/heads/", "");
-//    String strSha1 = event.getPullRequest().getFromRef().getLatestChangeset();
-//
-//    EventContext context = new EventContext(event,
-//        event.getPullRequest().getToRef().getRepository(),
-//        event.getUser().getName());
-//
-//    if (filterChain.shouldDeliverNotification(context))
-//      notifier.notifyBackground(context.getRepository(), strRef, strSha1);
+    String key = getKey(event);
+    for (;;) {
+      PullRequestEvent previous = pending.putIfAbsent(key, event);
+      if (previous == null) {
+        String user = (event.getUser() != null)
+            ? event.getUser().getName() : null;
+        Repository repository =
+            event.getPullRequest().getToRef().getRepository();
+        // Only refused while the plugin is shutting down; the event is still
+        // evaluated rather than lost
+        if (!eligibilityStage.submit(handler, event, repository, user))
+          handler.evaluate(event, repository, user);
+        return;
+      }
+      if (!supersedes(event)) {
+        collapsedCount.incrementAndGet();
+        LOGGER.debug("Collapsed {} into the queued {} for pull request {}",
+            event.getClass().getSimpleName(),
+            previous.getClass().getSimpleName(), key);
+        return;
+      }
+      if (pending.replace(key, previous, event)) {
+        collapsedCount.incrementAndGet();
+        LOGGER.debug("Collapsed {} into the queued {} for pull request {}",
+            previous.getClass().getSimpleName(),
+            event.getClass().getSimpleName(), key);
+        return;
+      }
+    }
   }
-  
+
+  /**
+   * Resolves the webhook configuration of the target repository, runs the
+   * filter chain and hands the from-side of the pull request to the notifier.
+   * (Made protected to make unit testing easier)
+   * @param event The event to be handled
+   */
+  protected void evaluate(PullRequestEvent event) {
+    PullRequest pullRequest = event.getPullRequest();
+    Repository repository = pullRequest.getToRef().getRepository();
+    SettingsSnapshot snapshot = settingsService.getSnapshot(repository);
+    if (!snapshot.isEnabled()) {
+      return;
+    }
+
+    PullRequestRef fromRef = pullRequest.getFromRef();
+    String user = (event.getUser() != null) ? event.getUser().getName() : null;
+    EventContext context = new EventContext(event, repository, user,
+        snapshot);
+
+    if (filterChain.shouldDeliverNotification(context))
+      notifier.notifyBackground(repository, snapshot, getBranch(fromRef),
+          fromRef.getLatestChangeset());
+  }
+
+  /**
+   * Gets the number of pull request events that were folded into an event
+   * already queued for the same pull request.
+   * @return The number of collapsed events
+   */
+  public long getCollapsedCount() {
+    return collapsedCount.get();
+  }
+
+  /**
+   * Gets the number of pull requests with an event waiting to be evaluated.
+   * @return The number of pending pull requests
+   */
+  public int getPendingCount() {
+    return pending.size();
+  }
+
+  /**
+   * A rescope that leaves the from-side alone is rejected by the filter
+   * chain, so it must never displace an event that would be notified.
+   */
+  private static boolean supersedes(PullRequestEvent event) {
+    if (!(event instanceof PullRequestRescopedEvent))
+      return true;
+    PullRequestRescopedEvent rescoped = (PullRequestRescopedEvent) event;
+    return !rescoped.getPreviousFromHash().equals(
+        event.getPullRequest().getFromRef().getLatestChangeset());
+  }
+
+  private static String getKey(PullRequestEvent event) {
+    PullRequest pullRequest = event.getPullRequest();
+    return pullRequest.getToRef().getRepository().getId() + ":"
+        + pullRequest.getId();
+  }
+
+  private static String getBranch(PullRequestRef ref) {
+    String refId = ref.getId();
+    return refId.startsWith(REFS_HEADS)
+        ? refId.substring(REFS_HEADS.length()) : refId;
+  }
+
 }
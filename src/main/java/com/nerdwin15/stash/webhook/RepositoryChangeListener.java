@@ -1,10 +1,22 @@
 package com.nerdwin15.stash.webhook;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.atlassian.event.api.EventListener;
 import com.atlassian.stash.event.RepositoryRefsChangedEvent;
 import com.atlassian.stash.repository.RefChange;
+import com.atlassian.stash.repository.Repository;
 import com.nerdwin15.stash.webhook.service.SettingsService;
+import com.nerdwin15.stash.webhook.service.SettingsSnapshot;
 import com.nerdwin15.stash.webhook.service.eligibility.EligibilityFilterChain;
+import com.nerdwin15.stash.webhook.service.eligibility.EligibilityStage;
 import com.nerdwin15.stash.webhook.service.eligibility.EventContext;
 
 /**
@@ -14,47 +26,131 @@ import com.nerdwin15.stash.webhook.service.eligibility.EventContext;
  * notified upon {@link RepositoryPushEvent} and {@link PullRequestMergedEvent}
  * events.
  * 
+ * The listener runs on Stash's shared event threads, so it only captures the
+ * repository and user of an event and queues them on the
+ * {@link EligibilityStage}.  The settings lookup and the filter chain run on
+ * the stage's threads, and delivery on the notifier's.
+ * 
  * @author Michael Irwin (mikesir87)
  */
 public class RepositoryChangeListener {
 
+  private static final Logger LOGGER = 
+      LoggerFactory.getLogger(RepositoryChangeListener.class);
+  private static final String REFS_HEADS = "refs/heads/";
+
   private final EligibilityFilterChain filterChain;
   private final Notifier notifier;
   private final SettingsService settingsService;
+  private final EligibilityStage eligibilityStage;
+  private final EligibilityStage.Handler handler =
+      new EligibilityStage.Handler() {
+    @Override
+    public void evaluate(Object event, Repository repository, String user) {
+      RepositoryRefsChangedEvent refsChanged =
+          (RepositoryRefsChangedEvent) event;
+      RepositoryChangeListener.this.evaluate(refsChanged, repository, user,
+          new ArrayList<RefChange>(refsChanged.getRefChanges()));
+    }
+  };
 
   /**
    * Construct a new instance.
    * @param filterChain The filter chain to test for eligibility
    * @param notifier The notifier service
    * @param settingsService Service to be used to get the Settings
+   * @param eligibilityStage The stage evaluating events off the event thread
    */
   public RepositoryChangeListener(EligibilityFilterChain filterChain,
-      Notifier notifier, SettingsService settingsService) {
+      Notifier notifier, SettingsService settingsService,
+      EligibilityStage eligibilityStage) {
     this.filterChain = filterChain;
     this.notifier = notifier;
     this.settingsService = settingsService;
+    this.eligibilityStage = eligibilityStage;
   }
 
   /**
-   * Event listener that is notified of both pull request merges and push events
+   * Event listener that is notified of both pull request merges and push events.
+   * The event is queued for evaluation without doing any lookups or
+   * allocating anything.
    * @param event The pull request event
    */
   @EventListener
   public void onRefsChangedEvent(RepositoryRefsChangedEvent event) {
-    if (settingsService.getSettings(event.getRepository()) == null) {
+    String user = (event.getUser() != null) ? event.getUser().getName() : null;
+    // Only refused while the plugin is shutting down; the push is still
+    // notified rather than lost
+    if (!eligibilityStage.submit(handler, event, event.getRepository(), user))
+      handler.evaluate(event, event.getRepository(), user);
+  }
+
+  /**
+   * Resolves the webhook configuration once for the whole event, lets the
+   * filter chain decide which of its ref changes are notified and hands them
+   * to the notifier.
+   * @param event The event to be handled
+   * @param repository The repository the event is about
+   * @param user The name of the user that initiated the event
+   * @param refChanges The ref changes of the event
+   */
+  protected void evaluate(RepositoryRefsChangedEvent event,
+      Repository repository, String user, List<RefChange> refChanges) {
+    final SettingsSnapshot snapshot = settingsService.getSnapshot(repository);
+    if (!snapshot.isEnabled()) {
       return;
     }
 
-    RefChange refCh = event.getRefChanges().iterator().next();
+    EventContext context = new EventContext(event, repository, user,
+        snapshot);
+    BitSet eligible = filterChain.getEligibleRefChanges(context, refChanges);
+
+    if (snapshot.isNotifyAllBranches()) {
+      notifyAllBranches(event, snapshot, refChanges, eligible);
+      return;
+    }
+
+    int first = eligible.nextSetBit(0);
+    if (first < 0)
+      return;
+    RefChange refCh = refChanges.get(first);
     // Get branch name from ref 'refs/heads/master'
-    String strRef = refCh.getRefId().replaceFirst("refs/heads/", "");
-    String strSha1 = refCh.getToHash();
+    notifier.notifyBackground(repository, snapshot, getBranch(refCh),
+        refCh.getToHash());
+  }
 
-    String user = (event.getUser() != null) ? event.getUser().getName() : null;
-    EventContext context = new EventContext(event, event.getRepository(), user);
-    
-    if (filterChain.shouldDeliverNotification(context))
-      notifier.notifyBackground(context.getRepository(), strRef, strSha1);
+  /**
+   * Sends a single notification covering all of the eligible branches.
+   * @param event The event to be handled
+   * @param snapshot The webhook configuration of the repository
+   * @param refChanges The ref changes of the event
+   * @param eligible One bit per ref change, set if it should be notified
+   */
+  protected void notifyAllBranches(RepositoryRefsChangedEvent event,
+      SettingsSnapshot snapshot, List<RefChange> refChanges, BitSet eligible) {
+    if (eligible.isEmpty())
+      return;
+
+    Map<String, String> included = new LinkedHashMap<String, String>();
+    List<String> filtered = new ArrayList<String>();
+    for (int i = 0; i < refChanges.size(); i++) {
+      RefChange refCh = refChanges.get(i);
+      if (eligible.get(i))
+        included.put(getBranch(refCh), refCh.getToHash());
+      else
+        filtered.add(getBranch(refCh));
+    }
+
+    LOGGER.debug("Branches included in notification: {}; filtered out: {}",
+        included.keySet(), filtered);
+    notifier.notifyBackground(event.getRepository(), snapshot, included,
+        filtered);
+  }
+
+  private static String getBranch(RefChange refCh) {
+    String refId = refCh.getRefId();
+    return refId.startsWith(REFS_HEADS)
+        ? refId.substring(REFS_HEADS.length()) : refId;
   }
 
 }
@@ -0,0 +1,277 @@
+package com.nerdwin15.stash.webhook.rest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+
+import com.atlassian.stash.i18n.I18nService;
+import com.atlassian.stash.rest.util.RestResource;
+import com.atlassian.stash.rest.util.RestUtils;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.PermissionValidationService;
+import com.nerdwin15.stash.webhook.Notifier;
+import com.nerdwin15.stash.webhook.PullRequestEventListener;
+import com.nerdwin15.stash.webhook.service.delivery.AsyncNotificationEngine;
+import com.nerdwin15.stash.webhook.service.delivery.CircuitBreaker;
+import com.nerdwin15.stash.webhook.service.delivery.FairNotificationScheduler;
+import com.nerdwin15.stash.webhook.service.delivery.FairNotificationScheduler.ProjectStatistics;
+import com.nerdwin15.stash.webhook.service.delivery.NotificationCoalescer;
+import com.nerdwin15.stash.webhook.service.delivery.NotificationExecutor;
+import com.nerdwin15.stash.webhook.service.eligibility.EligibilityFilterChain;
+import com.nerdwin15.stash.webhook.service.eligibility.EligibilityStage;
+import com.nerdwin15.stash.webhook.service.eligibility.FilterStatistics;
+import com.nerdwin15.stash.webhook.service.eligibility.IsMergeableEligibilityFilter;
+import com.sun.jersey.spi.resource.Singleton;
+
+/**
+ * REST resource used to inspect how notifications are being delivered.
+ */
+@Path("statistics")
+@Consumes({ MediaType.APPLICATION_JSON })
+@Produces({ RestUtils.APPLICATION_JSON_UTF8 })
+@Singleton
+public class StatisticsResource extends RestResource {
+
+  private final Notifier notifier;
+  private final IsMergeableEligibilityFilter mergeableFilter;
+  private final EligibilityFilterChain filterChain;
+  private final EligibilityStage eligibilityStage;
+  private final PullRequestEventListener pullRequestListener;
+  private final PermissionValidationService permissionService;
+
+  /**
+   * Creates Rest resource for inspecting notification delivery
+   * @param notifier The service to send Jenkins notifications
+   * @param mergeableFilter The filter checking pull request mergeability
+   * @param filterChain The chain deciding which events are notified
+   * @param eligibilityStage The stage running the filter chain
+   * @param pullRequestListener The listener queueing pull request events
+   * @param permissionValidationService A permission validation service
+   * @param i18nService i18n Service
+   */
+  public StatisticsResource(Notifier notifier,
+      IsMergeableEligibilityFilter mergeableFilter,
+      EligibilityFilterChain filterChain,
+      EligibilityStage eligibilityStage,
+      PullRequestEventListener pullRequestListener,
+      PermissionValidationService permissionValidationService,
+      I18nService i18nService) {
+    super(i18nService);
+    this.notifier = notifier;
+    this.mergeableFilter = mergeableFilter;
+    this.filterChain = filterChain;
+    this.eligibilityStage = eligibilityStage;
+    this.pullRequestListener = pullRequestListener;
+    this.permissionService = permissionValidationService;
+  }
+
+  /**
+   * Get the current state of the notification executor.
+   * @return The executor statistics
+   */
+  @GET
+  @Path(value = "executor")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Map<String, Object> executor() {
+    permissionService.validateForGlobal(Permission.SYS_ADMIN);
+
+    NotificationExecutor executor = notifier.getExecutor();
+    Map<String, Object> map = new HashMap<String, Object>();
+    map.put("lanes", executor.getLaneCount());
+    map.put("busy", executor.getBusyCount());
+    map.put("idle", executor.getIdleCount());
+    map.put("queued", executor.getQueuedCount());
+    map.put("rejected", executor.getRejectedCount());
+    map.put("outboxPending", notifier.getOutbox().getPendingCount());
+    return map;
+  }
+
+  /**
+   * Get the current state of the notification coalescer.
+   * @return The coalescer statistics
+   */
+  @GET
+  @Path(value = "coalescer")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Map<String, Object> coalescer() {
+    permissionService.validateForGlobal(Permission.SYS_ADMIN);
+
+    NotificationCoalescer coalescer = notifier.getCoalescer();
+    Map<String, Object> map = new HashMap<String, Object>();
+    map.put("enabled", coalescer != null);
+    if (coalescer != null) {
+      map.put("pending", coalescer.getPendingCount());
+      map.put("coalesced", coalescer.getCoalescedCount());
+      map.put("dispatched", coalescer.getDispatchedCount());
+    }
+    return map;
+  }
+
+  /**
+   * Get the state of the scheduler sharing notifications between projects,
+   * with the queue depth and wait time of each project.
+   * @return The fair queue statistics
+   */
+  @GET
+  @Path(value = "fairQueue")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Map<String, Object> fairQueue() {
+    permissionService.validateForGlobal(Permission.SYS_ADMIN);
+
+    FairNotificationScheduler scheduler = notifier.getScheduler();
+    Map<String, Object> map = new HashMap<String, Object>();
+    map.put("inFlight", scheduler.getInFlightCount());
+    map.put("maxInFlight", scheduler.getMaxInFlight());
+    map.put("queued", scheduler.getQueuedCount());
+    map.put("maxQueued", scheduler.getMaxQueued());
+    map.put("collapsed", scheduler.getCollapsedCount());
+    map.put("rejected", scheduler.getRejectedCount());
+    List<Map<String, Object>> projects = new ArrayList<Map<String, Object>>();
+    for (ProjectStatistics stats : scheduler.getProjectStatistics()) {
+      Map<String, Object> project = new HashMap<String, Object>();
+      project.put("project", stats.getProject());
+      project.put("weight", stats.getWeight());
+      project.put("queued", stats.getQueued());
+      project.put("dispatched", stats.getDispatched());
+      project.put("averageWaitNanos", stats.getAverageWaitNanos());
+      projects.add(project);
+    }
+    map.put("projects", projects);
+    return map;
+  }
+
+  /**
+   * Get the state of the circuit breaker guarding each Jenkins instance.
+   * @return The circuit breaker states, keyed by Jenkins base URL
+   */
+  @GET
+  @Path(value = "circuits")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Map<String, Object> circuits() {
+    permissionService.validateForGlobal(Permission.SYS_ADMIN);
+
+    Map<String, Object> map = new HashMap<String, Object>();
+    for (Map.Entry<String, CircuitBreaker> entry
+        : notifier.getCircuitBreakers().entrySet()) {
+      map.put(entry.getKey(), entry.getValue().getState().name());
+    }
+    return map;
+  }
+
+  /**
+   * Get the current state of the non-blocking notification engine.
+   * @return The async engine statistics
+   */
+  @GET
+  @Path(value = "engine")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Map<String, Object> engine() {
+    permissionService.validateForGlobal(Permission.SYS_ADMIN);
+
+    AsyncNotificationEngine engine = notifier.getAsyncEngine();
+    Map<String, Object> map = new HashMap<String, Object>();
+    map.put("async", engine != null);
+    if (engine != null) {
+      map.put("inFlight", engine.getInFlightCount());
+      map.put("completed", engine.getCompletedCount());
+      map.put("failed", engine.getFailedCount());
+    }
+    return map;
+  }
+
+  /**
+   * Get how often the pull request mergeability check was avoided.
+   * @return The merge check statistics
+   */
+  @GET
+  @Path(value = "mergeCheck")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Map<String, Object> mergeCheck() {
+    permissionService.validateForGlobal(Permission.SYS_ADMIN);
+
+    Map<String, Object> map = new HashMap<String, Object>();
+    map.put("hits", mergeableFilter.getHitCount());
+    map.put("misses", mergeableFilter.getMissCount());
+    map.put("timeouts", mergeableFilter.getTimeoutCount());
+    return map;
+  }
+
+  /**
+   * Get the current state of the stage evaluating events off Stash's event
+   * threads.
+   * @return The eligibility stage statistics
+   */
+  @GET
+  @Path(value = "eligibility")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Map<String, Object> eligibility() {
+    permissionService.validateForGlobal(Permission.SYS_ADMIN);
+
+    Map<String, Object> map = new HashMap<String, Object>();
+    map.put("busy", eligibilityStage.getBusyCount());
+    map.put("queued", eligibilityStage.getQueuedCount());
+    map.put("submitted", eligibilityStage.getSubmittedCount());
+    map.put("completed", eligibilityStage.getCompletedCount());
+    map.put("failed", eligibilityStage.getFailedCount());
+    map.put("overflowed", eligibilityStage.getOverflowCount());
+    map.put("callerRuns", eligibilityStage.getCallerRunsCount());
+    map.put("batches", eligibilityStage.getBatchCount());
+    map.put("waitStrategy", eligibilityStage.getWaitStrategy().name());
+    map.put("averageWaitNanos", eligibilityStage.getAverageWaitNanos());
+    map.put("averageRunNanos", eligibilityStage.getAverageRunNanos());
+    return map;
+  }
+
+  /**
+   * Get how many pull request events are waiting and how many were collapsed
+   * into an event already waiting for the same pull request.
+   * @return The pull request event statistics
+   */
+  @GET
+  @Path(value = "pullRequests")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Map<String, Object> pullRequests() {
+    permissionService.validateForGlobal(Permission.SYS_ADMIN);
+
+    Map<String, Object> map = new HashMap<String, Object>();
+    map.put("pending", pullRequestListener.getPendingCount());
+    map.put("collapsed", pullRequestListener.getCollapsedCount());
+    return map;
+  }
+
+  /**
+   * Get the order the eligibility filters run in for each type of event,
+   * along with what each filter costs and how often it rejects an event.
+   * @return The filter statistics in order, keyed by event type
+   */
+  @GET
+  @Path(value = "filters")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Map<String, Object> filters() {
+    permissionService.validateForGlobal(Permission.SYS_ADMIN);
+
+    Map<String, Object> map = new HashMap<String, Object>();
+    for (Map.Entry<Class<?>, List<FilterStatistics>> entry
+        : filterChain.getOrder().entrySet()) {
+      List<Map<String, Object>> order = new ArrayList<Map<String, Object>>();
+      for (FilterStatistics stats : entry.getValue()) {
+        Map<String, Object> filter = new HashMap<String, Object>();
+        filter.put("filter", stats.getFilter().getClass().getSimpleName());
+        filter.put("invocations", stats.getInvocations());
+        filter.put("rejections", stats.getRejections());
+        filter.put("averageNanos", stats.getAverageNanos());
+        order.add(filter);
+      }
+      map.put(entry.getKey().getName(), order);
+    }
+    return map;
+  }
+
+}
@@ -18,5 +18,13 @@ public interface BranchEvaluator {
    * @return The branch names affected by the provided ref changes.
    */
   Iterable<String> getBranches(Collection<RefChange> refChanges);
+
+  /**
+   * Get the branch affected by a single ref change.
+   * @param refChange The change to a single ref.
+   * @return The branch name, or null if the ref change deletes a branch or
+   *         isn't about a branch at all.
+   */
+  String getBranch(RefChange refChange);
   
 }
@@ -0,0 +1,360 @@
+package com.nerdwin15.stash.webhook.service;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A precompiled matcher for the branch black/whitelist.
+ *
+ * Exact branch names are kept in a hash set and trailing-wildcard patterns
+ * ({@code release*}) in a prefix trie, both case folded when compiled.  Any
+ * other glob ({@code release/*}{@code /hotfix-*}) or regular expression
+ * ({@code regex:feature/[A-Z]+-\d+}) is translated and merged into a single
+ * case-insensitive pattern.  Checking a branch then costs a single lookup, a
+ * single walk of the trie and a single call into the regular expression
+ * engine, although the engine still tries each merged pattern in turn.
+ *
+ * Globs are matched like changed-path globs: {@code *} and {@code ?} stay
+ * within a {@code /} separated segment, while {@code **} crosses segments.
+ * A pattern whose only wildcard is a trailing {@code *} keeps its original
+ * meaning of any branch starting with the rest, whatever its depth.
+ */
+public class BranchMatcher {
+
+  /**
+   * The prefix marking a pattern as a regular expression.  Colons can't appear
+   * in branch names, so it is never mistaken for one.
+   */
+  public static final String REGEX_PREFIX = "regex:";
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(BranchMatcher.class);
+
+  private static final BranchMatcher EMPTY = new BranchMatcher();
+  private static final int MAX_PATTERN_LENGTH = 256;
+
+  private final Set<String> exact = new HashSet<String>();
+  private final Node prefixes = new Node();
+  private Pattern combined;
+
+  private BranchMatcher() {
+  }
+
+  /**
+   * Compile a space separated list of branch patterns.
+   * @param patterns The patterns, may be null
+   * @return The compiled matcher
+   */
+  public static BranchMatcher compile(String patterns) {
+    if (patterns == null)
+      return EMPTY;
+    return compile(patterns.trim().split("\\s+"));
+  }
+
+  /**
+   * Compile the provided branch patterns.
+   * @param patterns The patterns
+   * @return The compiled matcher
+   */
+  public static BranchMatcher compile(String... patterns) {
+    BranchMatcher matcher = new BranchMatcher();
+    StringBuilder alternatives = new StringBuilder();
+    for (String pattern : patterns) {
+      if (pattern.length() == 0)
+        continue;
+      String error = validate(pattern);
+      if (error != null) {
+        LOGGER.warn("Ignoring branch pattern '{}': {}", pattern, error);
+        continue;
+      }
+
+      String regex;
+      if (pattern.startsWith(REGEX_PREFIX)) {
+        regex = pattern.substring(REGEX_PREFIX.length());
+      } else {
+        pattern = pattern.toLowerCase(Locale.ENGLISH);
+        int wildcard = firstWildcard(pattern);
+        if (wildcard == -1) {
+          matcher.exact.add(pattern);
+          continue;
+        }
+        if (wildcard == pattern.length() - 1 && pattern.endsWith("*")) {
+          matcher.addPrefix(pattern.substring(0, wildcard));
+          continue;
+        }
+        regex = PathMatcher.globToRegex(pattern);
+      }
+
+      if (alternatives.length() > 0)
+        alternatives.append('|');
+      alternatives.append("(?:").append(regex).append(')');
+    }
+
+    if (alternatives.length() > 0)
+      matcher.combined = Pattern.compile(alternatives.toString(),
+          Pattern.CASE_INSENSITIVE);
+    return matcher;
+  }
+
+  /**
+   * Check whether a single pattern is usable.  Regular expressions must
+   * compile and must not use constructs that can make matching take
+   * exponential or high polynomial time: backreferences, lookaround, nested
+   * quantifiers, repeated alternations and runs of more than two adjacent
+   * repetitions that can match the same text.  Two such repetitions, as in
+   * {@code [a-z]+.*}, take at most quadratic time and are allowed.
+   * @param pattern The pattern to check
+   * @return A description of the problem, or null if the pattern is fine
+   */
+  public static String validate(String pattern) {
+    if (pattern.length() > MAX_PATTERN_LENGTH)
+      return "Pattern is longer than " + MAX_PATTERN_LENGTH + " characters";
+    if (!pattern.startsWith(REGEX_PREFIX))
+      return null;
+
+    String regex = pattern.substring(REGEX_PREFIX.length());
+    if (regex.length() == 0)
+      return "Regular expression is empty";
+    try {
+      Pattern.compile(regex);
+    } catch (PatternSyntaxException e) {
+      return "Invalid regular expression: " + e.getDescription();
+    }
+    return checkBacktracking(regex);
+  }
+
+  /**
+   * Does any of the branches match?
+   * @param branches The branches to check
+   * @return True if at least one branch matches a pattern
+   */
+  public boolean matchesAny(Iterable<String> branches) {
+    for (String branch : branches) {
+      if (matches(branch))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Does the branch match?
+   * @param branch The branch to check
+   * @return True if the branch matches a pattern
+   */
+  public boolean matches(String branch) {
+    String folded = branch.toLowerCase(Locale.ENGLISH);
+    return exact.contains(folded) || matchesPrefix(folded)
+        || (combined != null && combined.matcher(branch).matches());
+  }
+
+  private boolean matchesPrefix(String folded) {
+    Node node = prefixes;
+    for (int i = 0; !node.terminal; i++) {
+      if (i == folded.length())
+        return false;
+      node = node.children.get(folded.charAt(i));
+      if (node == null)
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Rejects the constructs that make a backtracking matcher blow up.  The
+   * expression is known to compile, so escapes, classes and groups are well
+   * formed.
+   */
+  private static String checkBacktracking(String regex) {
+    // One entry per open group: where it starts, and does it contain a
+    // quantifier or an alternation?
+    int[] groupStart = new int[regex.length() + 1];
+    boolean[] quantified = new boolean[regex.length() + 1];
+    boolean[] alternation = new boolean[regex.length() + 1];
+    int depth = 0;
+    // The previous atom, if it repeats, and how many repetitions in a row
+    // could have matched the same text
+    String previous = null;
+    int overlapping = 0;
+    for (int i = 0; i < regex.length(); i++) {
+      char c = regex.charAt(i);
+      int atomStart = i;
+      boolean group = false;
+      switch (c) {
+      case '\\':
+        char next = regex.charAt(++i);
+        if ((next >= '1' && next <= '9') || next == 'k')
+          return "Backreferences are not allowed";
+        if (next == 'Q') {
+          // Quoted text is literal; a quantifier only applies to its last
+          // character
+          int quoteEnd = regex.indexOf("\\E", i);
+          i = (quoteEnd < 0) ? regex.length() - 1 : quoteEnd + 1;
+        }
+        if ((next == 'p' || next == 'P') && regex.startsWith("{", i + 1))
+          i = regex.indexOf('}', i);
+        break;
+      case '[':
+        i = skipClass(regex, i);
+        break;
+      case '(':
+        if (regex.startsWith("(?=", i) || regex.startsWith("(?!", i)
+            || regex.startsWith("(?<=", i) || regex.startsWith("(?<!", i))
+          return "Lookaround is not allowed";
+        groupStart[++depth] = i;
+        quantified[depth] = false;
+        alternation[depth] = false;
+        if (regex.startsWith("(?", i))
+          i = skipGroupFlags(regex, i);
+        previous = null;
+        overlapping = 0;
+        continue;
+      case '|':
+        alternation[depth] = true;
+        previous = null;
+        overlapping = 0;
+        continue;
+      case '^':
+      case '$':
+        previous = null;
+        overlapping = 0;
+        continue;
+      case ')':
+        atomStart = groupStart[depth];
+        group = true;
+        depth--;
+        break;
+      default:
+        break;
+      }
+
+      String atom = regex.substring(atomStart, i + 1);
+      int end = skipQuantifier(regex, i + 1);
+      boolean repeats = end > i + 1 && isRepeating(regex, i + 1);
+      boolean innerQuantified = group && quantified[depth + 1];
+      if (repeats && innerQuantified)
+        return "Nested quantifiers are not allowed";
+      if (repeats && group && alternation[depth + 1])
+        return "Repeated alternations are not allowed";
+      if (!repeats)
+        overlapping = 0;
+      else if (previous != null && (previous.equals(atom)
+          || ".".equals(previous) || ".".equals(atom)))
+        overlapping++;
+      else
+        overlapping = 1;
+      if (overlapping > 2)
+        return "More than two adjacent repetitions of the same text are not "
+            + "allowed";
+
+      if (end > i + 1 || innerQuantified)
+        quantified[depth] = true;
+      previous = repeats ? atom : null;
+      i = end - 1;
+    }
+    return null;
+  }
+
+  /**
+   * Skips the flags of a non-capturing group, such as {@code (?:} or
+   * {@code (?i:}, returning the index of their last character.
+   */
+  private static int skipGroupFlags(String regex, int open) {
+    int i = open + 2;
+    while (i < regex.length() && regex.charAt(i) != ':'
+        && regex.charAt(i) != ')')
+      i++;
+    return (i < regex.length() && regex.charAt(i) == ':') ? i : open + 1;
+  }
+
+  /**
+   * Skips the quantifier at the index, if any, including a lazy or possessive
+   * modifier, returning the index just after it.
+   */
+  private static int skipQuantifier(String regex, int i) {
+    if (i >= regex.length())
+      return i;
+    char c = regex.charAt(i);
+    int end;
+    if (c == '*' || c == '+' || c == '?')
+      end = i + 1;
+    else if (c == '{')
+      end = regex.indexOf('}', i) + 1;
+    else
+      return i;
+    if (end < regex.length()
+        && (regex.charAt(end) == '?' || regex.charAt(end) == '+'))
+      end++;
+    return end;
+  }
+
+  /**
+   * Does the quantifier at the index let its atom match more than once?
+   * {@code ?} and {@code {n}} don't.
+   */
+  private static boolean isRepeating(String regex, int i) {
+    char c = regex.charAt(i);
+    if (c == '*' || c == '+')
+      return true;
+    if (c != '{')
+      return false;
+    String bounds = regex.substring(i + 1, regex.indexOf('}', i));
+    return bounds.indexOf(',') >= 0 || Integer.parseInt(bounds) > 1;
+  }
+
+  private static int skipClass(String regex, int open) {
+    int depth = 0;
+    for (int i = open; i < regex.length(); i++) {
+      char c = regex.charAt(i);
+      if (c == '\\')
+        i++;
+      else if (c == '[')
+        depth++;
+      else if (c == ']' && i > open + 1 && --depth == 0)
+        return i;
+    }
+    return regex.length();
+  }
+
+  private static int firstWildcard(String glob) {
+    for (int i = 0; i < glob.length(); i++) {
+      char c = glob.charAt(i);
+      if (c == '*' || c == '?')
+        return i;
+    }
+    return -1;
+  }
+
+  private void addPrefix(String prefix) {
+    Node node = prefixes;
+    for (int i = 0; i < prefix.length() && !node.terminal; i++) {
+      Character c = prefix.charAt(i);
+      Node child = node.children.get(c);
+      if (child == null) {
+        child = new Node();
+        node.children.put(c, child);
+      }
+      node = child;
+    }
+    // A shorter prefix already covers everything below it
+    node.terminal = true;
+    node.children.clear();
+  }
+
+  /**
+   * A node of the prefix trie.  A terminal node ends a prefix, so every branch
+   * reaching it matches.
+   */
+  private static class Node {
+    private final Map<Character, Node> children =
+        new HashMap<Character, Node>();
+    private boolean terminal;
+  }
+}
@@ -1,12 +1,11 @@
 package com.nerdwin15.stash.webhook.service;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 import com.atlassian.stash.repository.RefChange;
 import com.atlassian.stash.repository.RefChangeType;
-import com.google.common.base.Function;
-import com.google.common.base.Predicate;
-import com.google.common.collect.Iterables;
 
 /**
  * A concrete implementation of the {@link BranchEvaluator} that uses sample
@@ -14,6 +13,9 @@ import com.google.common.collect.Iterables;
  * 
  * https://bitbucket.org/atlassian/stash-webhook-plugin/src/a18713fad2959e670e355df64c840b79a806d8ab/src/main/java/com/atlassian/stash/plugin/webook/WebHook.java?at=master
  *
+ * The branch names are worked out once, so iterating over them repeatedly
+ * doesn't keep stripping the ref prefix.
+ *
  * @author Michael Irwin (mikesir87)
  */
 public class ConcreteBranchEvaluator implements BranchEvaluator {
@@ -25,21 +27,26 @@ public class ConcreteBranchEvaluator implements BranchEvaluator {
    */
   @Override
   public Iterable<String> getBranches(Collection<RefChange> refChanges) {
-    return Iterables.transform(
-        Iterables.filter(refChanges, new Predicate<RefChange>() {
-          @Override
-          public boolean apply(RefChange input) {
-            // We only care about non-deleted branches
-            return input.getType() != RefChangeType.DELETE
-                && input.getRefId().startsWith(REFS_HEADS);
-          }
-        }), new Function<RefChange, String>() {
-          @Override
-          public String apply(RefChange input) {
-            // Not 100% sure whether this is _just_ branch or is full ref?
-            return input.getRefId().replace(REFS_HEADS, "");
-          }
-        });
+    List<String> branches = new ArrayList<String>(refChanges.size());
+    for (RefChange refChange : refChanges) {
+      String branch = getBranch(refChange);
+      if (branch != null)
+        branches.add(branch);
+    }
+    return branches;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public String getBranch(RefChange refChange) {
+    // We only care about non-deleted branches
+    if (refChange.getType() == RefChangeType.DELETE)
+      return null;
+    String refId = refChange.getRefId();
+    return refId.startsWith(REFS_HEADS)
+        ? refId.substring(REFS_HEADS.length()) : null;
   }
 
 }
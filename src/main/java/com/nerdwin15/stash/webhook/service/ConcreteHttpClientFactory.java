@@ -2,40 +2,123 @@ package com.nerdwin15.stash.webhook.service;
 
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
 
+import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
-import org.apache.http.conn.ssl.SSLSocketFactory;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.BasicClientConnectionManager;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.atlassian.util.concurrent.ThreadFactories;
 
 /**
- * An implementation of the {@link HttpClientFactory} that returns a
- * DefaultHttpClient that is either not configured at all (non-ssl and default
- * trusts) or configured to accept all certificates.  If told to accept all
- * certificates, an unsafe X509 trust manager is used.
- * 
- * If setup of the "trust-all" HttpClient fails, a non-configured HttpClient
- * is returned.
- * 
+ * An implementation of the {@link HttpClientFactory} that hands out
+ * long-lived HttpClients that are either not configured at all (non-ssl
+ * and default trusts) or configured to accept all certificates.  If told to
+ * accept all certificates, an unsafe X509 trust manager is used.
+ *
+ * Both clients are backed by a pooled connection manager, so connections to
+ * the same Jenkins instance are kept alive and reused between notifications.
+ * Idle and expired connections are evicted periodically.  The pools are only
+ * released when {@link #shutdown()} is called.
+ *
+ * The SSL context and socket factories used by the trust-all client are built
+ * once and reused, with a client session cache so that repeated handshakes to
+ * the same Jenkins instance can be resumed.  The non-blocking engine shares
+ * the same SSL context.
+ *
  * @author Michael Irwin (mikesir87)
  *
  */
 public class ConcreteHttpClientFactory implements HttpClientFactory {
 
-  private static final Integer SSL_PORT = 443;
-  
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(ConcreteHttpClientFactory.class);
+
+  private static final int MAX_TOTAL =
+      Integer.getInteger("jenkins.webhook.http.maxTotal", 50);
+  private static final int MAX_PER_ROUTE =
+      Integer.getInteger("jenkins.webhook.http.maxPerRoute", 10);
+  private static final long KEEP_ALIVE_MS =
+      Long.getLong("jenkins.webhook.http.keepAliveMs", 30000L);
+  private static final long IDLE_TIMEOUT_MS =
+      Long.getLong("jenkins.webhook.http.idleTimeoutMs", 30000L);
+  private static final long EVICTION_INTERVAL_MS =
+      Long.getLong("jenkins.webhook.http.evictionIntervalMs", 5000L);
+  private static final int CONNECT_TIMEOUT_MS =
+      Integer.getInteger("jenkins.webhook.http.connectTimeoutMs", 10000);
+  private static final int SOCKET_TIMEOUT_MS =
+      Integer.getInteger("jenkins.webhook.http.socketTimeoutMs", 30000);
+  private static final int SSL_SESSION_CACHE_SIZE =
+      Integer.getInteger("jenkins.webhook.ssl.sessionCacheSize", 100);
+  private static final int SSL_SESSION_TIMEOUT_S =
+      Integer.getInteger("jenkins.webhook.ssl.sessionTimeoutSeconds", 3600);
+
+  private final List<PoolingHttpClientConnectionManager> connectionManagers =
+      new CopyOnWriteArrayList<PoolingHttpClientConnectionManager>();
+  private HttpClient defaultClient;
+  private HttpClient trustAllClient;
+  private ScheduledExecutorService evictionExecutor;
+  private SSLContext trustAllSslContext;
+  private Registry<ConnectionSocketFactory> trustAllSocketFactories;
+
   /**
    * {@inheritDoc}
    */
-  public HttpClient getHttpClient(Boolean usingSsl, Boolean trustAllCerts) 
-      throws Exception {
-    return createHttpClient(usingSsl && trustAllCerts);
+  public synchronized HttpClient getHttpClient(Boolean usingSsl,
+      Boolean trustAllCerts) throws Exception {
+    if (usingSsl && trustAllCerts) {
+      if (trustAllClient == null)
+        trustAllClient = createHttpClient(true);
+      return trustAllClient;
+    }
+
+    if (defaultClient == null)
+      defaultClient = createHttpClient(false);
+    return defaultClient;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public synchronized SSLContext getTrustAllSslContext() throws Exception {
+    if (trustAllSslContext == null)
+      trustAllSslContext = createContext();
+    return trustAllSslContext;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public synchronized void shutdown() {
+    if (evictionExecutor != null) {
+      evictionExecutor.shutdownNow();
+      evictionExecutor = null;
+    }
+    for (PoolingHttpClientConnectionManager manager : connectionManagers) {
+      manager.shutdown();
+    }
+    connectionManagers.clear();
+    defaultClient = null;
+    trustAllClient = null;
   }
 
   /**
@@ -45,11 +128,14 @@ public class ConcreteHttpClientFactory implements HttpClientFactory {
    * @return The requested HttpClient
    * @throws Exception
    */
-  protected HttpClient createHttpClient(Boolean useConfigured) 
+  protected HttpClient createHttpClient(Boolean useConfigured)
       throws Exception {
     if (useConfigured)
       return configuredClient();
-    return new DefaultHttpClient();
+    return pooledClient(RegistryBuilder.<ConnectionSocketFactory>create()
+        .register("http", PlainConnectionSocketFactory.getSocketFactory())
+        .register("https", SSLConnectionSocketFactory.getSocketFactory())
+        .build());
   }
 
   /**
@@ -58,10 +144,48 @@ public class ConcreteHttpClientFactory implements HttpClientFactory {
    * @throws Exception
    */
   protected HttpClient configuredClient() throws Exception {
-    SSLContext sslContext = createContext();
-    SchemeRegistry schemeRegistry = createScheme(sslContext);
-    return new DefaultHttpClient(
-        new BasicClientConnectionManager(schemeRegistry));
+    return pooledClient(getTrustAllSocketFactories());
+  }
+
+  /**
+   * Gets the socket factories used by the trust-all client, creating the SSL
+   * context and socket factory on first use.  These are kept across
+   * {@link #shutdown()} since they hold no connections.
+   * @return The cached trust-all socket factories, keyed by scheme
+   * @throws Exception
+   */
+  protected synchronized Registry<ConnectionSocketFactory>
+      getTrustAllSocketFactories() throws Exception {
+    if (trustAllSocketFactories == null)
+      trustAllSocketFactories = createSocketFactories(getTrustAllSslContext());
+    return trustAllSocketFactories;
+  }
+
+  /**
+   * Creates a HttpClient backed by a pooled connection manager that keeps
+   * connections alive between requests.
+   * @param socketFactories The socket factories the connection manager uses,
+   *        keyed by scheme
+   * @return The pooled client
+   */
+  protected HttpClient pooledClient(
+      Registry<ConnectionSocketFactory> socketFactories) {
+    PoolingHttpClientConnectionManager manager =
+        new PoolingHttpClientConnectionManager(socketFactories);
+    manager.setMaxTotal(MAX_TOTAL);
+    manager.setDefaultMaxPerRoute(MAX_PER_ROUTE);
+    connectionManagers.add(manager);
+    startEviction();
+
+    return HttpClients.custom()
+        .setConnectionManager(manager)
+        .setKeepAliveStrategy(new KeepAliveStrategy())
+        // Never wait forever on a Jenkins that has stopped responding
+        .setDefaultRequestConfig(RequestConfig.custom()
+            .setConnectTimeout(CONNECT_TIMEOUT_MS)
+            .setSocketTimeout(SOCKET_TIMEOUT_MS)
+            .build())
+        .build();
   }
 
   /**
@@ -70,28 +194,74 @@ public class ConcreteHttpClientFactory implements HttpClientFactory {
    * @throws NoSuchAlgorithmException
    * @throws KeyManagementException
    */
-  protected SSLContext createContext() throws NoSuchAlgorithmException, 
+  protected SSLContext createContext() throws NoSuchAlgorithmException,
       KeyManagementException {
     SSLContext sslContext = SSLContext.getInstance("TLS");
+    // A null SecureRandom lets the provider use its shared, seeded instance
     sslContext.init(
-        null, 
-        new TrustManager[] { new UnsafeX509TrustManager() }, 
-        new SecureRandom());
+        null,
+        new TrustManager[] { new UnsafeX509TrustManager() },
+        null);
+    sslContext.getClientSessionContext()
+        .setSessionCacheSize(SSL_SESSION_CACHE_SIZE);
+    sslContext.getClientSessionContext()
+        .setSessionTimeout(SSL_SESSION_TIMEOUT_S);
     return sslContext;
   }
 
   /**
-   * Creates the SSL SchemeRegistry
-   * @param sslContext The SSL Context the scheme registry should use.
-   * @return The SSL SchemeRegistry
+   * Creates the socket factories of the trust-all client
+   * @param sslContext The SSL Context the https socket factory should use.
+   * @return The socket factories, keyed by scheme
    * @throws Exception
    */
-  protected SchemeRegistry createScheme(SSLContext sslContext) 
-      throws Exception {
-    SchemeRegistry schemeRegistry = new SchemeRegistry();
-    schemeRegistry.register(
-        new Scheme("https", SSL_PORT, new SSLSocketFactory(sslContext)));
-    return schemeRegistry;
+  protected Registry<ConnectionSocketFactory> createSocketFactories(
+      SSLContext sslContext) throws Exception {
+    return RegistryBuilder.<ConnectionSocketFactory>create()
+        .register("http", PlainConnectionSocketFactory.getSocketFactory())
+        .register("https", new SSLConnectionSocketFactory(sslContext))
+        .build();
+  }
+
+  private synchronized void startEviction() {
+    if (evictionExecutor != null)
+      return;
+    evictionExecutor = Executors.newSingleThreadScheduledExecutor(
+        ThreadFactories.namedThreadFactory("JenkinsWebhookConnectionEvictor",
+            ThreadFactories.Type.DAEMON));
+    evictionExecutor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        for (PoolingHttpClientConnectionManager manager
+            : connectionManagers) {
+          try {
+            manager.closeExpiredConnections();
+            manager.closeIdleConnections(IDLE_TIMEOUT_MS,
+                TimeUnit.MILLISECONDS);
+          } catch (Exception e) {
+            LOGGER.warn("Unable to evict idle Jenkins connections", e);
+          }
+        }
+      }
+    }, EVICTION_INTERVAL_MS, EVICTION_INTERVAL_MS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Honors the keep-alive header sent by Jenkins, but falls back to a bounded
+   * keep-alive duration when none is provided.
+   */
+  private static class KeepAliveStrategy
+      implements ConnectionKeepAliveStrategy {
+
+    private final ConnectionKeepAliveStrategy delegate =
+        new DefaultConnectionKeepAliveStrategy();
+
+    @Override
+    public long getKeepAliveDuration(HttpResponse response,
+        HttpContext context) {
+      long duration = delegate.getKeepAliveDuration(response, context);
+      return duration > 0 ? duration : KEEP_ALIVE_MS;
+    }
   }
 
-}
\ No newline at end of file
+}
@@ -1,15 +1,29 @@
 package com.nerdwin15.stash.webhook.service;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.atlassian.event.api.EventListener;
+import com.atlassian.stash.event.RepositoryDeletedEvent;
+import com.atlassian.stash.event.RepositoryHookDisabledEvent;
+import com.atlassian.stash.event.RepositoryHookEnabledEvent;
+import com.atlassian.stash.event.RepositoryHookEvent;
+import com.atlassian.stash.event.RepositoryHookSettingsChangedEvent;
 import com.atlassian.stash.hook.repository.RepositoryHook;
 import com.atlassian.stash.hook.repository.RepositoryHookService;
 import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryService;
 import com.atlassian.stash.setting.Settings;
 import com.atlassian.stash.user.Permission;
 import com.atlassian.stash.user.SecurityService;
 import com.atlassian.stash.util.Operation;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.nerdwin15.stash.webhook.Notifier;
 
 /**
@@ -17,6 +31,10 @@ import com.nerdwin15.stash.webhook.Notifier;
  * a SecurityService to ensure that the current user has the ability to retrieve
  * the webhook settings.
  * 
+ * Retrieved settings are cached per repository and invalidated whenever the
+ * hook is enabled, disabled or reconfigured, or the repository is deleted.
+ * Entries also expire after a while, in case an event is ever missed.
+ * 
  * @author Michael Irwin (mikesir87)
  */
 public class ConcreteSettingsService implements SettingsService {
@@ -24,17 +42,30 @@ public class ConcreteSettingsService implements SettingsService {
   private static final Logger LOGGER = 
       LoggerFactory.getLogger(Notifier.class);
 
+  private static final long CACHE_SIZE =
+      Long.getLong("jenkins.webhook.settings.cacheSize", 1000L);
+  private static final long CACHE_TTL_SECONDS =
+      Long.getLong("jenkins.webhook.settings.cacheTtlSeconds", 300L);
+
   private RepositoryHookService hookService;
+  private RepositoryService repositoryService;
   private SecurityService securityService;
+  private final Cache<Integer, SettingsSnapshot> cache = CacheBuilder
+      .newBuilder()
+      .maximumSize(CACHE_SIZE)
+      .expireAfterWrite(CACHE_TTL_SECONDS, TimeUnit.SECONDS)
+      .build();
   
   /**
    * Create a new instance.
    * @param hookService The repository hook service
+   * @param repositoryService The repository service
    * @param securityService The security service
    */
   public ConcreteSettingsService(RepositoryHookService hookService,
-      SecurityService securityService) {
+      RepositoryService repositoryService, SecurityService securityService) {
     this.hookService = hookService;
+    this.repositoryService = repositoryService;
     this.securityService = securityService;
   }
   
@@ -43,18 +74,7 @@ public class ConcreteSettingsService implements SettingsService {
    */
   @Override
   public RepositoryHook getRepositoryHook(final Repository repository) {
-    try {
-      return securityService.doWithPermission("Retrieving repository hook", 
-          Permission.REPO_ADMIN, new Operation<RepositoryHook, Exception>() {
-        @Override
-        public RepositoryHook perform() throws Exception {
-          return hookService.getByKey(repository, Notifier.KEY);
-        } 
-      });
-    } catch (Exception e) {
-      LOGGER.error("Unexpected exception trying to get repository hook", e);
-      return null;
-    }
+    return getSnapshot(repository).getHook();
   }
   
   /**
@@ -62,17 +82,126 @@ public class ConcreteSettingsService implements SettingsService {
    */
   @Override
   public Settings getSettings(final Repository repository) {
+    return getSnapshot(repository).getSettings();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public SettingsSnapshot getSnapshot(final Repository repository) {
     try {
-      return securityService.doWithPermission("Retrieving settings", 
-          Permission.REPO_ADMIN, new Operation<Settings, Exception>() {
+      return cache.get(repository.getId(), new Callable<SettingsSnapshot>() {
         @Override
-        public Settings perform() throws Exception {
-          return hookService.getSettings(repository, Notifier.KEY);
-        } 
+        public SettingsSnapshot call() throws Exception {
+          return new SettingsSnapshot(loadRepositoryHook(repository),
+              loadSettings(repository));
+        }
       });
+    } catch (ExecutionException e) {
+      // Failures aren't cached, so the next call tries again
+      LOGGER.error("Unexpected exception trying to get webhook settings",
+          e.getCause());
+      return new SettingsSnapshot(null, null);
+    } catch (UncheckedExecutionException e) {
+      // Such as an AuthorisationException from the security service
+      LOGGER.error("Unexpected exception trying to get webhook settings",
+          e.getCause());
+      return new SettingsSnapshot(null, null);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public SettingsSnapshot getSnapshot(int repositoryId) {
+    SettingsSnapshot snapshot = cache.getIfPresent(repositoryId);
+    if (snapshot != null)
+      return snapshot;
+
+    Repository repository;
+    try {
+      repository = loadRepository(repositoryId);
     } catch (Exception e) {
       LOGGER.error("Unexpected exception trying to get webhook settings", e);
-      return null;
+      return new SettingsSnapshot(null, null);
     }
+    return (repository == null) ? new SettingsSnapshot(null, null)
+        : getSnapshot(repository);
+  }
+
+  /**
+   * Drop the cached settings when the hook is enabled.
+   * @param event The hook enabled event
+   */
+  @EventListener
+  public void onHookEnabled(RepositoryHookEnabledEvent event) {
+    invalidate(event);
+  }
+
+  /**
+   * Drop the cached settings when the hook is disabled.
+   * @param event The hook disabled event
+   */
+  @EventListener
+  public void onHookDisabled(RepositoryHookDisabledEvent event) {
+    invalidate(event);
+  }
+
+  /**
+   * Drop the cached settings when the hook settings are saved.
+   * @param event The settings changed event
+   */
+  @EventListener
+  public void onHookSettingsChanged(RepositoryHookSettingsChangedEvent event) {
+    invalidate(event);
+  }
+
+  /**
+   * Drop the cached settings of a deleted repository.
+   * @param event The repository deleted event
+   */
+  @EventListener
+  public void onRepositoryDeleted(RepositoryDeletedEvent event) {
+    cache.invalidate(event.getRepository().getId());
+  }
+
+  private void invalidate(RepositoryHookEvent event) {
+    if (Notifier.KEY.equals(event.getRepositoryHookKey()))
+      cache.invalidate(event.getRepository().getId());
+  }
+
+  private Repository loadRepository(final int repositoryId)
+      throws Exception {
+    return securityService.doWithPermission("Retrieving repository",
+        Permission.REPO_READ, new Operation<Repository, Exception>() {
+      @Override
+      public Repository perform() throws Exception {
+        return repositoryService.getById(repositoryId);
+      }
+    });
+  }
+
+  private RepositoryHook loadRepositoryHook(final Repository repository)
+      throws Exception {
+    return securityService.doWithPermission("Retrieving repository hook", 
+        Permission.REPO_ADMIN, new Operation<RepositoryHook, Exception>() {
+      @Override
+      public RepositoryHook perform() throws Exception {
+        return hookService.getByKey(repository, Notifier.KEY);
+      } 
+    });
+  }
+
+  private Settings loadSettings(final Repository repository)
+      throws Exception {
+    return securityService.doWithPermission("Retrieving settings", 
+        Permission.REPO_ADMIN, new Operation<Settings, Exception>() {
+      @Override
+      public Settings perform() throws Exception {
+        return hookService.getSettings(repository, Notifier.KEY);
+      } 
+    });
   }
 }
@@ -1,5 +1,7 @@
 package com.nerdwin15.stash.webhook.service;
 
+import javax.net.ssl.SSLContext;
+
 import org.apache.http.client.HttpClient;
 
 /**
@@ -19,4 +21,19 @@ public interface HttpClientFactory {
    */
   HttpClient getHttpClient(Boolean usingSsl, Boolean trustAllCerts)
       throws Exception;
+
+  /**
+   * Gets the SSL context used to accept all certificates.  It is created once
+   * and shared by every client that trusts all certificates, so they also
+   * share its session cache.
+   * @return The trust-all SSL context
+   * @throws Exception Any exception, but shouldn't happen.
+   */
+  SSLContext getTrustAllSslContext() throws Exception;
+
+  /**
+   * Release every HttpClient handed out by this factory, along with their
+   * pooled connections.
+   */
+  void shutdown();
 }
\ No newline at end of file
@@ -0,0 +1,106 @@
+package com.nerdwin15.stash.webhook.service;
+
+import java.util.regex.Pattern;
+
+/**
+ * A precompiled matcher for the changed-path include/exclude globs.
+ *
+ * All include globs are merged into a single pattern, as are all exclude
+ * globs, so checking a path costs at most two matches no matter how many
+ * globs there are.  Unlike branch names, paths are matched case sensitively.
+ */
+public class PathMatcher {
+
+  private static final PathMatcher EMPTY = new PathMatcher(null, null);
+
+  private final Pattern includes;
+  private final Pattern excludes;
+
+  private PathMatcher(Pattern includes, Pattern excludes) {
+    this.includes = includes;
+    this.excludes = excludes;
+  }
+
+  /**
+   * Compile space separated lists of include and exclude globs.
+   * @param includes The globs of paths that are relevant, may be null to
+   *        include every path
+   * @param excludes The globs of paths that are never relevant, may be null
+   * @return The compiled matcher
+   */
+  public static PathMatcher compile(String includes, String excludes) {
+    Pattern compiledIncludes = compile(includes);
+    Pattern compiledExcludes = compile(excludes);
+    if (compiledIncludes == null && compiledExcludes == null)
+      return EMPTY;
+    return new PathMatcher(compiledIncludes, compiledExcludes);
+  }
+
+  /**
+   * Are any globs configured?  If not, every path is relevant and there is
+   * no need to look at the changes at all.
+   * @return True if there are include or exclude globs
+   */
+  public boolean isConfigured() {
+    return includes != null || excludes != null;
+  }
+
+  /**
+   * Is a change to the path relevant?
+   * @param path The path, relative to the repository root
+   * @return True if the path is included and not excluded
+   */
+  public boolean isRelevant(String path) {
+    return (includes == null || includes.matcher(path).matches())
+        && (excludes == null || !excludes.matcher(path).matches());
+  }
+
+  private static Pattern compile(String globs) {
+    if (globs == null || globs.trim().length() == 0)
+      return null;
+
+    StringBuilder alternatives = new StringBuilder();
+    for (String glob : globs.trim().split("\\s+")) {
+      if (alternatives.length() > 0)
+        alternatives.append('|');
+      // Paths are relative to the root, so a leading slash is redundant
+      if (glob.startsWith("/"))
+        glob = glob.substring(1);
+      alternatives.append("(?:").append(globToRegex(glob)).append(')');
+    }
+    return Pattern.compile(alternatives.toString());
+  }
+
+  /**
+   * Translate a glob into a regular expression.  {@code *} matches within a
+   * path segment, {@code **} across segments, {@code **}{@code /} any number
+   * of leading directories including none, and {@code ?} a single character
+   * other than {@code /}.
+   * @param glob The glob
+   * @return The equivalent regular expression
+   */
+  static String globToRegex(String glob) {
+    StringBuilder regex = new StringBuilder();
+    for (int i = 0; i < glob.length(); i++) {
+      char c = glob.charAt(i);
+      if (c == '*') {
+        if (glob.startsWith("**/", i)) {
+          regex.append("(?:.*/)?");
+          i += 2;
+        } else if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+          regex.append(".*");
+          i++;
+        } else {
+          regex.append("[^/]*");
+        }
+      } else if (c == '?') {
+        regex.append("[^/]");
+      } else {
+        if (!Character.isLetterOrDigit(c))
+          regex.append('\\');
+        regex.append(c);
+      }
+    }
+    return regex.toString();
+  }
+}
@@ -24,4 +24,22 @@ public interface SettingsService {
    * @return The webhook settings for the repository. Null if no settings set.
    */
   Settings getSettings(Repository repository);
+
+  /**
+   * Get a snapshot of both the hook and the webhook settings for the provided
+   * repository.
+   * @param repository The Repository
+   * @return The snapshot, never null
+   */
+  SettingsSnapshot getSnapshot(Repository repository);
+
+  /**
+   * Get a snapshot of both the hook and the webhook settings for the
+   * repository with the provided id, such as when replaying a notification
+   * long after the event that caused it.
+   * @param repositoryId The id of the repository
+   * @return The snapshot, never null.  It isn't enabled if the repository no
+   *         longer exists
+   */
+  SettingsSnapshot getSnapshot(int repositoryId);
 }
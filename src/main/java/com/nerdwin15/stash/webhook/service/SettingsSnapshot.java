@@ -0,0 +1,192 @@
+package com.nerdwin15.stash.webhook.service;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import com.atlassian.stash.hook.repository.RepositoryHook;
+import com.atlassian.stash.setting.Settings;
+import com.nerdwin15.stash.webhook.Notifier;
+
+/**
+ * An immutable snapshot of the webhook configuration of a single repository,
+ * as it was when it was retrieved.  The settings are parsed once when the
+ * snapshot is taken, and patterns such as the branch black/whitelist and the
+ * ignored committers are compiled, so a single event is judged against a
+ * single consistent configuration without looking anything up again.
+ */
+public class SettingsSnapshot {
+
+  private final RepositoryHook hook;
+  private final Settings settings;
+  private final String jenkinsBase;
+  private final String cloneUrl;
+  private final boolean ignoreCerts;
+  private final boolean omitHashCode;
+  private final boolean notifyAllBranches;
+  private final String branchOptions;
+  private final BranchMatcher branchMatcher;
+  private final Set<String> ignoredCommitters;
+  private final PathMatcher pathMatcher;
+  private final String skipMarker;
+
+  /**
+   * Create a new snapshot
+   * @param hook The repository hook, or null if it couldn't be found
+   * @param settings The webhook settings, or null if none are set
+   */
+  public SettingsSnapshot(RepositoryHook hook, Settings settings) {
+    this.hook = hook;
+    this.settings = settings;
+    if (settings == null) {
+      this.jenkinsBase = null;
+      this.cloneUrl = null;
+      this.ignoreCerts = false;
+      this.omitHashCode = false;
+      this.notifyAllBranches = false;
+      this.branchOptions = null;
+      this.branchMatcher = BranchMatcher.compile((String) null);
+      this.ignoredCommitters = Collections.emptySet();
+      this.pathMatcher = PathMatcher.compile(null, null);
+      this.skipMarker = null;
+      return;
+    }
+
+    String base = settings.getString(Notifier.JENKINS_BASE);
+    this.jenkinsBase = (base == null) ? null : base.replaceFirst("/$", "");
+    this.cloneUrl = settings.getString(Notifier.CLONE_URL);
+    this.ignoreCerts = settings.getBoolean(Notifier.IGNORE_CERTS, false);
+    this.omitHashCode = settings.getBoolean(Notifier.OMIT_HASH_CODE, false);
+    this.notifyAllBranches =
+        settings.getBoolean(Notifier.NOTIFY_ALL_BRANCHES, false);
+    this.branchOptions = settings.getString(Notifier.BRANCH_OPTIONS);
+    this.branchMatcher = BranchMatcher.compile(
+        settings.getString(Notifier.BRANCH_OPTIONS_BRANCHES));
+    this.ignoredCommitters =
+        compileCommitters(settings.getString(Notifier.IGNORE_COMMITTERS));
+    this.pathMatcher = PathMatcher.compile(
+        settings.getString(Notifier.PATH_INCLUDES),
+        settings.getString(Notifier.PATH_EXCLUDES));
+    String marker = settings.getString(Notifier.SKIP_MARKER);
+    this.skipMarker = (marker == null || marker.trim().length() == 0) ? null
+        : marker.trim();
+  }
+
+  /**
+   * Gets the {@code hook} property.
+   * @return The repository hook, or null if it couldn't be found
+   */
+  public RepositoryHook getHook() {
+    return hook;
+  }
+
+  /**
+   * Gets the {@code settings} property.
+   * @return The webhook settings, or null if none are set
+   */
+  public Settings getSettings() {
+    return settings;
+  }
+
+  /**
+   * Gets the {@code jenkinsBase} property.
+   * @return The base URL of the Jenkins instance, without a trailing slash
+   */
+  public String getJenkinsBase() {
+    return jenkinsBase;
+  }
+
+  /**
+   * Gets the {@code cloneUrl} property.
+   * @return The URL Jenkins uses to clone the repository
+   */
+  public String getCloneUrl() {
+    return cloneUrl;
+  }
+
+  /**
+   * Gets the {@code ignoreCerts} property.
+   * @return True if all certificates should be accepted
+   */
+  public boolean isIgnoreCerts() {
+    return ignoreCerts;
+  }
+
+  /**
+   * Gets the {@code omitHashCode} property.
+   * @return True if the SHA1 should be left out of notifications
+   */
+  public boolean isOmitHashCode() {
+    return omitHashCode;
+  }
+
+  /**
+   * Gets the {@code notifyAllBranches} property.
+   * @return True if a single notification should cover every branch of a
+   *         push
+   */
+  public boolean isNotifyAllBranches() {
+    return notifyAllBranches;
+  }
+
+  /**
+   * Gets the {@code branchOptions} property.
+   * @return Either "whitelist", "blacklist" or null to build all branches
+   */
+  public String getBranchOptions() {
+    return branchOptions;
+  }
+
+  /**
+   * Gets the {@code branchMatcher} property.
+   * @return The compiled branch black/whitelist patterns
+   */
+  public BranchMatcher getBranchMatcher() {
+    return branchMatcher;
+  }
+
+  /**
+   * Gets the {@code pathMatcher} property.
+   * @return The compiled changed-path include/exclude globs
+   */
+  public PathMatcher getPathMatcher() {
+    return pathMatcher;
+  }
+
+  /**
+   * Gets the {@code skipMarker} property.
+   * @return The commit message marker that skips a build, or null if none
+   */
+  public String getSkipMarker() {
+    return skipMarker;
+  }
+
+  /**
+   * Is the user one of the committers whose pushes are ignored?
+   * @param username The name of the user, may be null
+   * @return True if notifications shouldn't be sent for the user's pushes
+   */
+  public boolean isIgnoredCommitter(String username) {
+    return username != null && !ignoredCommitters.isEmpty()
+        && ignoredCommitters.contains(username.toLowerCase(Locale.ENGLISH));
+  }
+
+  /**
+   * Is the hook enabled and configured?
+   * @return True if notifications should be sent for the repository
+   */
+  public boolean isEnabled() {
+    return hook != null && hook.isEnabled() && settings != null;
+  }
+
+  private static Set<String> compileCommitters(String committers) {
+    if (committers == null || committers.trim().length() == 0)
+      return Collections.emptySet();
+
+    Set<String> compiled = new HashSet<String>();
+    for (String committer : committers.trim().split("\\s+"))
+      compiled.add(committer.toLowerCase(Locale.ENGLISH));
+    return compiled;
+  }
+}
@@ -0,0 +1,286 @@
+package com.nerdwin15.stash.webhook.service.delivery;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.nerdwin15.stash.webhook.NotificationResult;
+import com.nerdwin15.stash.webhook.service.HttpClientFactory;
+
+/**
+ * Sends notifications through a non-blocking HTTP client.
+ *
+ * A small, fixed number of I/O threads multiplex every connection, so no
+ * thread is held while waiting for Jenkins to respond.  The number of
+ * notifications in flight is only limited by the connection pool.
+ */
+public class AsyncNotificationEngine {
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(AsyncNotificationEngine.class);
+
+  private static final int CONNECT_TIMEOUT_MS =
+      Integer.getInteger("jenkins.webhook.http.connectTimeoutMs", 10000);
+  private static final int SOCKET_TIMEOUT_MS =
+      Integer.getInteger("jenkins.webhook.http.socketTimeoutMs", 30000);
+
+  private final HttpClientFactory httpClientFactory;
+  private final int ioThreads;
+  private final int maxTotal;
+  private final int maxPerRoute;
+  private final List<CloseableHttpAsyncClient> clients =
+      new CopyOnWriteArrayList<CloseableHttpAsyncClient>();
+  private final AtomicInteger inFlightCount = new AtomicInteger();
+  private final AtomicLong completedCount = new AtomicLong();
+  private final AtomicLong failedCount = new AtomicLong();
+  private CloseableHttpAsyncClient defaultClient;
+  private CloseableHttpAsyncClient trustAllClient;
+
+  /**
+   * Create a new instance
+   * @param httpClientFactory The factory sharing its trust-all SSL context
+   * @param ioThreads The number of I/O threads shared by all connections
+   * @param maxTotal The maximum number of connections across all Jenkins
+   *        instances
+   * @param maxPerRoute The maximum number of connections to a single Jenkins
+   *        instance
+   */
+  public AsyncNotificationEngine(HttpClientFactory httpClientFactory,
+      int ioThreads, int maxTotal, int maxPerRoute) {
+    this.httpClientFactory = httpClientFactory;
+    this.ioThreads = ioThreads;
+    this.maxTotal = maxTotal;
+    this.maxPerRoute = maxPerRoute;
+  }
+
+  /**
+   * Send a notification to the provided URL without blocking.
+   * @param url The Jenkins notification URL
+   * @param trustAllCerts True if all certificates should be accepted
+   * @return A future that completes once Jenkins has responded
+   */
+  public ListenableFuture<NotificationResult> notify(final String url,
+      boolean trustAllCerts) {
+    final SettableFuture<NotificationResult> result = SettableFuture.create();
+    try {
+      CloseableHttpAsyncClient client = getClient(url.startsWith("https")
+          && trustAllCerts);
+      inFlightCount.incrementAndGet();
+      client.execute(HttpAsyncMethods.create(new HttpGet(url)),
+          new BoundedResponseConsumer(url),
+          new FutureCallback<NotificationResult>() {
+        @Override
+        public void completed(NotificationResult response) {
+          inFlightCount.decrementAndGet();
+          completedCount.incrementAndGet();
+          result.set(response);
+        }
+
+        @Override
+        public void failed(Exception e) {
+          inFlightCount.decrementAndGet();
+          failedCount.incrementAndGet();
+          LOGGER.error("Error triggering jenkins with url '" + url + "'", e);
+          result.set(NotificationResult.retryableFailure(url, e.getMessage()));
+        }
+
+        @Override
+        public void cancelled() {
+          inFlightCount.decrementAndGet();
+          failedCount.incrementAndGet();
+          result.cancel(false);
+        }
+      });
+    } catch (Exception e) {
+      failedCount.incrementAndGet();
+      LOGGER.error("Error triggering jenkins with url '" + url + "'", e);
+      result.set(new NotificationResult(false, url, e.getMessage()));
+    }
+    return result;
+  }
+
+  /**
+   * Stop the I/O threads and close all connections.  Notifications still in
+   * flight are cancelled.
+   */
+  public synchronized void shutdown() {
+    for (CloseableHttpAsyncClient client : clients) {
+      try {
+        client.close();
+      } catch (IOException e) {
+        LOGGER.warn("Unable to close the non-blocking HTTP client", e);
+      }
+    }
+    clients.clear();
+    defaultClient = null;
+    trustAllClient = null;
+  }
+
+  /**
+   * Gets the number of notifications waiting for Jenkins to respond.
+   * @return The number of notifications in flight
+   */
+  public int getInFlightCount() {
+    return inFlightCount.get();
+  }
+
+  /**
+   * Gets the number of notifications Jenkins responded to.
+   * @return The number of completed notifications
+   */
+  public long getCompletedCount() {
+    return completedCount.get();
+  }
+
+  /**
+   * Gets the number of notifications that failed before Jenkins responded.
+   * @return The number of failed notifications
+   */
+  public long getFailedCount() {
+    return failedCount.get();
+  }
+
+  private synchronized CloseableHttpAsyncClient getClient(
+      boolean trustAllCerts) throws Exception {
+    if (trustAllCerts) {
+      if (trustAllClient == null)
+        trustAllClient = startClient(true);
+      return trustAllClient;
+    }
+
+    if (defaultClient == null)
+      defaultClient = startClient(false);
+    return defaultClient;
+  }
+
+  private CloseableHttpAsyncClient startClient(boolean trustAllCerts)
+      throws Exception {
+    CloseableHttpAsyncClient client = createClient(trustAllCerts);
+    client.start();
+    clients.add(client);
+    return client;
+  }
+
+  /**
+   * Creates a non-blocking client backed by its own I/O reactor and
+   * connection pool.  Protected for testing purposes.
+   * @param trustAllCerts True if the client should accept any certificate
+   * @return The (not yet started) client
+   * @throws Exception
+   */
+  protected CloseableHttpAsyncClient createClient(boolean trustAllCerts)
+      throws Exception {
+    IOReactorConfig config = IOReactorConfig.custom()
+        .setIoThreadCount(ioThreads)
+        .setConnectTimeout(CONNECT_TIMEOUT_MS)
+        .setSoTimeout(SOCKET_TIMEOUT_MS)
+        .build();
+
+    SchemeIOSessionStrategy sslStrategy = trustAllCerts
+        ? new SSLIOSessionStrategy(httpClientFactory.getTrustAllSslContext())
+        : SSLIOSessionStrategy.getDefaultStrategy();
+    PoolingNHttpClientConnectionManager manager =
+        new PoolingNHttpClientConnectionManager(
+            new DefaultConnectingIOReactor(config),
+            RegistryBuilder.<SchemeIOSessionStrategy>create()
+                .register("http", NoopIOSessionStrategy.INSTANCE)
+                .register("https", sslStrategy)
+                .build());
+    manager.setMaxTotal(maxTotal);
+    manager.setDefaultMaxPerRoute(maxPerRoute);
+
+    return HttpAsyncClients.custom()
+        .setConnectionManager(manager)
+        .setDefaultRequestConfig(RequestConfig.custom()
+            .setConnectTimeout(CONNECT_TIMEOUT_MS)
+            .setSocketTimeout(SOCKET_TIMEOUT_MS)
+            .build())
+        .build();
+  }
+
+  /**
+   * Keeps only a bounded prefix of the response body and discards the rest as
+   * it arrives, so a large error page never gets buffered.
+   */
+  private static class BoundedResponseConsumer
+      extends AbstractAsyncResponseConsumer<NotificationResult> {
+
+    private final String url;
+    private final ByteBuffer chunk = ByteBuffer.allocate(4096);
+    private HttpResponse response;
+    private byte[] prefix = new byte[ResponseReader.MAX_BODY_BYTES + 1];
+    private int length;
+
+    BoundedResponseConsumer(String url) {
+      this.url = url;
+    }
+
+    @Override
+    protected void onResponseReceived(HttpResponse response) {
+      this.response = response;
+    }
+
+    @Override
+    protected void onEntityEnclosed(HttpEntity entity,
+        ContentType contentType) {
+    }
+
+    @Override
+    protected void onContentReceived(ContentDecoder decoder,
+        IOControl ioctrl) throws IOException {
+      while (decoder.read(chunk) > 0) {
+        chunk.flip();
+        int keep = Math.min(chunk.remaining(), prefix.length - length);
+        chunk.get(prefix, length, keep);
+        length += keep;
+        chunk.clear();
+      }
+    }
+
+    @Override
+    protected NotificationResult buildResult(HttpContext context) {
+      NotificationResult result = ResponseReader.toResult(url,
+          response.getStatusLine(), ResponseReader.toPrefix(prefix, length));
+      if (result.isRetryable())
+        LOGGER.warn("Jenkins responded with '{}' for url '{}'",
+            response.getStatusLine(), url);
+      else
+        LOGGER.debug("Successfully triggered jenkins with url '{}': ", url);
+      return result;
+    }
+
+    @Override
+    protected void releaseResources() {
+      response = null;
+      prefix = null;
+    }
+  }
+}
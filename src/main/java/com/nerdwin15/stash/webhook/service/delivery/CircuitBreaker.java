@@ -0,0 +1,96 @@
+package com.nerdwin15.stash.webhook.service.delivery;
+
+/**
+ * A circuit breaker guarding a single Jenkins instance.
+ *
+ * After enough consecutive failures the circuit opens and notifications fail
+ * fast without touching the network.  Once the open period has passed a
+ * single probe is let through; if it succeeds the circuit closes again,
+ * otherwise it stays open for another period.
+ */
+public class CircuitBreaker {
+
+  /**
+   * The states the circuit can be in.
+   */
+  public enum State {
+    /**
+     * Notifications are sent normally.
+     */
+    CLOSED,
+    /**
+     * Notifications fail fast.
+     */
+    OPEN,
+    /**
+     * A single probe is being sent to find out whether Jenkins is back.
+     */
+    HALF_OPEN
+  }
+
+  private final int failureThreshold;
+  private final long openMs;
+  private State state = State.CLOSED;
+  private int consecutiveFailures;
+  private long stateChangedAt;
+
+  /**
+   * Create a new instance
+   * @param failureThreshold The number of consecutive failures that opens
+   *        the circuit
+   * @param openMs How long the circuit stays open before probing
+   */
+  public CircuitBreaker(int failureThreshold, long openMs) {
+    this.failureThreshold = failureThreshold;
+    this.openMs = openMs;
+  }
+
+  /**
+   * Should a notification be sent?  When the open period has passed, the
+   * first caller is let through as the probe.  A probe that never reports
+   * back is replaced after another open period.
+   * @return True if the notification may be sent
+   */
+  public synchronized boolean allowRequest() {
+    if (state == State.CLOSED)
+      return true;
+
+    long now = System.currentTimeMillis();
+    if (now - stateChangedAt < openMs)
+      return false;
+    transition(State.HALF_OPEN, now);
+    return true;
+  }
+
+  /**
+   * Record that Jenkins responded.
+   */
+  public synchronized void recordSuccess() {
+    consecutiveFailures = 0;
+    if (state != State.CLOSED)
+      transition(State.CLOSED, System.currentTimeMillis());
+  }
+
+  /**
+   * Record that Jenkins couldn't be reached or failed to respond.
+   */
+  public synchronized void recordFailure() {
+    consecutiveFailures++;
+    if (state == State.HALF_OPEN
+        || (state == State.CLOSED && consecutiveFailures >= failureThreshold))
+      transition(State.OPEN, System.currentTimeMillis());
+  }
+
+  /**
+   * Gets the {@code state} property.
+   * @return The current state of the circuit
+   */
+  public synchronized State getState() {
+    return state;
+  }
+
+  private void transition(State newState, long now) {
+    state = newState;
+    stateChangedAt = now;
+  }
+}
@@ -0,0 +1,454 @@
+package com.nerdwin15.stash.webhook.service.delivery;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.nerdwin15.stash.webhook.NotificationResult;
+
+/**
+ * Shares the notifications sent at any one time fairly between projects.
+ *
+ * Only a fixed number of notifications are handed to the engine at once.
+ * The rest wait in a queue per project, and the queues are drained by deficit
+ * round-robin: on its turn, each project with something queued may send as
+ * many notifications as its weight before the next project gets a turn.  A
+ * burst in one project, such as a bot updating hundreds of repositories, then
+ * only slows that project down, while the other projects keep their share.
+ *
+ * A project's queue holds at most one notification per repository and
+ * branch: a newer one takes the place of the one already queued, which is
+ * cancelled.  Apart from the opt-in {@link NotificationCoalescer}, which
+ * holds notifications back on purpose, this is the one place a notification
+ * is dropped in favour of a newer one; the engines behind the scheduler send
+ * whatever they are given.  The number of queued notifications is capped,
+ * and once the cap is reached a notification for a branch not already queued
+ * is rejected.
+ *
+ * The scheduler has no threads of its own.  Notifications are started by the
+ * thread scheduling them or by the one completing an earlier notification.
+ */
+public class FairNotificationScheduler {
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(FairNotificationScheduler.class);
+
+  private final int maxInFlight;
+  private final int maxQueued;
+  private final int defaultWeight;
+  private final Map<String, Integer> weights;
+  private final Map<String, ProjectQueue> projects =
+      new LinkedHashMap<String, ProjectQueue>();
+  private final Queue<ProjectQueue> active = new ArrayDeque<ProjectQueue>();
+  private final AtomicInteger pumpRequests = new AtomicInteger();
+  private int inFlight;
+  private int queued;
+  private long collapsed;
+  private long rejected;
+
+  /**
+   * Create a new instance
+   * @param maxInFlight The maximum number of notifications sent at once
+   * @param maxQueued The maximum number of notifications waiting for their
+   *        project's turn, across all projects
+   * @param defaultWeight The weight of projects without a configured one
+   * @param weights The weight of each project, keyed by project key
+   */
+  public FairNotificationScheduler(int maxInFlight, int maxQueued,
+      int defaultWeight, Map<String, Integer> weights) {
+    this.maxInFlight = Math.max(1, maxInFlight);
+    this.maxQueued = Math.max(1, maxQueued);
+    this.defaultWeight = Math.max(1, defaultWeight);
+    this.weights = new HashMap<String, Integer>();
+    for (Map.Entry<String, Integer> entry : weights.entrySet())
+      this.weights.put(entry.getKey().toUpperCase(Locale.ENGLISH),
+          Math.max(1, entry.getValue()));
+  }
+
+  /**
+   * Parse project weights of the form {@code PROJ=4,BOT=1}.  Malformed
+   * entries are logged and ignored.
+   * @param weights The weights, may be null
+   * @return The weights, keyed by project key
+   */
+  public static Map<String, Integer> parseWeights(String weights) {
+    Map<String, Integer> parsed = new HashMap<String, Integer>();
+    if (weights == null || weights.trim().length() == 0)
+      return parsed;
+
+    for (String entry : weights.trim().split("\\s*,\\s*")) {
+      int separator = entry.indexOf('=');
+      try {
+        if (separator <= 0)
+          throw new NumberFormatException("Missing '='");
+        parsed.put(entry.substring(0, separator).trim(),
+            Integer.valueOf(entry.substring(separator + 1).trim()));
+      } catch (NumberFormatException e) {
+        LOGGER.warn("Ignoring project weight '{}': {}", entry,
+            e.getMessage());
+      }
+    }
+    return parsed;
+  }
+
+  /**
+   * Queue a notification for a project, to be sent once it is the project's
+   * turn and fewer than the maximum number of notifications are in flight.
+   * A notification for the same key still queued is cancelled, and this one
+   * takes its place.
+   * @param project The key of the project, or the empty string if unknown
+   * @param key Identifies the repository and branch being notified
+   * @param send Starts sending the notification.  It is called while the
+   *        queues are being drained, so it must hand the notification off
+   *        rather than send it
+   * @return A future of the notification result.  It fails with the exception
+   *         thrown by {@code send}, if any, or with a
+   *         {@link RejectedExecutionException} if the queue is full
+   */
+  public ListenableFuture<NotificationResult> schedule(String project,
+      String key, Callable<ListenableFuture<NotificationResult>> send) {
+    SettableFuture<NotificationResult> result = SettableFuture.create();
+    SettableFuture<NotificationResult> replaced = null;
+    boolean accepted = true;
+    synchronized (this) {
+      ProjectQueue queue = projects.get(project);
+      if (queue == null) {
+        queue = new ProjectQueue(project, getWeight(project));
+        projects.put(project, queue);
+      }
+      Pending pending = queue.byKey.get(key);
+      if (pending != null) {
+        // Keeps its place in the queue, so the branch doesn't lose its turn,
+        // but its wait is measured from the newest notification
+        replaced = pending.result;
+        pending.send = send;
+        pending.result = result;
+        pending.queuedAt = System.nanoTime();
+        collapsed++;
+      } else if (queued >= maxQueued) {
+        rejected++;
+        accepted = false;
+      } else {
+        pending = new Pending(key, send, result);
+        queue.pending.add(pending);
+        queue.byKey.put(key, pending);
+        queued++;
+        if (!queue.active) {
+          queue.active = true;
+          active.add(queue);
+        }
+      }
+    }
+
+    if (!accepted) {
+      LOGGER.warn("Jenkins notification queue is full, rejecting "
+          + "notification for {}", key);
+      result.setException(new RejectedExecutionException(
+          "Jenkins notification queue is full"));
+      return result;
+    }
+    if (replaced != null) {
+      LOGGER.debug("Replaced queued notification for {}", key);
+      replaced.cancel(false);
+    }
+    pump();
+    return result;
+  }
+
+  /**
+   * Cancel every queued notification.  Notifications already in flight are
+   * left to complete.
+   */
+  public void shutdownNow() {
+    List<Pending> cancelled = new ArrayList<Pending>();
+    synchronized (this) {
+      for (ProjectQueue queue : projects.values()) {
+        cancelled.addAll(queue.pending);
+        queue.pending.clear();
+        queue.byKey.clear();
+        queue.active = false;
+        queue.deficit = 0;
+      }
+      active.clear();
+      queued = 0;
+    }
+    for (Pending pending : cancelled)
+      pending.result.cancel(false);
+  }
+
+  /**
+   * Gets the maximum number of notifications sent at once.
+   * @return The maximum number of notifications in flight
+   */
+  public int getMaxInFlight() {
+    return maxInFlight;
+  }
+
+  /**
+   * Gets the maximum number of notifications waiting for their project's turn.
+   * @return The maximum number of queued notifications
+   */
+  public int getMaxQueued() {
+    return maxQueued;
+  }
+
+  /**
+   * Gets the number of notifications being sent.
+   * @return The number of notifications in flight
+   */
+  public synchronized int getInFlightCount() {
+    return inFlight;
+  }
+
+  /**
+   * Gets the number of notifications waiting for their project's turn.
+   * @return The number of queued notifications
+   */
+  public synchronized int getQueuedCount() {
+    return queued;
+  }
+
+  /**
+   * Gets the number of queued notifications replaced by a newer one for the
+   * same repository and branch.
+   * @return The number of collapsed notifications
+   */
+  public synchronized long getCollapsedCount() {
+    return collapsed;
+  }
+
+  /**
+   * Gets the number of notifications rejected because the queue was full.
+   * @return The number of rejected notifications
+   */
+  public synchronized long getRejectedCount() {
+    return rejected;
+  }
+
+  /**
+   * Gets the queue depth, weight and wait time of every project that has
+   * sent a notification.
+   * @return The statistics of each project
+   */
+  public synchronized List<ProjectStatistics> getProjectStatistics() {
+    List<ProjectStatistics> statistics = new ArrayList<ProjectStatistics>();
+    for (ProjectQueue queue : projects.values())
+      statistics.add(new ProjectStatistics(queue));
+    return Collections.unmodifiableList(statistics);
+  }
+
+  private int getWeight(String project) {
+    Integer weight = weights.get(project.toUpperCase(Locale.ENGLISH));
+    return (weight != null) ? weight : defaultWeight;
+  }
+
+  /**
+   * Starts notifications until the limit is reached or nothing is queued.
+   * Only one thread pumps at a time; a request made meanwhile, such as by a
+   * notification completing right away, is picked up by that thread.
+   */
+  private void pump() {
+    if (pumpRequests.getAndIncrement() != 0)
+      return;
+
+    int missed = 1;
+    for (;;) {
+      for (;;) {
+        Pending next;
+        synchronized (this) {
+          if (inFlight >= maxInFlight)
+            break;
+          next = poll();
+          if (next == null)
+            break;
+          inFlight++;
+        }
+        start(next);
+      }
+      missed = pumpRequests.addAndGet(-missed);
+      if (missed == 0)
+        return;
+    }
+  }
+
+  /**
+   * Takes the next notification in deficit round-robin order.  Each
+   * notification costs one, so a project sends up to its weight in a row.
+   */
+  private Pending poll() {
+    ProjectQueue queue = active.peek();
+    if (queue == null)
+      return null;
+    if (queue.deficit <= 0)
+      queue.deficit += queue.weight;
+
+    Pending next = queue.pending.poll();
+    queue.byKey.remove(next.key);
+    queue.deficit--;
+    queued--;
+    if (queue.pending.isEmpty()) {
+      // An idle project doesn't save up its turn
+      active.poll();
+      queue.active = false;
+      queue.deficit = 0;
+    } else if (queue.deficit <= 0) {
+      active.add(active.poll());
+    }
+    queue.dispatched++;
+    queue.totalWaitNanos += System.nanoTime() - next.queuedAt;
+    return next;
+  }
+
+  private void start(final Pending pending) {
+    ListenableFuture<NotificationResult> future;
+    try {
+      future = pending.send.call();
+    } catch (Exception e) {
+      release();
+      pending.result.setException(e);
+      return;
+    }
+
+    Futures.addCallback(future, new FutureCallback<NotificationResult>() {
+      @Override
+      public void onSuccess(NotificationResult result) {
+        release();
+        pending.result.set(result);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        release();
+        if (t instanceof CancellationException)
+          pending.result.cancel(false);
+        else
+          pending.result.setException(t);
+      }
+    }, MoreExecutors.sameThreadExecutor());
+  }
+
+  private void release() {
+    synchronized (this) {
+      inFlight--;
+    }
+    pump();
+  }
+
+  /**
+   * A notification waiting for its project's turn.  While it is queued, a
+   * newer notification for the same key may take its place.
+   */
+  private static class Pending {
+
+    private final String key;
+    private Callable<ListenableFuture<NotificationResult>> send;
+    private SettableFuture<NotificationResult> result;
+    private long queuedAt = System.nanoTime();
+
+    Pending(String key, Callable<ListenableFuture<NotificationResult>> send,
+        SettableFuture<NotificationResult> result) {
+      this.key = key;
+      this.send = send;
+      this.result = result;
+    }
+  }
+
+  /**
+   * The queue and round-robin state of a single project.
+   */
+  private static class ProjectQueue {
+
+    private final String project;
+    private final int weight;
+    private final Queue<Pending> pending = new ArrayDeque<Pending>();
+    private final Map<String, Pending> byKey = new HashMap<String, Pending>();
+    private boolean active;
+    private int deficit;
+    private long dispatched;
+    private long totalWaitNanos;
+
+    ProjectQueue(String project, int weight) {
+      this.project = project;
+      this.weight = weight;
+    }
+  }
+
+  /**
+   * A snapshot of the queue of a single project.
+   */
+  public static class ProjectStatistics {
+
+    private final String project;
+    private final int weight;
+    private final int queued;
+    private final long dispatched;
+    private final long averageWaitNanos;
+
+    ProjectStatistics(ProjectQueue queue) {
+      this.project = queue.project;
+      this.weight = queue.weight;
+      this.queued = queue.pending.size();
+      this.dispatched = queue.dispatched;
+      this.averageWaitNanos = (queue.dispatched == 0) ? 0
+          : queue.totalWaitNanos / queue.dispatched;
+    }
+
+    /**
+     * Gets the {@code project} property.
+     * @return The key of the project, or the empty string if unknown
+     */
+    public String getProject() {
+      return project;
+    }
+
+    /**
+     * Gets the {@code weight} property.
+     * @return The number of notifications the project sends per turn
+     */
+    public int getWeight() {
+      return weight;
+    }
+
+    /**
+     * Gets the {@code queued} property.
+     * @return The number of notifications waiting for the project's turn
+     */
+    public int getQueued() {
+      return queued;
+    }
+
+    /**
+     * Gets the {@code dispatched} property.
+     * @return The number of notifications handed to the engine
+     */
+    public long getDispatched() {
+      return dispatched;
+    }
+
+    /**
+     * Gets the {@code averageWaitNanos} property.
+     * @return The average time a notification waited for its turn
+     */
+    public long getAverageWaitNanos() {
+      return averageWaitNanos;
+    }
+  }
+}
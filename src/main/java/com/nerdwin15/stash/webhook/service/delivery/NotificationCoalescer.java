@@ -0,0 +1,262 @@
+package com.nerdwin15.stash.webhook.service.delivery;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.util.concurrent.ThreadFactories;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+import com.nerdwin15.stash.webhook.NotificationResult;
+import com.nerdwin15.stash.webhook.service.SettingsSnapshot;
+
+/**
+ * Coalesces rapid-fire notifications for the same repository and branch into
+ * a single Jenkins notification.
+ *
+ * A notification is held back until no newer notification for the same key
+ * has been submitted for the quiet period, and only the newest SHA1 is sent.
+ * A notification is never held back for longer than the max delay, no matter
+ * how often it is superseded.
+ */
+public class NotificationCoalescer {
+
+  /**
+   * Sends the notification that is left once the quiet period is over.
+   */
+  public interface Dispatcher {
+
+    /**
+     * Dispatch a notification.
+     * @param repo The repository to base the notification on.
+     * @param snapshot The newest webhook configuration of the repository
+     * @param strRef The branch that was changed
+     * @param strSha1 The newest SHA1 of the branch
+     * @return A future of the notification result
+     */
+    Future<NotificationResult> dispatch(Repository repo,
+        SettingsSnapshot snapshot, String strRef, String strSha1);
+  }
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(NotificationCoalescer.class);
+
+  private final long quietPeriodMs;
+  private final long maxDelayMs;
+  private final Dispatcher dispatcher;
+  private final ScheduledThreadPoolExecutor scheduler;
+  private final Map<String, PendingNotification> pending =
+      new HashMap<String, PendingNotification>();
+  private final AtomicLong coalescedCount = new AtomicLong();
+  private final AtomicLong dispatchedCount = new AtomicLong();
+
+  /**
+   * Create a new instance
+   * @param quietPeriodMs How long to wait for newer notifications
+   * @param maxDelayMs The maximum time a notification may be held back
+   * @param dispatcher Sends the coalesced notifications
+   */
+  public NotificationCoalescer(long quietPeriodMs, long maxDelayMs,
+      Dispatcher dispatcher) {
+    this.quietPeriodMs = quietPeriodMs;
+    this.maxDelayMs = Math.max(quietPeriodMs, maxDelayMs);
+    this.dispatcher = dispatcher;
+    this.scheduler = new ScheduledThreadPoolExecutor(1,
+        ThreadFactories.namedThreadFactory("JenkinsWebhookCoalescer",
+            ThreadFactories.Type.DAEMON));
+    // Every submission reschedules the flush, so don't keep the cancelled ones
+    this.scheduler.setRemoveOnCancelPolicy(true);
+  }
+
+  /**
+   * Submit a notification, replacing any pending notification for the same
+   * key.
+   * @param key Identifies the repository and branch being notified
+   * @param repo The repository to base the notification on.
+   * @param snapshot The webhook configuration of the repository
+   * @param strRef The branch that was changed
+   * @param strSha1 The newest SHA1 of the branch
+   * @return A future of the result of the coalesced notification
+   */
+  public Future<NotificationResult> submit(String key, Repository repo,
+      SettingsSnapshot snapshot, String strRef, String strSha1) {
+    synchronized (pending) {
+      long now = System.currentTimeMillis();
+      PendingNotification notification = pending.get(key);
+      if (notification == null) {
+        notification = new PendingNotification(key, now);
+        pending.put(key, notification);
+      } else {
+        coalescedCount.incrementAndGet();
+        LOGGER.debug("Coalescing notification for {} into {}", key, strSha1);
+      }
+
+      notification.repo = repo;
+      notification.snapshot = snapshot;
+      notification.strRef = strRef;
+      notification.strSha1 = strSha1;
+      schedule(notification,
+          Math.min(quietPeriodMs, notification.firstSeen + maxDelayMs - now));
+      return notification;
+    }
+  }
+
+  /**
+   * Stop the coalescer.  Pending notifications are dropped and their futures
+   * cancelled, so nobody waiting on them is left blocked.
+   */
+  public void shutdownNow() {
+    scheduler.shutdownNow();
+    List<PendingNotification> dropped;
+    synchronized (pending) {
+      dropped = new ArrayList<PendingNotification>(pending.values());
+      pending.clear();
+    }
+    for (PendingNotification notification : dropped) {
+      SettableFuture<NotificationResult> cancelled = SettableFuture.create();
+      cancelled.cancel(false);
+      notification.dispatched(cancelled);
+    }
+  }
+
+  /**
+   * Gets the number of notifications that were folded into a newer one.
+   * @return The number of coalesced notifications
+   */
+  public long getCoalescedCount() {
+    return coalescedCount.get();
+  }
+
+  /**
+   * Gets the number of notifications that were actually dispatched.
+   * @return The number of dispatched notifications
+   */
+  public long getDispatchedCount() {
+    return dispatchedCount.get();
+  }
+
+  /**
+   * Gets the number of notifications currently waiting for their quiet period
+   * to end.
+   * @return The number of pending notifications
+   */
+  public int getPendingCount() {
+    synchronized (pending) {
+      return pending.size();
+    }
+  }
+
+  private void schedule(final PendingNotification notification, long delay) {
+    if (notification.flushTask != null)
+      notification.flushTask.cancel(false);
+    notification.flushTask = scheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        flush(notification);
+      }
+    }, Math.max(0, delay), TimeUnit.MILLISECONDS);
+  }
+
+  private void flush(PendingNotification notification) {
+    Repository repo;
+    SettingsSnapshot snapshot;
+    String strRef;
+    String strSha1;
+    synchronized (pending) {
+      if (pending.get(notification.key) != notification)
+        return;
+      pending.remove(notification.key);
+      repo = notification.repo;
+      snapshot = notification.snapshot;
+      strRef = notification.strRef;
+      strSha1 = notification.strSha1;
+    }
+
+    Future<NotificationResult> result;
+    try {
+      result = dispatcher.dispatch(repo, snapshot, strRef, strSha1);
+    } catch (RuntimeException e) {
+      LOGGER.error("Unable to dispatch notification for "
+          + notification.key, e);
+      result = Futures.immediateFuture(
+          new NotificationResult(false, null, e.getMessage()));
+    }
+    dispatchedCount.incrementAndGet();
+    notification.dispatched(result);
+  }
+
+  /**
+   * A notification waiting for its quiet period to end. Every caller whose
+   * notification was coalesced shares this future.
+   */
+  private static class PendingNotification
+      implements Future<NotificationResult> {
+
+    private final String key;
+    private final long firstSeen;
+    private final CountDownLatch dispatchLatch = new CountDownLatch(1);
+    private Repository repo;
+    private SettingsSnapshot snapshot;
+    private String strRef;
+    private String strSha1;
+    private ScheduledFuture<?> flushTask;
+    private volatile Future<NotificationResult> delegate;
+
+    PendingNotification(String key, long firstSeen) {
+      this.key = key;
+      this.firstSeen = firstSeen;
+    }
+
+    void dispatched(Future<NotificationResult> future) {
+      this.delegate = future;
+      dispatchLatch.countDown();
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      // Other callers may share this notification, so it can only be
+      // cancelled once it has been handed off
+      return delegate != null && delegate.cancel(mayInterruptIfRunning);
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return delegate != null && delegate.isCancelled();
+    }
+
+    @Override
+    public boolean isDone() {
+      return delegate != null && delegate.isDone();
+    }
+
+    @Override
+    public NotificationResult get() throws InterruptedException,
+        ExecutionException {
+      dispatchLatch.await();
+      return delegate.get();
+    }
+
+    @Override
+    public NotificationResult get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      if (!dispatchLatch.await(timeout, unit))
+        throw new TimeoutException();
+      return delegate.get(Math.max(0, deadline - System.nanoTime()),
+          TimeUnit.NANOSECONDS);
+    }
+  }
+}
@@ -0,0 +1,169 @@
+package com.nerdwin15.stash.webhook.service.delivery;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.atlassian.util.concurrent.ThreadFactories;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.nerdwin15.stash.webhook.NotificationResult;
+
+/**
+ * A bounded executor used to deliver notifications in the background.
+ *
+ * Notifications are spread over a fixed number of lanes, each served by a
+ * single thread, by hashing the repository they are for.  Notifications for
+ * a repository are therefore sent in the order they were submitted, while
+ * different repositories are sent in parallel.
+ *
+ * The executor doesn't decide which notifications are worth sending.  The
+ * {@link FairNotificationScheduler} in front of it only hands over as many
+ * notifications as may be in flight, and replaces queued notifications for
+ * the same branch, so each lane's queue is sized to hold every notification
+ * in flight and is never full in practice.
+ */
+public class NotificationExecutor {
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(NotificationExecutor.class);
+
+  private final ThreadPoolExecutor[] lanes;
+  private final AtomicLong rejectedCount = new AtomicLong();
+
+  /**
+   * Create a new instance
+   * @param laneCount The number of lanes, each with a single worker thread
+   * @param laneQueueSize The maximum number of notifications queued on each
+   *        lane
+   */
+  public NotificationExecutor(int laneCount, int laneQueueSize) {
+    this.lanes = new ThreadPoolExecutor[Math.max(1, laneCount)];
+    ThreadFactory threadFactory = ThreadFactories.namedThreadFactory(
+        "JenkinsWebhook", ThreadFactories.Type.DAEMON);
+    RejectedExecutionHandler rejectionHandler = new RejectionHandler();
+    for (int i = 0; i < lanes.length; i++) {
+      lanes[i] = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS,
+          new ArrayBlockingQueue<Runnable>(Math.max(1, laneQueueSize)),
+          threadFactory, rejectionHandler);
+      lanes[i].allowCoreThreadTimeOut(true);
+    }
+  }
+
+  /**
+   * Submit a notification for delivery.  The lane is picked from the
+   * repository id in the key.
+   * @param key Identifies the repository and branch being notified, as
+   *        {@code <project key>/<repository id>:<branch>}
+   * @param task The notification to run
+   * @return A future of the notification result
+   * @throws RejectedExecutionException If the notification can't be accepted
+   */
+  public ListenableFuture<NotificationResult> submit(String key,
+      Callable<NotificationResult> task) {
+    ListenableFutureTask<NotificationResult> future =
+        ListenableFutureTask.create(task);
+    lanes[getLane(key)].execute(future);
+    return future;
+  }
+
+  /**
+   * Stop all workers, cancelling any queued notifications.
+   */
+  public void shutdownNow() {
+    for (ThreadPoolExecutor lane : lanes) {
+      for (Runnable queued : lane.shutdownNow())
+        ((Future<?>) queued).cancel(false);
+    }
+  }
+
+  /**
+   * Gets the number of lanes notifications are spread over.
+   * @return The number of lanes
+   */
+  public int getLaneCount() {
+    return lanes.length;
+  }
+
+  /**
+   * Gets the number of threads currently sending a notification.
+   * @return The number of busy threads
+   */
+  public int getBusyCount() {
+    int busy = 0;
+    for (ThreadPoolExecutor lane : lanes)
+      busy += lane.getActiveCount();
+    return busy;
+  }
+
+  /**
+   * Gets the number of threads waiting for work.
+   * @return The number of idle threads
+   */
+  public int getIdleCount() {
+    int idle = 0;
+    for (ThreadPoolExecutor lane : lanes)
+      idle += Math.max(0, lane.getPoolSize() - lane.getActiveCount());
+    return idle;
+  }
+
+  /**
+   * Gets the number of notifications waiting for a thread.
+   * @return The number of queued notifications
+   */
+  public int getQueuedCount() {
+    int queued = 0;
+    for (ThreadPoolExecutor lane : lanes)
+      queued += lane.getQueue().size();
+    return queued;
+  }
+
+  /**
+   * Gets the number of notifications rejected because the queue was full.
+   * @return The number of rejected notifications
+   */
+  public long getRejectedCount() {
+    return rejectedCount.get();
+  }
+
+  /**
+   * Picks the lane for a key from its repository id, everything between the
+   * first {@code '/'} and the first {@code ':'}.  The hash is spread so that
+   * consecutive repository IDs land on different lanes.
+   * @param key The key of the notification
+   * @return The index of the lane
+   */
+  int getLane(String key) {
+    int hash = key.substring(key.indexOf('/') + 1, key.indexOf(':'))
+        .hashCode();
+    hash ^= (hash >>> 16);
+    return (hash & Integer.MAX_VALUE) % lanes.length;
+  }
+
+  /**
+   * Rejects notifications the lanes can't take, which only happens once they
+   * have been shut down or if more notifications are handed over than may be
+   * in flight.
+   */
+  private class RejectionHandler implements RejectedExecutionHandler {
+
+    @Override
+    public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+      rejectedCount.incrementAndGet();
+      if (!e.isShutdown())
+        LOGGER.warn("Jenkins notification lane is full, rejecting "
+            + "notification");
+      throw new RejectedExecutionException("Jenkins notification lane is "
+          + "full");
+    }
+  }
+}
@@ -0,0 +1,507 @@
+package com.nerdwin15.stash.webhook.service.delivery;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import com.atlassian.sal.api.ApplicationProperties;
+import com.atlassian.util.concurrent.ThreadFactories;
+import com.google.common.base.Charsets;
+
+/**
+ * A durable outbox of notifications that haven't been accepted by Jenkins yet.
+ *
+ * Every background notification is recorded before it is dispatched, and
+ * written to an append-only journal by a single writer thread, so the thread
+ * recording it never waits for the disk.  Credentials in the URL are never
+ * written.  A notification is acknowledged once Jenkins has scheduled a build,
+ * or once sending it failed in a way that retrying won't fix.  Notifications
+ * that failed for a transient reason, were deferred, or were still queued
+ * when Stash shut down, are replayed in the order they were written, both on startup and
+ * periodically afterwards.
+ *
+ * Only the newest notification for a repository and branch is kept, since
+ * Jenkins polls the branch anyway.  The journal is compacted on startup and
+ * whenever enough acknowledgements have piled up.  Notifications written
+ * shortly before a crash may be lost, as may an acknowledgement, in which
+ * case the notification is sent again.
+ */
+public class NotificationOutbox implements DisposableBean {
+
+  /**
+   * Sends a notification taken from the outbox.
+   */
+  public interface Replayer {
+
+    /**
+     * Replay a notification.  The replayer must eventually report the outcome
+     * through {@link NotificationOutbox#completed(Entry, boolean)}.
+     * @param entry The notification to send
+     */
+    void replay(Entry entry);
+  }
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(NotificationOutbox.class);
+
+  private static final boolean ENABLED = Boolean.parseBoolean(
+      System.getProperty("jenkins.webhook.outbox.enabled", "true"));
+  private static final int MAX_ENTRIES =
+      Integer.getInteger("jenkins.webhook.outbox.maxEntries", 10000);
+  private static final boolean FSYNC =
+      Boolean.getBoolean("jenkins.webhook.outbox.fsync");
+  private static final long REPLAY_INTERVAL_MS =
+      Long.getLong("jenkins.webhook.outbox.replayIntervalMs", 30000L);
+  private static final int COMPACT_THRESHOLD = 1000;
+
+  private static final String APPEND = "A";
+  private static final String ACK = "K";
+  private static final String SEPARATOR = "\t";
+
+  private final File journal;
+  private final int maxEntries;
+  private final boolean fsync;
+  private final Map<Long, Entry> entries = new LinkedHashMap<Long, Entry>();
+  private final Map<String, Entry> byKey = new HashMap<String, Entry>();
+  private final ExecutorService journalWriter;
+  private final Runnable drain = new Runnable() {
+    @Override
+    public void run() {
+      drain();
+    }
+  };
+  // Records not yet written, and the journal to write before them if it is
+  // being compacted.  Both are guarded by the outbox.
+  private List<String> unwritten = new ArrayList<String>();
+  private List<String> compacted;
+  private boolean drainScheduled;
+  // Only used by the journal writer thread
+  private FileOutputStream out;
+  private Writer writer;
+  private long nextId = 1;
+  private int acksSinceCompaction;
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * Create a new instance that keeps its journal in the Stash home directory
+   * @param applicationProperties Used to find the Stash home directory
+   */
+  public NotificationOutbox(ApplicationProperties applicationProperties) {
+    this(ENABLED ? new File(applicationProperties.getHomeDirectory(),
+        "data/jenkins-webhook/outbox.journal") : null, MAX_ENTRIES, FSYNC);
+  }
+
+  /**
+   * Create a new instance
+   * @param journal The journal file, or null to only keep the outbox in
+   *        memory
+   * @param maxEntries The maximum number of unacknowledged notifications
+   * @param fsync True if every write should be forced to disk
+   */
+  NotificationOutbox(File journal, int maxEntries, boolean fsync) {
+    this.journal = journal;
+    this.maxEntries = maxEntries;
+    this.fsync = fsync;
+    this.journalWriter = (journal == null) ? null
+        : Executors.newSingleThreadExecutor(ThreadFactories.namedThreadFactory(
+            "JenkinsWebhookJournal", ThreadFactories.Type.DAEMON));
+    if (journal != null)
+      load();
+  }
+
+  /**
+   * Record a notification before it is dispatched.  Any older notification
+   * for the same repository and branch is acknowledged, since this one
+   * supersedes it.
+   * @param key Identifies the repository and branch being notified, as
+   *        {@code <project key>/<repository id>:<branch>}
+   * @param url The Jenkins notification URL
+   * @param trustAllCerts True if all certificates should be accepted
+   * @return The recorded entry
+   */
+  public synchronized Entry append(String key, String url,
+      boolean trustAllCerts) {
+    Entry existing = byKey.get(key);
+    if (existing != null) {
+      remove(existing);
+      write(ACK + SEPARATOR + existing.id);
+    }
+    while (entries.size() >= maxEntries) {
+      Entry oldest = entries.values().iterator().next();
+      LOGGER.warn("Jenkins notification outbox is full, dropping {}",
+          stripUserInfo(oldest.url));
+      remove(oldest);
+      write(ACK + SEPARATOR + oldest.id);
+    }
+
+    Entry entry = new Entry(nextId++, key, url, trustAllCerts);
+    entry.inFlight = true;
+    add(entry);
+    write(toRecord(entry));
+    return entry;
+  }
+
+  /**
+   * Report the outcome of sending a notification.  Notifications that Jenkins
+   * accepted, or that failed in a way retrying won't fix, are acknowledged.
+   * The rest are kept for replay.
+   * @param entry The notification that was sent
+   * @param done True if the notification should be acknowledged, false if it
+   *        should be replayed later
+   */
+  public synchronized void completed(Entry entry, boolean done) {
+    entry.inFlight = false;
+    if (!done || !isPending(entry))
+      return;
+
+    remove(entry);
+    write(ACK + SEPARATOR + entry.id);
+    if (++acksSinceCompaction >= COMPACT_THRESHOLD)
+      compact();
+  }
+
+  /**
+   * Is the notification still waiting to be accepted by Jenkins?  It isn't
+   * once it has been acknowledged or superseded by a newer one.
+   * @param entry The notification to check
+   * @return True if the notification is still pending
+   */
+  public synchronized boolean isPending(Entry entry) {
+    return entries.get(entry.id) == entry;
+  }
+
+  /**
+   * Start replaying unacknowledged notifications, first immediately and then
+   * periodically.
+   * @param replayer Sends the replayed notifications
+   */
+  public synchronized void startReplay(final Replayer replayer) {
+    if (scheduler != null)
+      return;
+    scheduler = Executors.newSingleThreadScheduledExecutor(
+        ThreadFactories.namedThreadFactory("JenkinsWebhookOutbox",
+            ThreadFactories.Type.DAEMON));
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        replay(replayer);
+      }
+    }, 0, REPLAY_INTERVAL_MS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Hand every notification that isn't currently being sent to the replayer,
+   * in the order they were written.
+   * @param replayer Sends the replayed notifications
+   */
+  void replay(Replayer replayer) {
+    List<Entry> pending = new ArrayList<Entry>();
+    synchronized (this) {
+      for (Entry entry : entries.values()) {
+        if (!entry.inFlight) {
+          entry.inFlight = true;
+          pending.add(entry);
+        }
+      }
+    }
+
+    if (!pending.isEmpty())
+      LOGGER.info("Replaying {} Jenkins notifications", pending.size());
+    for (Entry entry : pending) {
+      try {
+        replayer.replay(entry);
+      } catch (RuntimeException e) {
+        LOGGER.error("Unable to replay notification for "
+            + stripUserInfo(entry.url), e);
+        completed(entry, false);
+      }
+    }
+  }
+
+  /**
+   * Gets the number of notifications not yet acknowledged by Jenkins.
+   * @return The number of pending notifications
+   */
+  public synchronized int getPendingCount() {
+    return entries.size();
+  }
+
+  /**
+   * Stop replaying and close the journal.  Unacknowledged notifications are
+   * kept and replayed on the next startup.
+   */
+  @Override
+  public void destroy() {
+    synchronized (this) {
+      if (scheduler != null) {
+        scheduler.shutdownNow();
+        scheduler = null;
+      }
+    }
+    if (journalWriter == null)
+      return;
+
+    // Lets the writer finish what was recorded before closing the journal
+    journalWriter.shutdown();
+    try {
+      if (!journalWriter.awaitTermination(5, TimeUnit.SECONDS)) {
+        LOGGER.warn("Timed out writing the Jenkins notification outbox");
+        return;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+    closeQuietly(writer);
+    writer = null;
+    out = null;
+  }
+
+  /**
+   * Remove the user info, such as {@code user:password@}, from the authority
+   * of a URL, so credentials are never written to the journal or the logs.
+   * @param url The URL
+   * @return The URL without user info
+   */
+  public static String stripUserInfo(String url) {
+    int start = url.indexOf("://");
+    if (start < 0)
+      return url;
+    start += 3;
+    int end = start;
+    while (end < url.length() && "/?#".indexOf(url.charAt(end)) < 0)
+      end++;
+    int at = url.lastIndexOf('@', end - 1);
+    if (at < start)
+      return url;
+    return url.substring(0, start) + url.substring(at + 1);
+  }
+
+  private void load() {
+    if (journal.exists()) {
+      BufferedReader reader = null;
+      try {
+        reader = new BufferedReader(new InputStreamReader(
+            new FileInputStream(journal), Charsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null)
+          readLine(line);
+      } catch (IOException e) {
+        LOGGER.error("Unable to read Jenkins notification outbox "
+            + journal, e);
+      } finally {
+        closeQuietly(reader);
+      }
+    }
+    LOGGER.debug("Loaded {} pending Jenkins notifications", entries.size());
+    compact();
+  }
+
+  private void readLine(String line) {
+    String[] parts = line.split(SEPARATOR, 5);
+    try {
+      long id = Long.parseLong(parts[1]);
+      if (APPEND.equals(parts[0]) && parts.length == 5) {
+        Entry existing = byKey.get(parts[3]);
+        if (existing != null)
+          remove(existing);
+        add(new Entry(id, parts[3], parts[4],
+            Boolean.parseBoolean(parts[2])));
+      } else if (ACK.equals(parts[0])) {
+        Entry acknowledged = entries.get(id);
+        if (acknowledged != null)
+          remove(acknowledged);
+      }
+      nextId = Math.max(nextId, id + 1);
+    } catch (RuntimeException e) {
+      // Most likely a write that was torn by a crash
+      LOGGER.warn("Skipping malformed outbox entry: {}", line);
+    }
+  }
+
+  /**
+   * Has the journal rewritten so it only contains unacknowledged
+   * notifications.  Records not yet written are covered by the rewrite.
+   */
+  private void compact() {
+    if (journal == null)
+      return;
+    List<String> records = new ArrayList<String>(entries.size());
+    for (Entry entry : entries.values())
+      records.add(toRecord(entry));
+    compacted = records;
+    unwritten.clear();
+    acksSinceCompaction = 0;
+    scheduleDrain();
+  }
+
+  private void write(String record) {
+    if (journal == null)
+      return;
+    unwritten.add(record);
+    scheduleDrain();
+  }
+
+  private void scheduleDrain() {
+    if (drainScheduled)
+      return;
+    try {
+      journalWriter.execute(drain);
+      drainScheduled = true;
+    } catch (RejectedExecutionException e) {
+      LOGGER.warn("Jenkins notification outbox is closed, not writing {} "
+          + "records", unwritten.size());
+    }
+  }
+
+  /**
+   * Writes everything recorded since the last drain, on the journal writer
+   * thread.  The journal is flushed, and forced to disk if configured, once
+   * per drain rather than once per record.
+   */
+  private void drain() {
+    List<String> records;
+    List<String> rewrite;
+    synchronized (this) {
+      records = unwritten;
+      unwritten = new ArrayList<String>();
+      rewrite = compacted;
+      compacted = null;
+      drainScheduled = false;
+    }
+
+    if (rewrite != null)
+      rewrite(rewrite);
+    if (records.isEmpty())
+      return;
+    try {
+      if (writer == null) {
+        journal.getParentFile().mkdirs();
+        out = new FileOutputStream(journal, true);
+        writer = new OutputStreamWriter(out, Charsets.UTF_8);
+      }
+      for (String record : records)
+        writer.write(record + "\n");
+      writer.flush();
+      if (fsync)
+        out.getFD().sync();
+    } catch (IOException e) {
+      LOGGER.error("Unable to write to Jenkins notification outbox "
+          + journal, e);
+    }
+  }
+
+  private void rewrite(List<String> records) {
+    closeQuietly(writer);
+    writer = null;
+    out = null;
+
+    File compactedJournal = new File(journal.getPath() + ".tmp");
+    Writer tmp = null;
+    try {
+      journal.getParentFile().mkdirs();
+      tmp = new OutputStreamWriter(new FileOutputStream(compactedJournal),
+          Charsets.UTF_8);
+      for (String record : records)
+        tmp.write(record + "\n");
+      tmp.close();
+      tmp = null;
+      if (!compactedJournal.renameTo(journal)
+          && !(journal.delete() && compactedJournal.renameTo(journal)))
+        throw new IOException("Unable to replace " + journal);
+    } catch (IOException e) {
+      LOGGER.error("Unable to compact Jenkins notification outbox "
+          + journal, e);
+    } finally {
+      closeQuietly(tmp);
+    }
+  }
+
+  private static String toRecord(Entry entry) {
+    return APPEND + SEPARATOR + entry.id + SEPARATOR + entry.trustAllCerts
+        + SEPARATOR + entry.key + SEPARATOR + stripUserInfo(entry.url);
+  }
+
+  private void add(Entry entry) {
+    entries.put(entry.id, entry);
+    byKey.put(entry.key, entry);
+  }
+
+  private void remove(Entry entry) {
+    entries.remove(entry.id);
+    if (byKey.get(entry.key) == entry)
+      byKey.remove(entry.key);
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    try {
+      if (closeable != null)
+        closeable.close();
+    } catch (IOException e) {
+      LOGGER.warn("Unable to close Jenkins notification outbox", e);
+    }
+  }
+
+  /**
+   * A notification recorded in the outbox.
+   */
+  public static class Entry {
+
+    private final long id;
+    private final String key;
+    private final String url;
+    private final boolean trustAllCerts;
+    private boolean inFlight;
+
+    Entry(long id, String key, String url, boolean trustAllCerts) {
+      this.id = id;
+      this.key = key;
+      this.url = url;
+      this.trustAllCerts = trustAllCerts;
+    }
+
+    /**
+     * Gets the {@code key} property.
+     * @return Identifies the repository and branch being notified
+     */
+    public String getKey() {
+      return key;
+    }
+
+    /**
+     * Gets the {@code url} property.
+     * @return The Jenkins notification URL
+     */
+    public String getUrl() {
+      return url;
+    }
+
+    /**
+     * Gets the {@code trustAllCerts} property.
+     * @return True if all certificates should be accepted
+     */
+    public boolean isTrustAllCerts() {
+      return trustAllCerts;
+    }
+  }
+}
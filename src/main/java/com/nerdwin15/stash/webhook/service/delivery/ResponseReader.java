@@ -0,0 +1,104 @@
+package com.nerdwin15.stash.webhook.service.delivery;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.StatusLine;
+
+import com.google.common.base.Charsets;
+import com.nerdwin15.stash.webhook.NotificationResult;
+
+/**
+ * Reads Jenkins responses without buffering them fully.
+ *
+ * Only a bounded prefix of the body is kept, which is enough to tell whether
+ * Jenkins scheduled a build and to capture a snippet for diagnostics.  The
+ * rest of a response is drained up to a limit so the connection can be
+ * reused, and abandoned beyond that.
+ */
+public final class ResponseReader {
+
+  /**
+   * The number of bytes of the body that are kept.
+   */
+  public static final int MAX_BODY_BYTES =
+      Integer.getInteger("jenkins.webhook.http.maxResponseBytes", 1024);
+
+  /**
+   * The number of bytes that are drained after the prefix before the
+   * connection is given up instead.
+   */
+  public static final long MAX_DRAIN_BYTES =
+      Long.getLong("jenkins.webhook.http.maxDrainBytes", 65536L);
+
+  private static final String SCHEDULED = "Scheduled";
+  private static final String ELLIPSIS = "...";
+
+  private ResponseReader() {
+  }
+
+  /**
+   * Read the bounded prefix of a response body.  The stream is left open.
+   * @param content The response body
+   * @return The prefix, followed by an ellipsis if the body was longer
+   * @throws IOException
+   */
+  public static String readPrefix(InputStream content) throws IOException {
+    byte[] buffer = new byte[MAX_BODY_BYTES + 1];
+    int length = 0;
+    int read;
+    while (length < buffer.length
+        && (read = content.read(buffer, length, buffer.length - length)) != -1)
+      length += read;
+    return toPrefix(buffer, length);
+  }
+
+  /**
+   * Build the prefix of a response body from the bytes read so far.
+   * @param bytes The bytes read, possibly more than the limit
+   * @param length The number of bytes read
+   * @return The prefix, followed by an ellipsis if there were more bytes
+   */
+  public static String toPrefix(byte[] bytes, int length) {
+    if (length > MAX_BODY_BYTES)
+      return new String(bytes, 0, MAX_BODY_BYTES, Charsets.UTF_8) + ELLIPSIS;
+    return new String(bytes, 0, length, Charsets.UTF_8);
+  }
+
+  /**
+   * Drain what is left of a response body.
+   * @param content The response body
+   * @return True if the body was drained completely and the connection can be
+   *         reused, false if it was too large
+   * @throws IOException
+   */
+  public static boolean drain(InputStream content) throws IOException {
+    byte[] buffer = new byte[4096];
+    long drained = 0;
+    int read;
+    while ((read = content.read(buffer)) != -1) {
+      drained += read;
+      if (drained > MAX_DRAIN_BYTES)
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Classify a Jenkins response.
+   * @param url The URL that was used for notification
+   * @param statusLine The status line of the response
+   * @param bodyPrefix The bounded prefix of the body
+   * @return The notification result
+   */
+  public static NotificationResult toResult(String url, StatusLine statusLine,
+      String bodyPrefix) {
+    if (statusLine.getStatusCode() >= HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+      return NotificationResult.retryableFailure(url,
+          "Jenkins response: " + statusLine + " " + bodyPrefix);
+    }
+    return new NotificationResult(bodyPrefix.startsWith(SCHEDULED), url,
+        "Jenkins response: " + bodyPrefix);
+  }
+}
@@ -0,0 +1,63 @@
+package com.nerdwin15.stash.webhook.service.delivery;
+
+import java.util.Random;
+
+import com.nerdwin15.stash.webhook.NotificationResult;
+
+/**
+ * Decides whether a failed notification is retried and how long to wait
+ * before doing so.
+ *
+ * The delay grows exponentially with every attempt and is jittered, so
+ * retries from many repositories don't all hit Jenkins at the same moment.
+ */
+public class RetryPolicy {
+
+  private final int maxAttempts;
+  private final long baseDelayMs;
+  private final long maxDelayMs;
+  private final Random random = new Random();
+
+  /**
+   * Create a new instance
+   * @param maxAttempts The total number of attempts, including the first
+   * @param baseDelayMs The delay before the first retry
+   * @param maxDelayMs The longest delay between two attempts
+   */
+  public RetryPolicy(int maxAttempts, long baseDelayMs, long maxDelayMs) {
+    this.maxAttempts = maxAttempts;
+    this.baseDelayMs = baseDelayMs;
+    this.maxDelayMs = Math.max(baseDelayMs, maxDelayMs);
+  }
+
+  /**
+   * Should the notification be attempted again?
+   * @param attempt The attempt that just completed, starting at 1
+   * @param result The result of that attempt
+   * @return True if the notification should be retried
+   */
+  public boolean shouldRetry(int attempt, NotificationResult result) {
+    return attempt < maxAttempts && result != null && result.isRetryable();
+  }
+
+  /**
+   * Gets how long to wait before the next attempt.  Half of the exponential
+   * delay is fixed and the other half is random.
+   * @param attempt The attempt that just completed, starting at 1
+   * @return The delay in milliseconds
+   */
+  public long getDelayMs(int attempt) {
+    long delay = Math.min(maxDelayMs,
+        baseDelayMs << Math.min(attempt - 1, 30));
+    long half = delay / 2;
+    return half + (long) (random.nextDouble() * (delay - half));
+  }
+
+  /**
+   * Gets the {@code maxAttempts} property.
+   * @return The total number of attempts, including the first
+   */
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+}
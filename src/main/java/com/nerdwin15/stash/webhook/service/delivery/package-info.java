@@ -0,0 +1,4 @@
+/**
+ * Delivery services that schedule and send notifications to Jenkins
+ */
+package com.nerdwin15.stash.webhook.service.delivery;
@@ -0,0 +1,165 @@
+package com.nerdwin15.stash.webhook.service.eligibility;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.atlassian.stash.content.ChangesetsBetweenRequest;
+import com.atlassian.stash.event.RepositoryRefsChangedEvent;
+import com.atlassian.stash.history.HistoryService;
+import com.atlassian.stash.repository.RefChange;
+import com.atlassian.stash.repository.RefChangeType;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.SecurityService;
+import com.atlassian.stash.util.Operation;
+import com.nerdwin15.stash.webhook.service.SettingsSnapshot;
+
+/**
+ * Base class of the EligibilityFilters that read the history of a push, such
+ * as its commits or the paths they change.
+ * 
+ * The history is read with read permission, since the event may not be
+ * handled on behalf of a user who has it.  If it can't be read, the push is
+ * let through rather than risk missing a build.
+ * 
+ */
+public abstract class AbstractPushEligibilityFilter
+    implements EligibilityFilter {
+
+  private static final Logger logger = // CHECKSTYLE:logger
+      LoggerFactory.getLogger(AbstractPushEligibilityFilter.class);
+
+  /**
+   * The number of commits or changes read at a time.
+   */
+  protected static final int PAGE_SIZE = Math.max(1,
+      Integer.getInteger("jenkins.webhook.paths.pageSize", 100));
+
+  private static final String NULL_HASH =
+      "0000000000000000000000000000000000000000";
+
+  private final HistoryService historyService;
+  private final SecurityService securityService;
+  private final String reading;
+
+  /**
+   * Constructs a new instance
+   * @param historyService Service to read the history of the push
+   * @param securityService Service to read it with read permission
+   * @param reading What is read, such as {@code "changed paths"}
+   */
+  protected AbstractPushEligibilityFilter(HistoryService historyService,
+      SecurityService securityService, String reading) {
+    this.historyService = historyService;
+    this.securityService = securityService;
+    this.reading = reading;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean shouldDeliverNotification(final EventContext context) {
+    final SettingsSnapshot snapshot = context.getSnapshot();
+    if (!isConfigured(snapshot))
+      return true;
+
+    final List<RefChange> refChanges = getPushedRefChanges(context);
+    try {
+      return securityService.doWithPermission("Reading " + reading,
+          Permission.REPO_READ, new Operation<Boolean, RuntimeException>() {
+        @Override
+        public Boolean perform() {
+          return shouldDeliver(context.getRepository(), refChanges, snapshot);
+        }
+      });
+    } catch (RuntimeException e) {
+      logger.error("Unable to read the " + reading + ", notifying anyway", e);
+      return true;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public Class<?>[] getEventTypes() {
+    return new Class<?>[] { RepositoryRefsChangedEvent.class };
+  }
+
+  /**
+   * Gets the service used to read the history of the push.
+   * @return The history service
+   */
+  protected HistoryService getHistoryService() {
+    return historyService;
+  }
+
+  /**
+   * Does the repository use this filter?  If not, every push is let through
+   * without reading anything.
+   * @param snapshot The webhook configuration of the repository
+   * @return True if the history of the push needs to be read
+   */
+  protected abstract boolean isConfigured(SettingsSnapshot snapshot);
+
+  /**
+   * Decide whether the push should be notified.  Runs with read permission.
+   * @param repository The repository pushed to
+   * @param refChanges The ref changes being judged, without deleted refs
+   * @param snapshot The webhook configuration of the repository
+   * @return True if Jenkins should be notified
+   */
+  protected abstract boolean shouldDeliver(Repository repository,
+      Collection<RefChange> refChanges, SettingsSnapshot snapshot);
+
+  /**
+   * Does the ref change create a branch?  A new branch has no range of its
+   * own, so its history goes back to the start of the repository.
+   * @param refChange The ref change
+   * @return True if the ref change creates the ref
+   */
+  protected static boolean isNewRef(RefChange refChange) {
+    return refChange.getType() == RefChangeType.ADD
+        || NULL_HASH.equals(refChange.getFromHash());
+  }
+
+  /**
+   * Builds a request for the commits a ref change brings in, newest first.
+   * @param repository The repository pushed to
+   * @param refChange The ref change
+   * @return The request
+   */
+  protected static ChangesetsBetweenRequest getPushedChangesets(
+      Repository repository, RefChange refChange) {
+    ChangesetsBetweenRequest.Builder builder =
+        new ChangesetsBetweenRequest.Builder(repository)
+            .include(refChange.getToHash());
+    if (!isNewRef(refChange))
+      builder.exclude(refChange.getFromHash());
+    return builder.build();
+  }
+
+  /**
+   * Gets the ref changes being judged, leaving out deleted refs since they
+   * bring in no history.
+   */
+  private static List<RefChange> getPushedRefChanges(EventContext context) {
+    Collection<RefChange> refChanges = (context.getRefChange() != null)
+        ? Collections.singleton(context.getRefChange())
+        : ((RepositoryRefsChangedEvent) context.getEventSource())
+            .getRefChanges();
+    List<RefChange> pushed = new ArrayList<RefChange>(refChanges.size());
+    for (RefChange refChange : refChanges) {
+      if (refChange.getType() != RefChangeType.DELETE)
+        pushed.add(refChange);
+    }
+    return pushed;
+  }
+
+}
@@ -1,34 +1,37 @@
 package com.nerdwin15.stash.webhook.service.eligibility;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
 import com.atlassian.stash.event.RepositoryRefsChangedEvent;
 import com.atlassian.stash.repository.RefChange;
 import com.atlassian.stash.repository.RefChangeType;
-import com.atlassian.stash.setting.Settings;
-import com.nerdwin15.stash.webhook.Notifier;
 import com.nerdwin15.stash.webhook.service.BranchEvaluator;
-import com.nerdwin15.stash.webhook.service.SettingsService;
+import com.nerdwin15.stash.webhook.service.BranchMatcher;
+import com.nerdwin15.stash.webhook.service.SettingsSnapshot;
 
 /**
  * Defines an eligibility filter that provides the ability to create a 
  * black/whitelist of branches to ignore or accept commits for notification
  * sending.
  * 
+ * Each ref change of an event is judged on its own, so a push deleting one
+ * branch and updating another still notifies the updated branch.
+ * 
  * @author Michael Irwin (mikesir87)
  */
 public class BranchEligibilityFilter 
-    implements EligibilityFilter {
+    implements RefChangeEligibilityFilter {
 
-  private SettingsService settingsService;
   private BranchEvaluator branchEvaluator;
   
   /**
    * Create a new instance.
-   * @param settingsService The settings service
    * @param branchEvaluator An evaluator to determine affected branches.
    */
-  public BranchEligibilityFilter(SettingsService settingsService, 
-      BranchEvaluator branchEvaluator) {
-    this.settingsService = settingsService;
+  public BranchEligibilityFilter(BranchEvaluator branchEvaluator) {
     this.branchEvaluator = branchEvaluator;
   }
 
@@ -38,51 +41,53 @@ public class BranchEligibilityFilter
    */
   @Override
   public boolean shouldDeliverNotification(EventContext context) {
-    if (!RepositoryRefsChangedEvent.class.isAssignableFrom(context.getEventSource()
-        .getClass()))
-      return true;
-
     RepositoryRefsChangedEvent event = (RepositoryRefsChangedEvent) context.getEventSource();
+    List<RefChange> refChanges = (context.getRefChange() != null)
+        ? Collections.singletonList(context.getRefChange())
+        : new ArrayList<RefChange>(event.getRefChanges());
 
-    // Don't trigger Jenkins Webhook on deleted branches
-    RefChange refCh = event.getRefChanges().iterator().next();
-    if (refCh.getType().compareTo(RefChangeType.DELETE) == 0)
-      return false;
+    BitSet eligible = new BitSet(refChanges.size());
+    eligible.set(0, refChanges.size());
+    retainEligible(context, refChanges, eligible);
+    return !eligible.isEmpty();
+  }
 
-    final Settings settings = settingsService.getSettings(
-        context.getRepository());
-    String branchOption = settings.getString(Notifier.BRANCH_OPTIONS);
-    if (branchOption == null ||
-        (!branchOption.equals("blacklist") && !branchOption.equals("whitelist")))
-      return true;
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void retainEligible(EventContext context, List<RefChange> refChanges,
+      BitSet eligible) {
+    final SettingsSnapshot snapshot = context.getSnapshot();
+    String branchOption = snapshot.getBranchOptions();
+    boolean blacklist = "blacklist".equals(branchOption);
+    boolean filtering = blacklist || "whitelist".equals(branchOption);
+    BranchMatcher matcher = snapshot.getBranchMatcher();
 
-    String[] branchesSettings =
-        settings.getString(Notifier.BRANCH_OPTIONS_BRANCHES).split(" ");
-    Iterable<String> branches =
-        branchEvaluator.getBranches(event.getRefChanges());
+    for (int i = eligible.nextSetBit(0); i >= 0;
+        i = eligible.nextSetBit(i + 1)) {
+      RefChange refChange = refChanges.get(i);
+      // Don't trigger Jenkins Webhook on deleted branches
+      if (refChange.getType() == RefChangeType.DELETE) {
+        eligible.clear(i);
+        continue;
+      }
+      if (!filtering)
+        continue;
 
-    boolean haveMatch = hasMatch(branchesSettings, branches);
-    if (haveMatch && branchOption.equals("blacklist"))
-      return false;
-    else if (!haveMatch && branchOption.equals("whitelist"))
-      return false;
-    return true;
+      String branch = branchEvaluator.getBranch(refChange);
+      boolean match = branch != null && matcher.matches(branch);
+      if (match == blacklist)
+        eligible.clear(i);
+    }
   }
   
-  protected boolean hasMatch(String[] settings, 
-      Iterable<String> affectedBranches) {
-    for (String branch : affectedBranches) {
-      branch = branch.toLowerCase();
-      for (String s : settings) {
-        s = s.toLowerCase();
-        if (s.endsWith("*") && branch.startsWith(s.substring(0, s.length() - 1)))
-          return true;
-        if (s.equals(branch))
-          return true;
-      }
-    }
-    
-    return false;
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public Class<?>[] getEventTypes() {
+    return new Class<?>[] { RepositoryRefsChangedEvent.class };
   }
 
 }
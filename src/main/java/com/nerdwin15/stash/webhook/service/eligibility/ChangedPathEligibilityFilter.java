@@ -0,0 +1,133 @@
+package com.nerdwin15.stash.webhook.service.eligibility;
+
+import java.util.Collection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.atlassian.stash.content.Change;
+import com.atlassian.stash.content.Changeset;
+import com.atlassian.stash.content.ChangesetsBetweenRequest;
+import com.atlassian.stash.content.ChangesRequest;
+import com.atlassian.stash.history.HistoryService;
+import com.atlassian.stash.repository.RefChange;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.user.SecurityService;
+import com.atlassian.stash.util.Page;
+import com.atlassian.stash.util.PageRequest;
+import com.atlassian.stash.util.PageRequestImpl;
+import com.nerdwin15.stash.webhook.service.PathMatcher;
+import com.nerdwin15.stash.webhook.service.SettingsSnapshot;
+
+/**
+ * An EligibilityFilter that only lets a push through if it changed a path
+ * matching the include globs and not matching the exclude globs.
+ * 
+ * The changes of the pushed commits are read a page at a time and the filter
+ * stops at the first relevant path, so a large push is usually decided after
+ * reading a handful of paths.  If no relevant path is found within the
+ * configured number of paths, or the range can't be worked out, the push is
+ * let through rather than risk missing a build.  A push that only deletes
+ * branches changes no path and is ignored.
+ * 
+ */
+public class ChangedPathEligibilityFilter
+    extends AbstractPushEligibilityFilter {
+
+  private static final Logger logger = // CHECKSTYLE:logger
+      LoggerFactory.getLogger(ChangedPathEligibilityFilter.class);
+
+  private static final int MAX_PATHS = Math.max(1,
+      Integer.getInteger("jenkins.webhook.paths.maxInspected", 1000));
+
+  /**
+   * Constructs a new instance
+   * @param historyService Service to read the changes of the pushed commits
+   * @param securityService Service to read them with read permission
+   */
+  public ChangedPathEligibilityFilter(HistoryService historyService,
+      SecurityService securityService) {
+    super(historyService, securityService, "changed paths");
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  protected boolean isConfigured(SettingsSnapshot snapshot) {
+    return snapshot.getPathMatcher().isConfigured();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  protected boolean shouldDeliver(Repository repository,
+      Collection<RefChange> refChanges, SettingsSnapshot snapshot) {
+    return hasRelevantChange(repository, refChanges,
+        snapshot.getPathMatcher());
+  }
+
+  private boolean hasRelevantChange(Repository repository,
+      Collection<RefChange> refChanges, PathMatcher matcher) {
+    int budget = MAX_PATHS;
+    for (RefChange refChange : refChanges) {
+      // A new branch has no range of its own to look at
+      if (isNewRef(refChange))
+        return true;
+
+      ChangesetsBetweenRequest request =
+          getPushedChangesets(repository, refChange);
+      PageRequest pageRequest = new PageRequestImpl(0, PAGE_SIZE);
+      while (pageRequest != null) {
+        Page<Changeset> changesets =
+            getHistoryService().getChangesetsBetween(request, pageRequest);
+        for (Changeset changeset : changesets.getValues()) {
+          budget = scanChanges(repository, changeset, matcher, budget);
+          if (budget < 0)
+            return true;
+          if (budget == 0) {
+            logger.debug("No relevant path within the first {} changed paths,"
+                + " notifying anyway", MAX_PATHS);
+            return true;
+          }
+        }
+        pageRequest = changesets.getIsLastPage() ? null
+            : changesets.getNextPageRequest();
+      }
+    }
+
+    logger.debug("Ignoring push event as no relevant path was changed");
+    return false;
+  }
+
+  /**
+   * Reads the changes of a single commit until a relevant path is found or
+   * the budget runs out.
+   * @return The remaining budget, or -1 if a relevant path was found
+   */
+  private int scanChanges(Repository repository, Changeset changeset,
+      PathMatcher matcher, int budget) {
+    ChangesRequest request =
+        new ChangesRequest.Builder(repository, changeset.getId()).build();
+    PageRequest pageRequest =
+        new PageRequestImpl(0, Math.min(PAGE_SIZE, budget));
+    while (pageRequest != null) {
+      Page<Change> changes =
+          getHistoryService().getChanges(request, pageRequest);
+      for (Change change : changes.getValues()) {
+        if (matcher.isRelevant(change.getPath().toString())
+            || (change.getSrcPath() != null
+                && matcher.isRelevant(change.getSrcPath().toString())))
+          return -1;
+        if (--budget == 0)
+          return 0;
+      }
+      pageRequest = changes.getIsLastPage() ? null
+          : new PageRequestImpl(pageRequest.getStart() + changes.getSize(),
+              Math.min(PAGE_SIZE, budget));
+    }
+    return budget;
+  }
+
+}
@@ -1,15 +1,58 @@
 package com.nerdwin15.stash.webhook.service.eligibility;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.atlassian.stash.repository.RefChange;
 
 /**
  * A concrete implementation of the EligiblityFilterChain.
  * 
+ * The filters that apply to a type of event are worked out the first time an
+ * event of that type is seen and kept, so evaluating an event only touches
+ * the filters that care about it.
+ * 
+ * The chain measures how long each filter takes and how often it rejects an
+ * event, separately for each type of event, and every so often reorders the
+ * filters so the ones expected to reject an event for the least time run
+ * first.  The measurements are halved on each reorder, so the order follows
+ * changes in the events and settings.  All filters have to agree for
+ * a notification to be delivered, so the order never changes the decision.
+ * 
+ * The ref changes of an event can also be judged one by one, producing a bit
+ * per ref change.  A {@link RefChangeEligibilityFilter} judges them all in a
+ * single pass; any other filter is asked about each ref change still
+ * eligible, and the chain stops as soon as none is left.
+ * 
  * @author Michael Irwin (mikesir87)
  */
 public class ConcreteEligibilityFilterChain implements EligibilityFilterChain {
   
+  private static final Class<?>[] ALL_EVENTS = new Class<?>[0];
+  private static final long REORDER_INTERVAL =
+      Long.getLong("jenkins.webhook.filters.reorderInterval", 1000L);
+
+  private static final Comparator<FilterStatistics> BY_COST_PER_REJECTION =
+      new Comparator<FilterStatistics>() {
+    @Override
+    public int compare(FilterStatistics a, FilterStatistics b) {
+      return Double.compare(a.getCostPerRejection(), b.getCostPerRejection());
+    }
+  };
+
   private List<EligibilityFilter> filters;
+  private final ConcurrentMap<Class<?>, FilterStatistics[]> filtersByType =
+      new ConcurrentHashMap<Class<?>, FilterStatistics[]>();
+  private final AtomicLong evaluationCount = new AtomicLong();
   
   /**
    * Construct a new instance with the provided filters
@@ -21,11 +64,104 @@ public class ConcreteEligibilityFilterChain implements EligibilityFilterChain {
   
   @Override
   public boolean shouldDeliverNotification(EventContext event) {
-    for (EligibilityFilter filter : filters) {
-      if (!filter.shouldDeliverNotification(event))
+    if (evaluationCount.incrementAndGet() % REORDER_INTERVAL == 0)
+      reorder();
+
+    Object source = event.getEventSource();
+    FilterStatistics[] applicable =
+        getFilters((source == null) ? Object.class : source.getClass());
+    for (int i = 0; i < applicable.length; i++) {
+      if (!applicable[i].evaluate(event))
         return false;
     }
     return true;
   }
 
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public BitSet getEligibleRefChanges(EventContext event,
+      List<RefChange> refChanges) {
+    if (evaluationCount.incrementAndGet() % REORDER_INTERVAL == 0)
+      reorder();
+
+    BitSet eligible = new BitSet(refChanges.size());
+    eligible.set(0, refChanges.size());
+    Object source = event.getEventSource();
+    FilterStatistics[] applicable =
+        getFilters((source == null) ? Object.class : source.getClass());
+    for (int i = 0; i < applicable.length && !eligible.isEmpty(); i++)
+      applicable[i].retainEligible(event, refChanges, eligible);
+    return eligible;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public Class<?>[] getEventTypes() {
+    return ALL_EVENTS;
+  }
+
+  /**
+   * Re-sort the filters of every event type by their expected cost per
+   * rejection, cheapest first, then halve the statistics so the next order
+   * mostly reflects recent events.
+   */
+  public void reorder() {
+    for (Map.Entry<Class<?>, FilterStatistics[]> entry
+        : filtersByType.entrySet()) {
+      FilterStatistics[] sorted = entry.getValue().clone();
+      Arrays.sort(sorted, BY_COST_PER_REJECTION);
+      for (FilterStatistics stats : sorted)
+        stats.decay();
+      entry.setValue(sorted);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public Map<Class<?>, List<FilterStatistics>> getOrder() {
+    Map<Class<?>, List<FilterStatistics>> order =
+        new LinkedHashMap<Class<?>, List<FilterStatistics>>();
+    for (Map.Entry<Class<?>, FilterStatistics[]> entry
+        : filtersByType.entrySet())
+      order.put(entry.getKey(), Collections.unmodifiableList(
+          Arrays.asList(entry.getValue())));
+    return order;
+  }
+
+  private FilterStatistics[] getFilters(Class<?> eventType) {
+    FilterStatistics[] applicable = filtersByType.get(eventType);
+    if (applicable == null) {
+      List<FilterStatistics> matching = new ArrayList<FilterStatistics>();
+      for (EligibilityFilter filter : filters) {
+        // A filter can be cheap for one type of event and costly for another
+        if (appliesTo(filter, eventType))
+          matching.add(new FilterStatistics(filter));
+      }
+      applicable = matching.toArray(new FilterStatistics[matching.size()]);
+      FilterStatistics[] existing =
+          filtersByType.putIfAbsent(eventType, applicable);
+      if (existing != null)
+        applicable = existing;
+    }
+    return applicable;
+  }
+
+  private static boolean appliesTo(EligibilityFilter filter,
+      Class<?> eventType) {
+    Class<?>[] types = filter.getEventTypes();
+    if (types == null || types.length == 0)
+      return true;
+    for (Class<?> type : types) {
+      if (type.isAssignableFrom(eventType))
+        return true;
+    }
+    return false;
+  }
+
 }
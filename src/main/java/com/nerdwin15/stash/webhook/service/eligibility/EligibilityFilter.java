@@ -21,4 +21,13 @@ public interface EligibilityFilter {
    */
   boolean shouldDeliverNotification(EventContext event);
 
+  /**
+   * Gets the types of event source the filter applies to.  The filter chain
+   * only consults the filter for events that are instances of one of them, so
+   * the filter can rely on the type of the event source.
+   * @return The event types, or an empty array if the filter applies to all
+   * events
+   */
+  Class<?>[] getEventTypes();
+
 }
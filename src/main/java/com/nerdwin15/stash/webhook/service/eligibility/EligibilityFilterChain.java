@@ -1,5 +1,11 @@
 package com.nerdwin15.stash.webhook.service.eligibility;
 
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+import com.atlassian.stash.repository.RefChange;
+
 
 /**
  * An EligibilityFilterChain holds several EligibilityFilters and uses them to
@@ -9,4 +15,20 @@ package com.nerdwin15.stash.webhook.service.eligibility;
  */
 public interface EligibilityFilterChain extends EligibilityFilter {
 
+  /**
+   * Determine which of the ref changes of an event should be notified.
+   * @param context The context of the whole event
+   * @param refChanges The ref changes of the event
+   * @return One bit per ref change, set if it should be notified
+   */
+  BitSet getEligibleRefChanges(EventContext context,
+      List<RefChange> refChanges);
+
+  /**
+   * Gets the order the filters currently run in for each type of event seen
+   * so far.
+   * @return The statistics of the filters in order, keyed by event type
+   */
+  Map<Class<?>, List<FilterStatistics>> getOrder();
+
 }
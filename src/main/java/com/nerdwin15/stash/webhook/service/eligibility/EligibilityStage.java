@@ -0,0 +1,366 @@
+package com.nerdwin15.stash.webhook.service.eligibility;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.util.concurrent.ThreadFactories;
+import com.nerdwin15.stash.webhook.service.eligibility.EventRingBuffer.Slot;
+import com.nerdwin15.stash.webhook.service.eligibility.EventRingBuffer.WaitStrategy;
+
+/**
+ * The stage of the notification pipeline that looks up the webhook settings
+ * and runs the eligibility filters, on its own threads.
+ *
+ * Stash delivers events on a small set of threads shared by every plugin, so
+ * the listeners only capture what they need from an event and publish it to
+ * this stage's {@link EventRingBuffer}.  Queueing an event allocates nothing,
+ * and each of the stage's threads claims one event at a time, so a slow event
+ * never holds back others that an idle thread could take.  Slow filters
+ * then hold up this stage rather than Stash.  When the ring is full the event
+ * is put on an overflow queue, which the workers empty before taking from the
+ * ring again, so a burst neither stalls Stash's event threads nor loses a
+ * build.  Evaluating such an event on the submitting thread instead is
+ * opt-in.
+ */
+public class EligibilityStage implements DisposableBean {
+
+  /**
+   * Evaluates a queued event.  Listeners create a single handler and reuse it
+   * for every event.
+   */
+  public interface Handler {
+
+    /**
+     * Evaluate an event and hand it on for delivery.
+     * @param event The event
+     * @param repository The repository the event is about
+     * @param user The name of the user that initiated the event
+     */
+    void evaluate(Object event, Repository repository, String user);
+  }
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(EligibilityStage.class);
+
+  private static final int THREADS =
+      Integer.getInteger("jenkins.webhook.eligibility.threads", 2);
+  private static final int QUEUE_SIZE =
+      Integer.getInteger("jenkins.webhook.eligibility.queueSize", 1024);
+  private static final int BATCH_SIZE =
+      Integer.getInteger("jenkins.webhook.eligibility.batchSize", 1);
+  private static final String WAIT_STRATEGY = System.getProperty(
+      "jenkins.webhook.eligibility.waitStrategy", WaitStrategy.BLOCKING.name());
+  private static final boolean CALLER_RUNS =
+      Boolean.getBoolean("jenkins.webhook.eligibility.callerRuns");
+  private static final long FULL_WARNING_INTERVAL_NANOS =
+      TimeUnit.MINUTES.toNanos(1);
+
+  private final EventRingBuffer ring;
+  private final Queue<Overflowed> overflow =
+      new ConcurrentLinkedQueue<Overflowed>();
+  private final AtomicInteger overflowSize = new AtomicInteger();
+  private final AtomicLong lastFullWarning;
+  private final int batchSize;
+  private final boolean callerRuns;
+  private final List<Thread> workers = new ArrayList<Thread>();
+  private volatile boolean running = true;
+  private final AtomicInteger busyCount = new AtomicInteger();
+  private final AtomicLong submittedCount = new AtomicLong();
+  private final AtomicLong completedCount = new AtomicLong();
+  private final AtomicLong failedCount = new AtomicLong();
+  private final AtomicLong overflowCount = new AtomicLong();
+  private final AtomicLong callerRunsCount = new AtomicLong();
+  private final AtomicLong batchCount = new AtomicLong();
+  private final AtomicLong totalWaitNanos = new AtomicLong();
+  private final AtomicLong totalRunNanos = new AtomicLong();
+
+  /**
+   * Create a new instance, sized by the
+   * {@code jenkins.webhook.eligibility.*} system properties
+   */
+  public EligibilityStage() {
+    this(THREADS, QUEUE_SIZE, BATCH_SIZE, parseWaitStrategy(WAIT_STRATEGY),
+        CALLER_RUNS);
+  }
+
+  /**
+   * Create a new instance
+   * @param threads The number of worker threads
+   * @param queueSize The number of slots in the ring
+   * @param batchSize The maximum number of events a worker takes at once
+   * @param waitStrategy How idle workers wait for events
+   * @param callerRuns True if an event that doesn't fit in the ring should be
+   *        evaluated on the submitting thread rather than put on the overflow
+   *        queue
+   */
+  EligibilityStage(int threads, int queueSize, int batchSize,
+      WaitStrategy waitStrategy, boolean callerRuns) {
+    this.ring = new EventRingBuffer(queueSize, waitStrategy);
+    this.batchSize = batchSize;
+    this.callerRuns = callerRuns;
+    this.lastFullWarning = new AtomicLong(
+        System.nanoTime() - FULL_WARNING_INTERVAL_NANOS);
+    ThreadFactory threadFactory = ThreadFactories.namedThreadFactory(
+        "JenkinsWebhookEligibility", ThreadFactories.Type.DAEMON);
+    for (int i = 0; i < threads; i++) {
+      Thread worker = threadFactory.newThread(new Worker());
+      workers.add(worker);
+      worker.start();
+    }
+  }
+
+  /**
+   * Queue an event for evaluation.
+   * @param handler Evaluates the event
+   * @param event The event
+   * @param repository The repository the event is about
+   * @param user The name of the user that initiated the event
+   * @return True if the event was queued or evaluated, false if the stage is
+   *         shut down and the event will never reach the handler
+   */
+  public boolean submit(Handler handler, Object event, Repository repository,
+      String user) {
+    submittedCount.incrementAndGet();
+    // No worker would ever take an event published once the stage is shut
+    // down
+    if (!running) {
+      LOGGER.debug("Eligibility stage is shut down, dropping {}",
+          describe(event, repository));
+      return false;
+    }
+    if (ring.publish(handler, event, repository, user))
+      return true;
+
+    warnFull();
+    if (callerRuns) {
+      callerRunsCount.incrementAndGet();
+      run(handler, event, repository, user, System.nanoTime());
+      return true;
+    }
+    overflowCount.incrementAndGet();
+    overflowSize.incrementAndGet();
+    overflow.add(new Overflowed(handler, event, repository, user));
+    // The ring may have been emptied meanwhile, with every worker waiting
+    ring.wakeAll();
+    return true;
+  }
+
+  /**
+   * Stop all workers, dropping any queued events.
+   */
+  @Override
+  public void destroy() {
+    running = false;
+    overflow.clear();
+    overflowSize.set(0);
+    ring.wakeAll();
+    for (Thread worker : workers)
+      worker.interrupt();
+  }
+
+  /**
+   * Gets the number of events waiting for a thread.
+   * @return The number of queued events
+   */
+  public int getQueuedCount() {
+    return ring.size() + overflowSize.get();
+  }
+
+  /**
+   * Gets the number of threads currently evaluating events.
+   * @return The number of busy threads
+   */
+  public int getBusyCount() {
+    return busyCount.get();
+  }
+
+  /**
+   * Gets the number of events handed to the stage.
+   * @return The number of submitted events
+   */
+  public long getSubmittedCount() {
+    return submittedCount.get();
+  }
+
+  /**
+   * Gets the number of events evaluated without an error.
+   * @return The number of completed events
+   */
+  public long getCompletedCount() {
+    return completedCount.get();
+  }
+
+  /**
+   * Gets the number of events whose evaluation threw an exception.
+   * @return The number of failed events
+   */
+  public long getFailedCount() {
+    return failedCount.get();
+  }
+
+  /**
+   * Gets the number of events put on the overflow queue because the ring was
+   * full.
+   * @return The number of overflowed events
+   */
+  public long getOverflowCount() {
+    return overflowCount.get();
+  }
+
+  /**
+   * Gets the number of events evaluated on the submitting thread because the
+   * queue was full.
+   * @return The number of caller-runs events
+   */
+  public long getCallerRunsCount() {
+    return callerRunsCount.get();
+  }
+
+  /**
+   * Gets the number of batches the workers took off the ring.
+   * @return The number of batches
+   */
+  public long getBatchCount() {
+    return batchCount.get();
+  }
+
+  /**
+   * Gets the average time an event waited in the queue.
+   * @return The average wait in nanoseconds
+   */
+  public long getAverageWaitNanos() {
+    long count = completedCount.get() + failedCount.get();
+    return (count == 0) ? 0 : totalWaitNanos.get() / count;
+  }
+
+  /**
+   * Gets the average time it took to evaluate an event.
+   * @return The average evaluation time in nanoseconds
+   */
+  public long getAverageRunNanos() {
+    long count = completedCount.get() + failedCount.get();
+    return (count == 0) ? 0 : totalRunNanos.get() / count;
+  }
+
+  /**
+   * Gets how idle workers wait for events.
+   * @return The wait strategy
+   */
+  public WaitStrategy getWaitStrategy() {
+    return ring.getWaitStrategy();
+  }
+
+  private void run(Handler handler, Object event, Repository repository,
+      String user, long queuedAt) {
+    long start = System.nanoTime();
+    totalWaitNanos.addAndGet(start - queuedAt);
+    try {
+      handler.evaluate(event, repository, user);
+      completedCount.incrementAndGet();
+    } catch (RuntimeException e) {
+      failedCount.incrementAndGet();
+      LOGGER.error("Unable to evaluate " + describe(event, repository), e);
+    } finally {
+      totalRunNanos.addAndGet(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Warns that the ring is full, at most once a minute so a burst doesn't
+   * flood the log from Stash's event threads.
+   */
+  private void warnFull() {
+    long now = System.nanoTime();
+    long last = lastFullWarning.get();
+    if (now - last >= FULL_WARNING_INTERVAL_NANOS
+        && lastFullWarning.compareAndSet(last, now))
+      LOGGER.warn("Eligibility queue is full, {} events so far went to the "
+          + "overflow queue and {} were evaluated on Stash's event threads",
+          overflowCount.get(), callerRunsCount.get());
+  }
+
+  private static String describe(Object event, Repository repository) {
+    return event.getClass().getSimpleName() + " for "
+        + ((repository != null) ? repository.getSlug() : null);
+  }
+
+  private static WaitStrategy parseWaitStrategy(String name) {
+    try {
+      return WaitStrategy.valueOf(name.toUpperCase(Locale.ENGLISH));
+    } catch (IllegalArgumentException e) {
+      LOGGER.warn("Unknown wait strategy '{}', blocking instead", name);
+      return WaitStrategy.BLOCKING;
+    }
+  }
+
+  /**
+   * An event that didn't fit in the ring.
+   */
+  private static class Overflowed {
+
+    private final Handler handler;
+    private final Object event;
+    private final Repository repository;
+    private final String user;
+    private final long queuedAt = System.nanoTime();
+
+    Overflowed(Handler handler, Object event, Repository repository,
+        String user) {
+      this.handler = handler;
+      this.event = event;
+      this.repository = repository;
+      this.user = user;
+    }
+  }
+
+  /**
+   * Takes the overflowed events, which are older than any in the ring, and
+   * then batches of events off the ring until the stage is shut down.
+   */
+  private class Worker implements Runnable, EventRingBuffer.SlotConsumer {
+
+    @Override
+    public void run() {
+      while (running) {
+        Overflowed overflowed = overflow.poll();
+        if (overflowed != null) {
+          overflowSize.decrementAndGet();
+          busyCount.incrementAndGet();
+          try {
+            EligibilityStage.this.run(overflowed.handler, overflowed.event,
+                overflowed.repository, overflowed.user, overflowed.queuedAt);
+          } finally {
+            busyCount.decrementAndGet();
+          }
+        } else if (ring.drain(this, batchSize) > 0) {
+          batchCount.incrementAndGet();
+        } else {
+          ring.await();
+        }
+      }
+    }
+
+    @Override
+    public void consume(Slot slot) {
+      busyCount.incrementAndGet();
+      try {
+        EligibilityStage.this.run(slot.getHandler(), slot.getEvent(),
+            slot.getRepository(), slot.getUser(), slot.getQueuedAt());
+      } finally {
+        busyCount.decrementAndGet();
+      }
+    }
+  }
+}
@@ -1,11 +1,14 @@
 package com.nerdwin15.stash.webhook.service.eligibility;
 
+import com.atlassian.stash.repository.RefChange;
 import com.atlassian.stash.repository.Repository;
+import com.nerdwin15.stash.webhook.service.SettingsSnapshot;
 
 /**
  * A context object that will be used throughout the eligibility filter chain.
  * The purpose is to encapsulate the original event and provide a single
- * context object.
+ * context object.  It carries the webhook configuration resolved when the
+ * event arrived, so every filter and the notifier agree on it.
  *
  * @author Michael Irwin (mikesir87)
  */
@@ -14,17 +17,37 @@ public class EventContext {
   private final Object eventSource;
   private final Repository repository;
   private final String username;
+  private final RefChange refChange;
+  private final SettingsSnapshot snapshot;
   
   /**
    * Constructs a new context instance
    * @param source The original event source
    * @param repository The repository being affected by the event
    * @param username The username of the user that initiated the event
+   * @param snapshot The webhook configuration of the repository
    */
-  public EventContext(Object source, Repository repository, String username) {
+  public EventContext(Object source, Repository repository, String username,
+      SettingsSnapshot snapshot) {
+    this(source, repository, username, null, snapshot);
+  }
+  
+  /**
+   * Constructs a new context instance that is focused on a single ref change
+   * of the event
+   * @param source The original event source
+   * @param repository The repository being affected by the event
+   * @param username The username of the user that initiated the event
+   * @param refChange The ref change being evaluated, or null for all of them
+   * @param snapshot The webhook configuration of the repository
+   */
+  public EventContext(Object source, Repository repository, String username,
+      RefChange refChange, SettingsSnapshot snapshot) {
     this.eventSource = source;
     this.repository = repository;
     this.username = username;
+    this.refChange = refChange;
+    this.snapshot = snapshot;
   }
   
   /**
@@ -49,4 +72,21 @@ public class EventContext {
   public String getUsername() {
     return username;
   }
+  
+  /**
+   * Gets the {@code refChange} property.
+   * @return The single ref change being evaluated, or null if the whole event
+   * is being evaluated
+   */
+  public RefChange getRefChange() {
+    return refChange;
+  }
+
+  /**
+   * Gets the {@code snapshot} property.
+   * @return The webhook configuration the event is judged against
+   */
+  public SettingsSnapshot getSnapshot() {
+    return snapshot;
+  }
 }
@@ -0,0 +1,301 @@
+package com.nerdwin15.stash.webhook.service.eligibility;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.atlassian.stash.repository.Repository;
+
+/**
+ * A bounded, pre-allocated ring of event slots between the event listeners
+ * and the threads evaluating the events.
+ *
+ * Every slot is allocated up front and reused, so queueing an event allocates
+ * nothing.  Each slot carries a sequence number telling whether it is free
+ * for the producer of a given lap or holds an event for the consumer of that
+ * lap, so producers and consumers only ever contend on a compare-and-set of
+ * their own cursor.  Any number of threads may publish, and consumers take
+ * every ready event up to a batch size in a single step.  A slot is only
+ * handed back once its event has been consumed.
+ */
+public class EventRingBuffer {
+
+  /**
+   * How a consumer waits when the ring is empty.
+   */
+  public enum WaitStrategy {
+    /**
+     * Park until a producer signals; cheapest on CPU.
+     */
+    BLOCKING,
+    /**
+     * Yield the processor between checks.
+     */
+    YIELDING,
+    /**
+     * Check again right away.  Burns a core per consumer; for testing and
+     * benchmarking only.
+     */
+    BUSY_SPIN
+  }
+
+  /**
+   * Receives the events taken from the ring.
+   */
+  public interface SlotConsumer {
+
+    /**
+     * Handle one event.  The slot is reused once this returns, so nothing may
+     * be kept from it.
+     * @param slot The slot holding the event
+     */
+    void consume(Slot slot);
+  }
+
+  private static final long BLOCKING_TIMEOUT_MS = 100L;
+
+  private final Slot[] slots;
+  private final AtomicLongArray sequences;
+  private final int mask;
+  private final WaitStrategy waitStrategy;
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong tail = new AtomicLong();
+  private final AtomicInteger waiters = new AtomicInteger();
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+
+  /**
+   * Create a new instance
+   * @param capacity The minimum number of slots, rounded up to a power of two
+   * @param waitStrategy How consumers wait when the ring is empty
+   */
+  public EventRingBuffer(int capacity, WaitStrategy waitStrategy) {
+    int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+    this.slots = new Slot[size];
+    this.sequences = new AtomicLongArray(size);
+    this.mask = size - 1;
+    this.waitStrategy = waitStrategy;
+    for (int i = 0; i < size; i++) {
+      slots[i] = new Slot();
+      sequences.set(i, i);
+    }
+  }
+
+  /**
+   * Put an event in the next free slot.
+   * @param handler Evaluates the event
+   * @param event The event
+   * @param repository The repository the event is about
+   * @param user The name of the user that initiated the event
+   * @return True if the event was queued, false if the ring is full
+   */
+  public boolean publish(EligibilityStage.Handler handler, Object event,
+      Repository repository, String user) {
+    long position;
+    for (;;) {
+      position = head.get();
+      long lag = sequences.get(index(position)) - position;
+      if (lag < 0)
+        return false;
+      if (lag == 0 && head.compareAndSet(position, position + 1))
+        break;
+    }
+
+    Slot slot = slots[index(position)];
+    slot.handler = handler;
+    slot.event = event;
+    slot.repository = repository;
+    slot.user = user;
+    slot.queuedAt = System.nanoTime();
+    sequences.set(index(position), position + 1);
+
+    if (waiters.get() > 0) {
+      lock.lock();
+      try {
+        notEmpty.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Take every ready event, up to a batch size, and hand them to a consumer.
+   * @param consumer Receives the events
+   * @param maxBatch The maximum number of events to take
+   * @return The number of events taken, zero if the ring was empty
+   * @throws RuntimeException The first exception thrown by the consumer, once
+   *         the whole batch has been handed to it
+   */
+  public int drain(SlotConsumer consumer, int maxBatch) {
+    int limit = Math.min(maxBatch, slots.length);
+    for (;;) {
+      long position = tail.get();
+      int ready = 0;
+      while (ready < limit && sequences.get(index(position + ready))
+          == position + ready + 1)
+        ready++;
+      if (ready == 0)
+        return 0;
+      if (!tail.compareAndSet(position, position + ready))
+        continue;
+
+      // Every claimed slot is handed back, even if the consumer fails
+      RuntimeException failure = null;
+      for (int i = 0; i < ready; i++) {
+        int index = index(position + i);
+        Slot slot = slots[index];
+        try {
+          consumer.consume(slot);
+        } catch (RuntimeException e) {
+          if (failure == null)
+            failure = e;
+        } finally {
+          slot.clear();
+          sequences.set(index, position + i + slots.length);
+        }
+      }
+      if (failure != null)
+        throw failure;
+      return ready;
+    }
+  }
+
+  /**
+   * Wait for an event to be published, according to the wait strategy.
+   * Returns early if interrupted or, when blocking, after a short timeout so
+   * that shutdown is noticed.
+   */
+  public void await() {
+    if (waitStrategy == WaitStrategy.BUSY_SPIN)
+      return;
+    if (waitStrategy == WaitStrategy.YIELDING) {
+      Thread.yield();
+      return;
+    }
+
+    lock.lock();
+    waiters.incrementAndGet();
+    try {
+      if (isEmpty())
+        notEmpty.await(BLOCKING_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      waiters.decrementAndGet();
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Wake up every waiting consumer.
+   */
+  public void wakeAll() {
+    lock.lock();
+    try {
+      notEmpty.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Is there no event ready to be taken?
+   * @return True if the ring is empty
+   */
+  public boolean isEmpty() {
+    long position = tail.get();
+    return sequences.get(index(position)) != position + 1;
+  }
+
+  /**
+   * Gets the number of events published but not yet taken.
+   * @return The number of queued events
+   */
+  public int size() {
+    return (int) Math.max(0, head.get() - tail.get());
+  }
+
+  /**
+   * Gets the number of slots.
+   * @return The capacity of the ring
+   */
+  public int getCapacity() {
+    return slots.length;
+  }
+
+  /**
+   * Gets the {@code waitStrategy} property.
+   * @return How consumers wait when the ring is empty
+   */
+  public WaitStrategy getWaitStrategy() {
+    return waitStrategy;
+  }
+
+  private int index(long position) {
+    return (int) position & mask;
+  }
+
+  /**
+   * A reusable slot holding a single queued event.
+   */
+  public static class Slot {
+
+    private EligibilityStage.Handler handler;
+    private Object event;
+    private Repository repository;
+    private String user;
+    private long queuedAt;
+
+    /**
+     * Gets the {@code handler} property.
+     * @return Evaluates the event
+     */
+    public EligibilityStage.Handler getHandler() {
+      return handler;
+    }
+
+    /**
+     * Gets the {@code event} property.
+     * @return The event
+     */
+    public Object getEvent() {
+      return event;
+    }
+
+    /**
+     * Gets the {@code repository} property.
+     * @return The repository the event is about
+     */
+    public Repository getRepository() {
+      return repository;
+    }
+
+    /**
+     * Gets the {@code user} property.
+     * @return The name of the user that initiated the event
+     */
+    public String getUser() {
+      return user;
+    }
+
+    /**
+     * Gets the {@code queuedAt} property.
+     * @return When the event was published, from {@link System#nanoTime()}
+     */
+    public long getQueuedAt() {
+      return queuedAt;
+    }
+
+    private void clear() {
+      handler = null;
+      event = null;
+      repository = null;
+      user = null;
+    }
+  }
+}
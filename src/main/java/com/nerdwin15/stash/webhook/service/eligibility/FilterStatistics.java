@@ -0,0 +1,116 @@
+package com.nerdwin15.stash.webhook.service.eligibility;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.atlassian.stash.repository.RefChange;
+
+/**
+ * How much time a filter has taken and how often it rejected an event of a
+ * single type.
+ */
+public class FilterStatistics {
+
+  private final EligibilityFilter filter;
+  private final AtomicLong invocations = new AtomicLong();
+  private final AtomicLong rejections = new AtomicLong();
+  private final AtomicLong totalNanos = new AtomicLong();
+
+  FilterStatistics(EligibilityFilter filter) {
+    this.filter = filter;
+  }
+
+  boolean evaluate(EventContext event) {
+    long start = System.nanoTime();
+    boolean deliver = filter.shouldDeliverNotification(event);
+    record(start, !deliver);
+    return deliver;
+  }
+
+  void retainEligible(EventContext event, List<RefChange> refChanges,
+      BitSet eligible) {
+    long start = System.nanoTime();
+    int before = eligible.cardinality();
+    if (filter instanceof RefChangeEligibilityFilter) {
+      ((RefChangeEligibilityFilter) filter).retainEligible(event, refChanges,
+          eligible);
+    } else {
+      for (int i = eligible.nextSetBit(0); i >= 0;
+          i = eligible.nextSetBit(i + 1)) {
+        if (!filter.shouldDeliverNotification(new EventContext(
+            event.getEventSource(), event.getRepository(),
+            event.getUsername(), refChanges.get(i), event.getSnapshot())))
+          eligible.clear(i);
+      }
+    }
+    record(start, eligible.cardinality() < before);
+  }
+
+  /**
+   * Halves the counts, so what a filter did recently outweighs what it did
+   * long ago, such as before its settings or the repositories changed.
+   */
+  void decay() {
+    halve(invocations);
+    halve(rejections);
+    halve(totalNanos);
+  }
+
+  private void record(long start, boolean rejected) {
+    totalNanos.addAndGet(System.nanoTime() - start);
+    invocations.incrementAndGet();
+    if (rejected)
+      rejections.incrementAndGet();
+  }
+
+  /**
+   * Gets the {@code filter} property.
+   * @return The filter being measured
+   */
+  public EligibilityFilter getFilter() {
+    return filter;
+  }
+
+  /**
+   * Gets the number of events the filter evaluated.
+   * @return The number of invocations
+   */
+  public long getInvocations() {
+    return invocations.get();
+  }
+
+  /**
+   * Gets the number of events the filter rejected.
+   * @return The number of rejections
+   */
+  public long getRejections() {
+    return rejections.get();
+  }
+
+  /**
+   * Gets the average time the filter takes.
+   * @return The average cost in nanoseconds
+   */
+  public long getAverageNanos() {
+    long count = invocations.get();
+    return (count == 0) ? 0 : totalNanos.get() / count;
+  }
+
+  /**
+   * Gets the time spent in the filter for each event it rejected.  A
+   * rejection is added to smooth out filters that haven't rejected anything
+   * yet.
+   * @return The expected cost per rejection in nanoseconds
+   */
+  public double getCostPerRejection() {
+    return (double) totalNanos.get() / (rejections.get() + 1);
+  }
+
+  private static void halve(AtomicLong counter) {
+    long current;
+    do {
+      current = counter.get();
+    } while (!counter.compareAndSet(current, current / 2));
+  }
+}
@@ -3,10 +3,6 @@ package com.nerdwin15.stash.webhook.service.eligibility;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.atlassian.stash.setting.Settings;
-import com.nerdwin15.stash.webhook.Notifier;
-import com.nerdwin15.stash.webhook.service.SettingsService;
-
 /**
  * An EligibilityFilter that checks if the user that initiated the 
  * RepositoryRefsChangedEvent is a user that is in the ignores list for the 
@@ -17,37 +13,25 @@ import com.nerdwin15.stash.webhook.service.SettingsService;
 public class IgnoreCommittersEligibilityFilter implements EligibilityFilter {
 
   private static final Logger logger = // CHECKSTYLE:logger
-  LoggerFactory.getLogger(IgnoreCommittersEligibilityFilter.class);
-
-  private SettingsService settingsService;
-
-  /**
-   * Constructs a new instance
-   * @param settingsService Service to get the webhook settings
-   */
-  public IgnoreCommittersEligibilityFilter(
-      SettingsService settingsService) {
-    this.settingsService = settingsService;
-  }
+      LoggerFactory.getLogger(IgnoreCommittersEligibilityFilter.class);
 
   @Override
   public boolean shouldDeliverNotification(EventContext event) {
     String eventUserName = event.getUsername();
-
-    final Settings settings = settingsService.getSettings(
-        event.getRepository());
-    String ignoreCommitters = settings.getString(Notifier.IGNORE_COMMITTERS);
-    if (ignoreCommitters == null || eventUserName == null)
+    if (!event.getSnapshot().isIgnoredCommitter(eventUserName))
       return true;
 
-    for (String committer : ignoreCommitters.split(" ")) {
-      if (committer.equalsIgnoreCase(eventUserName)) {
-        logger.debug("Ignoring push event due to ignore committer {}",
-            committer);
-        return false;
-      }
-    }
-    return true;
+    logger.debug("Ignoring push event due to ignore committer {}",
+        eventUserName);
+    return false;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public Class<?>[] getEventTypes() {
+    return new Class<?>[0];
   }
   
 }
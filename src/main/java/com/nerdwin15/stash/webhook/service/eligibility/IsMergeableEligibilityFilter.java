@@ -1,11 +1,33 @@
 package com.nerdwin15.stash.webhook.service.eligibility;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 
 import com.atlassian.stash.event.pull.PullRequestEvent;
+import com.atlassian.stash.pull.PullRequest;
+import com.atlassian.stash.pull.PullRequestRef;
 import com.atlassian.stash.pull.PullRequestService;
 import com.atlassian.stash.pull.PullRequestState;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.SecurityService;
+import com.atlassian.stash.util.Operation;
+import com.atlassian.util.concurrent.ThreadFactories;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 /**
  * An EligibilityFilter that checks if the commit that was
@@ -13,41 +35,71 @@ import com.atlassian.stash.pull.PullRequestState;
  * 
  * This filter works with all PullRequestEvents that come through.
  * 
+ * Working out whether a pull request can be merged may run a real merge, so
+ * the result is cached for the pull request's from and to hashes and only
+ * waited for up to a deadline.  If the deadline passes, the configured
+ * default is used and the check keeps running in the background so the next
+ * event for the same pull request finds it cached.
+ * 
  * @author Melvyn de Kort (lordmatanza)
  * @author Michael Irwin (mikesir87)
  */
-public class IsMergeableEligibilityFilter implements EligibilityFilter {
+public class IsMergeableEligibilityFilter implements EligibilityFilter,
+    DisposableBean {
 
   private static final Logger logger = // CHECKSTYLE:logger
       LoggerFactory.getLogger(IsMergeableEligibilityFilter.class);
 
+  private static final long TIMEOUT_MS =
+      Long.getLong("jenkins.webhook.mergeCheck.timeoutMs", 2000L);
+  private static final boolean DELIVER_ON_TIMEOUT = Boolean.parseBoolean(
+      System.getProperty("jenkins.webhook.mergeCheck.deliverOnTimeout",
+          "true"));
+  private static final int THREADS =
+      Integer.getInteger("jenkins.webhook.mergeCheck.threads", 2);
+  private static final long CACHE_SIZE =
+      Long.getLong("jenkins.webhook.mergeCheck.cacheSize", 1000L);
+
   private PullRequestService pullRequestService;
+  private SecurityService securityService;
+  private final ExecutorService executor;
+  private final Cache<String, Boolean> conflicted = CacheBuilder.newBuilder()
+      .maximumSize(CACHE_SIZE)
+      .build();
+  private final ConcurrentMap<String, Future<Boolean>> inFlight =
+      new ConcurrentHashMap<String, Future<Boolean>>();
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong timeoutCount = new AtomicLong();
 
   /**
    * Constructs a new instance
-   * @param pullRequestService Service to get the webhook settings
+   * @param pullRequestService Service to check the pull request mergeability
+   * @param securityService Service to run the check with read permission
    */
   public IsMergeableEligibilityFilter(
-      PullRequestService pullRequestService) {
+      PullRequestService pullRequestService, SecurityService securityService) {
     this.pullRequestService = pullRequestService;
+    this.securityService = securityService;
+    this.executor = Executors.newFixedThreadPool(THREADS,
+        ThreadFactories.namedThreadFactory("JenkinsWebhookMergeCheck",
+            ThreadFactories.Type.DAEMON));
   }
 
   @Override
   public boolean shouldDeliverNotification(EventContext context) {
-    
-    if (!PullRequestEvent.class
-        .isAssignableFrom(context.getEventSource().getClass()))
-      return true;
-    
     PullRequestEvent event = (PullRequestEvent) context.getEventSource();
     
     if (!event.getPullRequest().getState().equals(PullRequestState.OPEN))
       return true;
     
     int repoId = context.getRepository().getId();
-    long pullRequestId = event.getPullRequest().getId();
+    PullRequest pullRequest = event.getPullRequest();
+    String key = repoId + ":" + pullRequest.getId() + ":"
+        + getHash(pullRequest.getFromRef()) + ":"
+        + getHash(pullRequest.getToRef());
 
-    if (pullRequestService.canMerge(repoId, pullRequestId).isConflicted()) {
+    if (isConflicted(key, repoId, pullRequest.getId())) {
       logger.debug("Ignoring push event due to conflicts in merge");
       return false;
     }
@@ -55,4 +107,105 @@ public class IsMergeableEligibilityFilter implements EligibilityFilter {
     return true;
   }
 
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public Class<?>[] getEventTypes() {
+    return new Class<?>[] { PullRequestEvent.class };
+  }
+
+  /**
+   * Gets the number of checks answered from the cache.
+   * @return The number of cache hits
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * Gets the number of checks that had to ask Stash.
+   * @return The number of cache misses
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * Gets the number of checks that fell back to the default because Stash
+   * didn't answer in time.
+   * @return The number of timeouts
+   */
+  public long getTimeoutCount() {
+    return timeoutCount.get();
+  }
+
+  @Override
+  public void destroy() {
+    executor.shutdownNow();
+  }
+
+  private boolean isConflicted(final String key, final int repoId,
+      final long pullRequestId) {
+    Boolean cached = conflicted.getIfPresent(key);
+    if (cached != null) {
+      hitCount.incrementAndGet();
+      return cached;
+    }
+    missCount.incrementAndGet();
+
+    // Events for the same pull request share a single check
+    FutureTask<Boolean> task = new FutureTask<Boolean>(new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        try {
+          Boolean result = securityService.doWithPermission(
+              "Checking pull request mergeability", Permission.REPO_READ,
+              new Operation<Boolean, Exception>() {
+            @Override
+            public Boolean perform() throws Exception {
+              return pullRequestService.canMerge(repoId, pullRequestId)
+                  .isConflicted();
+            }
+          });
+          conflicted.put(key, result);
+          return result;
+        } finally {
+          inFlight.remove(key);
+        }
+      }
+    });
+    Future<Boolean> future = inFlight.putIfAbsent(key, task);
+    if (future == null) {
+      future = task;
+      try {
+        executor.execute(task);
+      } catch (RejectedExecutionException e) {
+        inFlight.remove(key);
+        return !DELIVER_ON_TIMEOUT;
+      }
+    }
+
+    try {
+      return future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      timeoutCount.incrementAndGet();
+      logger.warn("Mergeability of pull request {} not known after {} ms, "
+          + "assuming it {} be built", new Object[] { pullRequestId,
+          TIMEOUT_MS, DELIVER_ON_TIMEOUT ? "can" : "can't" });
+      return !DELIVER_ON_TIMEOUT;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return !DELIVER_ON_TIMEOUT;
+    } catch (ExecutionException e) {
+      logger.error("Unable to check the mergeability of pull request "
+          + pullRequestId, e.getCause());
+      return !DELIVER_ON_TIMEOUT;
+    }
+  }
+
+  private static String getHash(PullRequestRef ref) {
+    return (ref == null) ? null : ref.getLatestChangeset();
+  }
+
 }
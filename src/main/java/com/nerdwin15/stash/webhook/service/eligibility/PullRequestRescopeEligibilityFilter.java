@@ -22,10 +22,6 @@ public class PullRequestRescopeEligibilityFilter implements EligibilityFilter {
    */
   @Override
   public boolean shouldDeliverNotification(EventContext context) {
-    if (!PullRequestRescopedEvent.class
-        .isAssignableFrom(context.getEventSource().getClass()))
-      return true;
-    
     PullRequestRescopedEvent event = 
         (PullRequestRescopedEvent) context.getEventSource();
     if (event.getPreviousFromHash().equals(event.getPullRequest().getFromRef()
@@ -37,5 +33,13 @@ public class PullRequestRescopeEligibilityFilter implements EligibilityFilter {
     
     return true;
   }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public Class<?>[] getEventTypes() {
+    return new Class<?>[] { PullRequestRescopedEvent.class };
+  }
   
 }
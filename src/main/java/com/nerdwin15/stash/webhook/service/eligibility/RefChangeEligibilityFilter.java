@@ -0,0 +1,25 @@
+package com.nerdwin15.stash.webhook.service.eligibility;
+
+import java.util.BitSet;
+import java.util.List;
+
+import com.atlassian.stash.repository.RefChange;
+
+/**
+ * An EligibilityFilter that can judge all of the ref changes of an event in a
+ * single pass, rather than being asked about each ref change on its own.
+ * 
+ */
+public interface RefChangeEligibilityFilter extends EligibilityFilter {
+
+  /**
+   * Clear the bits of the ref changes that shouldn't be notified.  Ref changes
+   * whose bit is already clear have been rejected and needn't be looked at.
+   * @param context The context of the whole event
+   * @param refChanges The ref changes of the event
+   * @param eligible One bit per ref change, set if it is still eligible
+   */
+  void retainEligible(EventContext context, List<RefChange> refChanges,
+      BitSet eligible);
+
+}
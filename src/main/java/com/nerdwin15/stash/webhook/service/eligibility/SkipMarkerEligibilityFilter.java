@@ -0,0 +1,107 @@
+package com.nerdwin15.stash.webhook.service.eligibility;
+
+import java.util.Collection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.atlassian.stash.content.Changeset;
+import com.atlassian.stash.content.ChangesetsBetweenRequest;
+import com.atlassian.stash.history.HistoryService;
+import com.atlassian.stash.repository.RefChange;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.user.SecurityService;
+import com.atlassian.stash.util.Page;
+import com.atlassian.stash.util.PageRequest;
+import com.atlassian.stash.util.PageRequestImpl;
+import com.nerdwin15.stash.webhook.service.SettingsSnapshot;
+
+/**
+ * An EligibilityFilter that skips the notification when every pushed commit
+ * carries the configured marker, such as {@code [skip ci]}, in its message.
+ * 
+ * The pushed commits are read newest first, a page at a time, and the filter
+ * stops at the first commit without the marker.  A push with more commits
+ * than the maximum scan depth is let through unless one of them is unmarked
+ * within that depth.
+ * 
+ */
+public class SkipMarkerEligibilityFilter
+    extends AbstractPushEligibilityFilter {
+
+  private static final Logger logger = // CHECKSTYLE:logger
+      LoggerFactory.getLogger(SkipMarkerEligibilityFilter.class);
+
+  private static final int MAX_SCAN_DEPTH = Math.max(1,
+      Integer.getInteger("jenkins.webhook.skipMarker.maxCommits", 100));
+
+  /**
+   * Constructs a new instance
+   * @param historyService Service to read the pushed commits
+   * @param securityService Service to read them with read permission
+   */
+  public SkipMarkerEligibilityFilter(HistoryService historyService,
+      SecurityService securityService) {
+    super(historyService, securityService, "pushed commits");
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  protected boolean isConfigured(SettingsSnapshot snapshot) {
+    return snapshot.getSkipMarker() != null;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  protected boolean shouldDeliver(Repository repository,
+      Collection<RefChange> refChanges, SettingsSnapshot snapshot) {
+    // A push that only deletes branches has no commits to be marked
+    if (refChanges.isEmpty())
+      return true;
+
+    String marker = snapshot.getSkipMarker();
+    int depth = 0;
+    for (RefChange refChange : refChanges) {
+      ChangesetsBetweenRequest request =
+          getPushedChangesets(repository, refChange);
+      PageRequest pageRequest = new PageRequestImpl(0,
+          Math.min(PAGE_SIZE, MAX_SCAN_DEPTH - depth));
+      while (pageRequest != null) {
+        Page<Changeset> changesets =
+            getHistoryService().getChangesetsBetween(request, pageRequest);
+        for (Changeset changeset : changesets.getValues()) {
+          if (!containsIgnoreCase(changeset.getMessage(), marker))
+            return true;
+          if (++depth == MAX_SCAN_DEPTH) {
+            logger.debug("All of the first {} commits are marked with '{}', "
+                + "notifying anyway", MAX_SCAN_DEPTH, marker);
+            return true;
+          }
+        }
+        pageRequest = changesets.getIsLastPage() ? null
+            : new PageRequestImpl(pageRequest.getStart() + changesets.getSize(),
+                Math.min(PAGE_SIZE, MAX_SCAN_DEPTH - depth));
+      }
+    }
+
+    logger.debug("Ignoring push event as every commit is marked with '{}'",
+        marker);
+    return false;
+  }
+
+  private static boolean containsIgnoreCase(String message, String marker) {
+    if (message == null)
+      return false;
+    int last = message.length() - marker.length();
+    for (int i = 0; i <= last; i++) {
+      if (message.regionMatches(true, i, marker, 0, marker.length()))
+        return true;
+    }
+    return false;
+  }
+
+}
@@ -3,6 +3,7 @@ package com.nerdwin15.stash.webhook;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -89,4 +90,47 @@ public class PostReceiveHookTest {
     verify(errors).addFieldError(eq(Notifier.CLONE_URL), anyString());
   }
 
+  /**
+   * Validate that an error is added when a branch pattern is unsafe
+   * @throws Exception
+   */
+  @Test
+  public void shouldAddErrorWhenBranchPatternUnsafe() throws Exception {
+    when(settings.getString(Notifier.BRANCH_OPTIONS)).thenReturn("whitelist");
+    when(settings.getString(Notifier.BRANCH_OPTIONS_BRANCHES))
+      .thenReturn("master regex:(a+)+");
+    hook.validate(settings, errors, repo);
+    verify(errors).addFieldError(eq(Notifier.BRANCH_OPTIONS_BRANCHES),
+        anyString());
+  }
+
+  /**
+   * Validate that branch patterns are checked even when no branch option is
+   * selected
+   * @throws Exception
+   */
+  @Test
+  public void shouldAddErrorWhenBranchPatternUnsafeWithoutOption()
+      throws Exception {
+    when(settings.getString(Notifier.BRANCH_OPTIONS_BRANCHES))
+      .thenReturn("regex:(a+)+");
+    hook.validate(settings, errors, repo);
+    verify(errors).addFieldError(eq(Notifier.BRANCH_OPTIONS_BRANCHES),
+        anyString());
+  }
+
+  /**
+   * Validate that globs and safe regular expressions are accepted
+   * @throws Exception
+   */
+  @Test
+  public void shouldAcceptBranchPatterns() throws Exception {
+    when(settings.getString(Notifier.BRANCH_OPTIONS)).thenReturn("whitelist");
+    when(settings.getString(Notifier.BRANCH_OPTIONS_BRANCHES))
+      .thenReturn("release/*/hotfix-** regex:feature/[a-z]+-\\d+");
+    hook.validate(settings, errors, repo);
+    verify(errors, never()).addFieldError(
+        eq(Notifier.BRANCH_OPTIONS_BRANCHES), anyString());
+  }
+
 }
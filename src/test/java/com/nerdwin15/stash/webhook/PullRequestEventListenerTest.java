@@ -1,137 +1,263 @@
 package com.nerdwin15.stash.webhook;
 
 import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
-import static org.powermock.api.mockito.PowerMockito.mock;
-import static org.powermock.api.mockito.PowerMockito.when;
+import static org.mockito.Mockito.when;
 
-import com.atlassian.stash.repository.RefChange;
 import org.junit.Before;
 import org.junit.Test;
-import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
-import org.mockito.Mockito;
-import org.powermock.api.mockito.PowerMockito;
-import org.powermock.core.classloader.annotations.PrepareForTest;
-import org.powermock.modules.junit4.PowerMockRunner;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
-import com.atlassian.stash.event.RepositoryRefsChangedEvent;
 import com.atlassian.stash.event.pull.PullRequestEvent;
+import com.atlassian.stash.event.pull.PullRequestOpenedEvent;
+import com.atlassian.stash.event.pull.PullRequestRescopedEvent;
+import com.atlassian.stash.hook.repository.RepositoryHook;
 import com.atlassian.stash.pull.PullRequest;
 import com.atlassian.stash.pull.PullRequestRef;
 import com.atlassian.stash.repository.Repository;
 import com.atlassian.stash.setting.Settings;
 import com.atlassian.stash.user.StashUser;
 import com.nerdwin15.stash.webhook.service.SettingsService;
+import com.nerdwin15.stash.webhook.service.SettingsSnapshot;
 import com.nerdwin15.stash.webhook.service.eligibility.EligibilityFilterChain;
+import com.nerdwin15.stash.webhook.service.eligibility.EligibilityStage;
 import com.nerdwin15.stash.webhook.service.eligibility.EventContext;
 
 /**
- * Test case for the PullRequestRescopeListener class.
- * 
+ * Test case for the PullRequestEventListener class.
+ *
  * @author Michael Irwin (mikesir87)
  */
-@RunWith(PowerMockRunner.class)
-@PrepareForTest(PullRequestEvent.class)
 public class PullRequestEventListenerTest {
 
   private Notifier notifier;
   private EligibilityFilterChain filterChain;
   private PullRequestEventListener listener;
   private SettingsService settingsService;
-  private PullRequestEvent event;
+  private EligibilityStage eligibilityStage;
   private Repository repo;
+  private PullRequest request;
+  private PullRequestRef fromRef;
 
   /**
    * Setup tasks
    */
   @Before
   public void setup() throws Exception {
-    PullRequest request = mock(PullRequest.class);
+    repo = mock(Repository.class);
+    when(repo.getId()).thenReturn(1);
     PullRequestRef toRef = mock(PullRequestRef.class);
-    
-    event = mock(PullRequestEvent.class);
-    when(event.getPullRequest()).thenReturn(request);
-    when(request.getToRef()).thenReturn(toRef);
     when(toRef.getRepository()).thenReturn(repo);
-    
+    fromRef = mock(PullRequestRef.class);
+    when(fromRef.getId()).thenReturn("refs/heads/feature");
+    when(fromRef.getLatestChangeset()).thenReturn("sha1");
+    request = mock(PullRequest.class);
+    when(request.getId()).thenReturn(7L);
+    when(request.getToRef()).thenReturn(toRef);
+    when(request.getFromRef()).thenReturn(fromRef);
+
     notifier = mock(Notifier.class);
     filterChain = mock(EligibilityFilterChain.class);
     settingsService = mock(SettingsService.class);
-    listener = new PullRequestEventListener(filterChain, notifier, 
-        settingsService);
+    eligibilityStage = mock(EligibilityStage.class);
+    when(eligibilityStage.submit(any(EligibilityStage.Handler.class), any(),
+        any(Repository.class), any(String.class))).thenReturn(true);
+    listener = new PullRequestEventListener(filterChain, notifier,
+        settingsService, eligibilityStage);
   }
 
   /**
    * Validates that the notifier is used when the filter chain says ok
    */
-//  @Test
-//  public void shouldNotifyWhenChainSaysOk() throws Exception {
-//    PullRequestRef r = Mockito.mock(PullRequestRef.class);
-//    Mockito.when(r.toString()).thenReturn("project/repo:refs/heads/master");
-//    Mockito.when(r.getLatestChangeset()).thenReturn("sha1");
-//    when(event.getPullRequest().getFromRef()).thenReturn(r);
-//
-//    Settings settings = mock(Settings.class);
-//
-//    StashUser user = PowerMockito.mock(StashUser.class);
-//    String username = "pinky";
-//    ArgumentCaptor<EventContext> contextCaptor =
-//        ArgumentCaptor.forClass(EventContext.class);
-//    when(event.getUser()).thenReturn(user);
-//    when(user.getName()).thenReturn(username);
-//
-//    when(settingsService.getSettings(repo)).thenReturn(settings);
-//    when(filterChain.shouldDeliverNotification(contextCaptor.capture()))
-//        .thenReturn(true);
-//
-//    listener.handleEvent(event);
-//
-//    verify(notifier).notifyBackground(repo, "master", "sha1");
-//    assertEquals(event, contextCaptor.getValue().getEventSource());
-//    assertEquals(username, contextCaptor.getValue().getUsername());
-//    assertEquals(repo, contextCaptor.getValue().getRepository());
-//  }
+  @Test
+  public void shouldNotifyWhenChainSaysOk() throws Exception {
+    givenStageRunsRightAway();
+    PullRequestOpenedEvent event = givenEvent(PullRequestOpenedEvent.class);
+    StashUser user = mock(StashUser.class);
+    when(user.getName()).thenReturn("pinky");
+    when(event.getUser()).thenReturn(user);
+    SettingsSnapshot snapshot = givenSnapshot(mock(Settings.class));
+    ArgumentCaptor<EventContext> contextCaptor =
+        ArgumentCaptor.forClass(EventContext.class);
+    when(filterChain.shouldDeliverNotification(contextCaptor.capture()))
+        .thenReturn(true);
+
+    listener.onPullRequestOpened(event);
+
+    verify(notifier).notifyBackground(repo, snapshot, "feature", "sha1");
+    assertEquals(event, contextCaptor.getValue().getEventSource());
+    assertEquals("pinky", contextCaptor.getValue().getUsername());
+    assertEquals(repo, contextCaptor.getValue().getRepository());
+    assertEquals(snapshot, contextCaptor.getValue().getSnapshot());
+    assertEquals(0, listener.getPendingCount());
+  }
 
   /**
    * Validates that the notifier is not notified when the filter chain says no
    */
-//  @Test
-//  public void shouldNotifyWhenChainSaysCancel() throws Exception {
-//    Repository repo = mock(Repository.class);
-//    Settings settings = mock(Settings.class);
-//
-//    StashUser user = mock(StashUser.class);
-//    String username = "pinky";
-//    ArgumentCaptor<EventContext> contextCaptor =
-//        ArgumentCaptor.forClass(EventContext.class);
-//    when(event.getUser()).thenReturn(user);
-//    when(user.getName()).thenReturn(username);
-//
-//    when(settingsService.getSettings(repo)).thenReturn(settings);
-//    when(filterChain.shouldDeliverNotification(contextCaptor.capture()))
-//        .thenReturn(false);
-//
-//    listener.handleEvent(event);
-//
-//    verify(notifier, never()).notifyBackground(repo, "master", "sha1");
-//  }
-  
+  @Test
+  public void shouldNotNotifyWhenChainSaysCancel() throws Exception {
+    givenStageRunsRightAway();
+    givenSnapshot(mock(Settings.class));
+    when(filterChain.shouldDeliverNotification(any(EventContext.class)))
+        .thenReturn(false);
+
+    listener.onPullRequestOpened(givenEvent(PullRequestOpenedEvent.class));
+
+    verify(notifier, never()).notifyBackground(any(Repository.class),
+        any(SettingsSnapshot.class), anyString(), anyString());
+  }
+
   /**
    * Validates that if the repository has no settings set, execution stops
    * @throws Exception
    */
-//  @Test
-//  public void shouldntConsultChainWhenSettingsAreNull() throws Exception {
-//    RepositoryRefsChangedEvent e = mock(RepositoryRefsChangedEvent.class);
-//    Repository repo = mock(Repository.class);
-//
-//    when(e.getRepository()).thenReturn(repo);
-//    when(settingsService.getSettings(repo)).thenReturn(null);
-//
-//    listener.handleEvent(event);
-//
-//    verify(notifier, never()).notifyBackground(repo, "master", "sha1");
-//  }
+  @Test
+  public void shouldntConsultChainWhenSettingsAreNull() throws Exception {
+    givenStageRunsRightAway();
+    givenSnapshot(null);
+
+    listener.onPullRequestOpened(givenEvent(PullRequestOpenedEvent.class));
+
+    verify(filterChain, never()).shouldDeliverNotification(
+        any(EventContext.class));
+  }
+
+  /**
+   * Validates that a burst of events for the same pull request is queued
+   * once and evaluated for the latest event only
+   * @throws Exception
+   */
+  @Test
+  public void shouldCollapseBurstIntoLatestEvent() throws Exception {
+    SettingsSnapshot snapshot = givenSnapshot(mock(Settings.class));
+    when(filterChain.shouldDeliverNotification(any(EventContext.class)))
+        .thenReturn(true);
+    PullRequestOpenedEvent opened = givenEvent(PullRequestOpenedEvent.class);
+    PullRequestRescopedEvent rescoped =
+        givenEvent(PullRequestRescopedEvent.class);
+    when(rescoped.getPreviousFromHash()).thenReturn("sha0");
+
+    listener.onPullRequestOpened(opened);
+    listener.onPullRequestRescoped(rescoped);
+    listener.onPullRequestRescoped(rescoped);
+
+    ArgumentCaptor<EligibilityStage.Handler> handlerCaptor =
+        ArgumentCaptor.forClass(EligibilityStage.Handler.class);
+    verify(eligibilityStage).submit(handlerCaptor.capture(), any(),
+        any(Repository.class), any(String.class));
+    assertEquals(1, listener.getPendingCount());
+    assertEquals(2, listener.getCollapsedCount());
+
+    ArgumentCaptor<EventContext> contextCaptor =
+        ArgumentCaptor.forClass(EventContext.class);
+    handlerCaptor.getValue().evaluate(opened, repo, null);
+
+    verify(filterChain).shouldDeliverNotification(contextCaptor.capture());
+    assertEquals(rescoped, contextCaptor.getValue().getEventSource());
+    verify(notifier, times(1)).notifyBackground(repo, snapshot, "feature",
+        "sha1");
+    assertEquals(0, listener.getPendingCount());
+  }
+
+  /**
+   * Validates that a rescope of the to-side doesn't displace a queued event
+   * @throws Exception
+   */
+  @Test
+  public void shouldKeepQueuedEventWhenFromSideIsUnchanged() throws Exception {
+    PullRequestOpenedEvent opened = givenEvent(PullRequestOpenedEvent.class);
+    PullRequestRescopedEvent rescoped =
+        givenEvent(PullRequestRescopedEvent.class);
+    when(rescoped.getPreviousFromHash()).thenReturn("sha1");
+
+    listener.onPullRequestOpened(opened);
+    listener.onPullRequestRescoped(rescoped);
+
+    ArgumentCaptor<EligibilityStage.Handler> handlerCaptor =
+        ArgumentCaptor.forClass(EligibilityStage.Handler.class);
+    verify(eligibilityStage).submit(handlerCaptor.capture(), any(),
+        any(Repository.class), any(String.class));
+    givenSnapshot(mock(Settings.class));
+    ArgumentCaptor<EventContext> contextCaptor =
+        ArgumentCaptor.forClass(EventContext.class);
+    handlerCaptor.getValue().evaluate(opened, repo, null);
+
+    verify(filterChain).shouldDeliverNotification(contextCaptor.capture());
+    assertEquals(opened, contextCaptor.getValue().getEventSource());
+  }
+
+  /**
+   * Validates that an event arriving after the queued one was evaluated is
+   * queued again
+   * @throws Exception
+   */
+  @Test
+  public void shouldQueueAgainOnceEvaluated() throws Exception {
+    givenStageRunsRightAway();
+    givenSnapshot(null);
+
+    listener.onPullRequestOpened(givenEvent(PullRequestOpenedEvent.class));
+    listener.onPullRequestOpened(givenEvent(PullRequestOpenedEvent.class));
+
+    verify(eligibilityStage, times(2)).submit(
+        any(EligibilityStage.Handler.class), any(), any(Repository.class),
+        any(String.class));
+    assertEquals(0, listener.getCollapsedCount());
+  }
+
+  /**
+   * Validates that an event the stage refuses, once it is shut down, is
+   * still evaluated rather than lost
+   * @throws Exception
+   */
+  @Test
+  public void shouldEvaluateOnCallerWhenStageRefuses() throws Exception {
+    when(eligibilityStage.submit(any(EligibilityStage.Handler.class), any(),
+        any(Repository.class), any(String.class))).thenReturn(false);
+    SettingsSnapshot snapshot = givenSnapshot(mock(Settings.class));
+    when(filterChain.shouldDeliverNotification(any(EventContext.class)))
+        .thenReturn(true);
+
+    listener.onPullRequestOpened(givenEvent(PullRequestOpenedEvent.class));
+
+    verify(notifier).notifyBackground(repo, snapshot, "feature", "sha1");
+    assertEquals(0, listener.getPendingCount());
+  }
+
+  private void givenStageRunsRightAway() {
+    doAnswer(new Answer<Boolean>() {
+      @Override
+      public Boolean answer(InvocationOnMock invocation) throws Throwable {
+        Object[] args = invocation.getArguments();
+        ((EligibilityStage.Handler) args[0]).evaluate(args[1],
+            (Repository) args[2], (String) args[3]);
+        return true;
+      }
+    }).when(eligibilityStage).submit(any(EligibilityStage.Handler.class),
+        any(), any(Repository.class), any(String.class));
+  }
+
+  private <T extends PullRequestEvent> T givenEvent(Class<T> type) {
+    T event = mock(type);
+    when(event.getPullRequest()).thenReturn(request);
+    return event;
+  }
+
+  private SettingsSnapshot givenSnapshot(Settings settings) {
+    RepositoryHook hook = mock(RepositoryHook.class);
+    when(hook.isEnabled()).thenReturn(true);
+    SettingsSnapshot snapshot = new SettingsSnapshot(hook, settings);
+    when(settingsService.getSnapshot(repo)).thenReturn(snapshot);
+    return snapshot;
+  }
+
 }
@@ -1,6 +1,9 @@
 package com.nerdwin15.stash.webhook;
 
 import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
@@ -10,17 +13,26 @@ import com.atlassian.stash.repository.RefChange;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import com.atlassian.stash.event.RepositoryRefsChangedEvent;
+import com.atlassian.stash.hook.repository.RepositoryHook;
 import com.atlassian.stash.repository.Repository;
 import com.atlassian.stash.setting.Settings;
 import com.atlassian.stash.user.StashUser;
 import com.nerdwin15.stash.webhook.service.SettingsService;
+import com.nerdwin15.stash.webhook.service.SettingsSnapshot;
 import com.nerdwin15.stash.webhook.service.eligibility.EligibilityFilterChain;
+import com.nerdwin15.stash.webhook.service.eligibility.EligibilityStage;
 import com.nerdwin15.stash.webhook.service.eligibility.EventContext;
 
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Test case for the RepositoryChangeListener class.
@@ -33,6 +45,7 @@ public class RepositoryChangeListenerTest {
   private EligibilityFilterChain filterChain;
   private RepositoryChangeListener listener;
   private SettingsService settingsService;
+  private EligibilityStage eligibilityStage;
 
   /**
    * Setup tasks
@@ -42,8 +55,20 @@ public class RepositoryChangeListenerTest {
     notifier = mock(Notifier.class);
     filterChain = mock(EligibilityFilterChain.class);
     settingsService = mock(SettingsService.class);
+    eligibilityStage = mock(EligibilityStage.class);
+    // Evaluate queued events right away
+    doAnswer(new Answer<Boolean>() {
+      @Override
+      public Boolean answer(InvocationOnMock invocation) throws Throwable {
+        Object[] args = invocation.getArguments();
+        ((EligibilityStage.Handler) args[0]).evaluate(args[1],
+            (Repository) args[2], (String) args[3]);
+        return true;
+      }
+    }).when(eligibilityStage).submit(any(EligibilityStage.Handler.class),
+        any(), any(Repository.class), any(String.class));
     listener = new RepositoryChangeListener(filterChain, notifier, 
-        settingsService);
+        settingsService, eligibilityStage);
   }
 
   /**
@@ -55,16 +80,10 @@ public class RepositoryChangeListenerTest {
     Repository repo = mock(Repository.class);
     Settings settings = mock(Settings.class);
 
-    LinkedList<RefChange> lst = mock(LinkedList.class);
-    when(e.getRefChanges()).thenReturn(lst);
-
-    Iterator<RefChange> iter = mock(Iterator.class);
-    when(lst.iterator()).thenReturn(iter);
-
     RefChange r = mock(RefChange.class);
     when(r.getToHash()).thenReturn("sha1");
     when(r.getRefId()).thenReturn("refs/heads/master");
-    when(iter.next()).thenReturn(r);
+    when(e.getRefChanges()).thenReturn(Arrays.asList(r));
 
     StashUser user = mock(StashUser.class);
     String username = "pinky";
@@ -74,13 +93,14 @@ public class RepositoryChangeListenerTest {
     when(user.getName()).thenReturn(username);
     
     when(e.getRepository()).thenReturn(repo);
-    when(settingsService.getSettings(repo)).thenReturn(settings);
-    when(filterChain.shouldDeliverNotification(contextCaptor.capture()))
-        .thenReturn(true);
+    SettingsSnapshot snapshot = givenSnapshot(repo, settings);
+    when(filterChain.getEligibleRefChanges(contextCaptor.capture(),
+        any(List.class))).thenReturn(givenEligible(0));
 
     listener.onRefsChangedEvent(e);
 
-    verify(notifier).notifyBackground(repo, "master", "sha1");
+    verify(notifier).notifyBackground(repo, snapshot, "master", "sha1");
+    assertEquals(snapshot, contextCaptor.getValue().getSnapshot());
     assertEquals(e, contextCaptor.getValue().getEventSource());
     assertEquals(username, contextCaptor.getValue().getUsername());
     assertEquals(repo, contextCaptor.getValue().getRepository());
@@ -93,16 +113,10 @@ public class RepositoryChangeListenerTest {
   public void shouldWorkFineWithNullUser() throws Exception {
     RepositoryRefsChangedEvent e = mock(RepositoryRefsChangedEvent.class);
 
-    LinkedList<RefChange> lst = mock(LinkedList.class);
-    when(e.getRefChanges()).thenReturn(lst);
-
-    Iterator<RefChange> iter = mock(Iterator.class);
-    when(lst.iterator()).thenReturn(iter);
-
     RefChange r = mock(RefChange.class);
     when(r.getToHash()).thenReturn("sha1");
     when(r.getRefId()).thenReturn("refs/heads/master");
-    when(iter.next()).thenReturn(r);
+    when(e.getRefChanges()).thenReturn(Arrays.asList(r));
 
     Repository repo = mock(Repository.class);
     Settings settings = mock(Settings.class);
@@ -112,13 +126,14 @@ public class RepositoryChangeListenerTest {
     when(e.getUser()).thenReturn(null);
     
     when(e.getRepository()).thenReturn(repo);
-    when(settingsService.getSettings(repo)).thenReturn(settings);
-    when(filterChain.shouldDeliverNotification(contextCaptor.capture()))
-        .thenReturn(true);
+    SettingsSnapshot snapshot = givenSnapshot(repo, settings);
+    when(filterChain.getEligibleRefChanges(contextCaptor.capture(),
+        any(List.class))).thenReturn(givenEligible(0));
 
     listener.onRefsChangedEvent(e);
 
-    verify(notifier).notifyBackground(repo, "master", "sha1");
+    verify(notifier).notifyBackground(repo, snapshot, "master", "sha1");
+    assertEquals(snapshot, contextCaptor.getValue().getSnapshot());
     assertEquals(e, contextCaptor.getValue().getEventSource());
     assertEquals(null, contextCaptor.getValue().getUsername());
     assertEquals(repo, contextCaptor.getValue().getRepository());
@@ -133,16 +148,10 @@ public class RepositoryChangeListenerTest {
     Repository repo = mock(Repository.class);
     Settings settings = mock(Settings.class);
 
-    LinkedList<RefChange> lst = mock(LinkedList.class);
-    when(e.getRefChanges()).thenReturn(lst);
-
-    Iterator<RefChange> iter = mock(Iterator.class);
-    when(lst.iterator()).thenReturn(iter);
-
     RefChange r = mock(RefChange.class);
     when(r.getToHash()).thenReturn("sha1");
     when(r.getRefId()).thenReturn("refs/heads/master");
-    when(iter.next()).thenReturn(r);
+    when(e.getRefChanges()).thenReturn(Arrays.asList(r));
 
     StashUser user = mock(StashUser.class);
     String username = "pinky";
@@ -152,13 +161,14 @@ public class RepositoryChangeListenerTest {
     when(user.getName()).thenReturn(username);
 
     when(e.getRepository()).thenReturn(repo);
-    when(settingsService.getSettings(repo)).thenReturn(settings);
-    when(filterChain.shouldDeliverNotification(contextCaptor.capture()))
-        .thenReturn(false);
+    SettingsSnapshot snapshot = givenSnapshot(repo, settings);
+    when(filterChain.getEligibleRefChanges(contextCaptor.capture(),
+        any(List.class))).thenReturn(givenEligible());
 
     listener.onRefsChangedEvent(e);
 
-    verify(notifier, never()).notifyBackground(repo, "master", "sha1");
+    verify(notifier, never()).notifyBackground(repo, snapshot, "master",
+        "sha1");
     assertEquals(e, contextCaptor.getValue().getEventSource());
     assertEquals(username, contextCaptor.getValue().getUsername());
     assertEquals(repo, contextCaptor.getValue().getRepository());
@@ -174,11 +184,145 @@ public class RepositoryChangeListenerTest {
     Repository repo = mock(Repository.class);
 
     when(e.getRepository()).thenReturn(repo);
-    when(settingsService.getSettings(repo)).thenReturn(null);
+    when(settingsService.getSnapshot(repo))
+        .thenReturn(new SettingsSnapshot(null, null));
 
     listener.onRefsChangedEvent(e);
 
-    verify(notifier, never()).notifyBackground(repo, "master", "sha1");
+    verify(filterChain, never()).getEligibleRefChanges(
+        any(EventContext.class), any(List.class));
+    verify(notifier, never()).notifyBackground(any(Repository.class),
+        any(SettingsSnapshot.class), anyString(), anyString());
   }
-  
+
+  /**
+   * Validates that a single notification is sent for the eligible ref changes
+   * when notifying all branches
+   * @throws Exception
+   */
+  @Test
+  public void shouldNotifyAllEligibleBranchesInOneNotification()
+      throws Exception {
+    RepositoryRefsChangedEvent e = mock(RepositoryRefsChangedEvent.class);
+    Repository repo = mock(Repository.class);
+    Settings settings = mock(Settings.class);
+
+    RefChange master = mock(RefChange.class);
+    when(master.getToHash()).thenReturn("sha1");
+    when(master.getRefId()).thenReturn("refs/heads/master");
+    RefChange ignored = mock(RefChange.class);
+    when(ignored.getToHash()).thenReturn("sha2");
+    when(ignored.getRefId()).thenReturn("refs/heads/ignored");
+    RefChange develop = mock(RefChange.class);
+    when(develop.getToHash()).thenReturn("sha3");
+    when(develop.getRefId()).thenReturn("refs/heads/develop");
+    when(e.getRefChanges())
+        .thenReturn(Arrays.asList(master, ignored, develop));
+
+    when(e.getRepository()).thenReturn(repo);
+    when(settings.getBoolean(Notifier.NOTIFY_ALL_BRANCHES, false))
+        .thenReturn(true);
+    SettingsSnapshot snapshot = givenSnapshot(repo, settings);
+    when(filterChain.getEligibleRefChanges(any(EventContext.class),
+        any(List.class))).thenReturn(givenEligible(0, 2));
+
+    listener.onRefsChangedEvent(e);
+
+    Map<String, String> included = new LinkedHashMap<String, String>();
+    included.put("master", "sha1");
+    included.put("develop", "sha3");
+    verify(notifier).notifyBackground(repo, snapshot, included,
+        Collections.singletonList("ignored"));
+    verify(notifier, never()).notifyBackground(repo, snapshot, "master",
+        "sha1");
+  }
+
+  /**
+   * Validates that the first eligible ref change is notified, even when an
+   * earlier one of the same push was rejected
+   * @throws Exception
+   */
+  @Test
+  public void shouldNotifyFirstEligibleBranch() throws Exception {
+    RepositoryRefsChangedEvent e = mock(RepositoryRefsChangedEvent.class);
+    Repository repo = mock(Repository.class);
+    Settings settings = mock(Settings.class);
+
+    RefChange deleted = mock(RefChange.class);
+    when(deleted.getRefId()).thenReturn("refs/heads/old");
+    RefChange develop = mock(RefChange.class);
+    when(develop.getToHash()).thenReturn("sha2");
+    when(develop.getRefId()).thenReturn("refs/heads/develop");
+    when(e.getRefChanges()).thenReturn(Arrays.asList(deleted, develop));
+
+    when(e.getRepository()).thenReturn(repo);
+    SettingsSnapshot snapshot = givenSnapshot(repo, settings);
+    when(filterChain.getEligibleRefChanges(any(EventContext.class),
+        any(List.class))).thenReturn(givenEligible(1));
+
+    listener.onRefsChangedEvent(e);
+
+    verify(notifier).notifyBackground(repo, snapshot, "develop", "sha2");
+  }
+
+  /**
+   * Validates that the listener only queues the event, leaving the settings
+   * lookup and the filter chain to the eligibility stage
+   * @throws Exception
+   */
+  @Test
+  public void shouldOnlyQueueTheEventOnTheEventThread() throws Exception {
+    EligibilityStage queueing = mock(EligibilityStage.class);
+    when(queueing.submit(any(EligibilityStage.Handler.class), any(),
+        any(Repository.class), any(String.class))).thenReturn(true);
+    listener = new RepositoryChangeListener(filterChain, notifier,
+        settingsService, queueing);
+    RepositoryRefsChangedEvent e = mock(RepositoryRefsChangedEvent.class);
+    when(e.getRepository()).thenReturn(mock(Repository.class));
+
+    listener.onRefsChangedEvent(e);
+
+    verify(e, never()).getRefChanges();
+    verify(queueing).submit(any(EligibilityStage.Handler.class), any(),
+        any(Repository.class), any(String.class));
+    verify(settingsService, never()).getSnapshot(any(Repository.class));
+    verify(filterChain, never()).getEligibleRefChanges(
+        any(EventContext.class), any(List.class));
+  }
+
+  /**
+   * Validates that an event the stage refuses, once it is shut down, is
+   * still evaluated rather than lost
+   * @throws Exception
+   */
+  @Test
+  public void shouldEvaluateOnCallerWhenStageRefuses() throws Exception {
+    EligibilityStage refusing = mock(EligibilityStage.class);
+    listener = new RepositoryChangeListener(filterChain, notifier,
+        settingsService, refusing);
+    Repository repo = mock(Repository.class);
+    givenSnapshot(repo, null);
+    RepositoryRefsChangedEvent e = mock(RepositoryRefsChangedEvent.class);
+    when(e.getRepository()).thenReturn(repo);
+
+    listener.onRefsChangedEvent(e);
+
+    verify(settingsService).getSnapshot(repo);
+  }
+
+  private BitSet givenEligible(int... indexes) {
+    BitSet eligible = new BitSet();
+    for (int index : indexes)
+      eligible.set(index);
+    return eligible;
+  }
+
+  private SettingsSnapshot givenSnapshot(Repository repo, Settings settings) {
+    RepositoryHook hook = mock(RepositoryHook.class);
+    when(hook.isEnabled()).thenReturn(true);
+    SettingsSnapshot snapshot = new SettingsSnapshot(hook, settings);
+    when(settingsService.getSnapshot(repo)).thenReturn(snapshot);
+    return snapshot;
+  }
+
 }
@@ -0,0 +1,150 @@
+package com.nerdwin15.stash.webhook.service;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Test case for the {@link BranchMatcher} class.
+ */
+public class BranchMatcherTest {
+
+  /**
+   * Validate exact and trailing wildcard patterns, ignoring case.
+   */
+  @Test
+  public void shouldMatchExactNamesAndPrefixes() {
+    BranchMatcher matcher =
+        BranchMatcher.compile("master  release/* HOTFIX-*");
+    assertTrue(matcher.matches("master"));
+    assertTrue(matcher.matches("MASTER"));
+    assertFalse(matcher.matches("master2"));
+    assertTrue(matcher.matches("release/1.0"));
+    assertTrue(matcher.matches("release/"));
+    assertFalse(matcher.matches("release"));
+    assertTrue(matcher.matches("hotfix-42"));
+    assertFalse(matcher.matches("feature/hotfix-42"));
+  }
+
+  /**
+   * Validate that any of the branches matching any of the patterns is a
+   * match, ignoring case.
+   */
+  @Test
+  public void shouldMatchAnyBranch() {
+    assertTrue(BranchMatcher.compile("master")
+        .matchesAny(Arrays.asList("master")));
+    assertTrue(BranchMatcher.compile("mas*")
+        .matchesAny(Arrays.asList("master")));
+    assertFalse(BranchMatcher.compile("master")
+        .matchesAny(Arrays.asList("develop")));
+    assertTrue(BranchMatcher.compile("master", "deve*")
+        .matchesAny(Arrays.asList("develop")));
+    assertFalse(BranchMatcher.compile("mas*", "dev*")
+        .matchesAny(Arrays.asList("issue")));
+    assertTrue(BranchMatcher.compile("MASTER", "DEVE*")
+        .matchesAny(Arrays.asList("develop")));
+    assertTrue(BranchMatcher.compile("master", "deve*")
+        .matchesAny(Arrays.asList("DEVELOP")));
+  }
+
+  /**
+   * Validate that a shorter prefix covers longer ones, whatever the order.
+   */
+  @Test
+  public void shouldMergeOverlappingPrefixes() {
+    assertTrue(BranchMatcher.compile("release/1.* rel*").matches("relx"));
+    assertTrue(BranchMatcher.compile("rel* release/1.*").matches("relx"));
+    assertTrue(BranchMatcher.compile("*").matches("anything"));
+  }
+
+  /**
+   * Validate that nothing matches when there are no patterns.
+   */
+  @Test
+  public void shouldMatchNothingWithoutPatterns() {
+    assertFalse(BranchMatcher.compile((String) null).matches("master"));
+    assertFalse(BranchMatcher.compile("").matches(""));
+    assertFalse(BranchMatcher.compile("master")
+        .matchesAny(Arrays.asList("develop", "feature/x")));
+  }
+
+  /**
+   * Validate that glob wildcards stay within a segment, except for
+   * {@code **}, while a lone trailing wildcard still matches any depth.
+   */
+  @Test
+  public void shouldMatchGlobs() {
+    BranchMatcher matcher = BranchMatcher.compile("release/*/hotfix-* v?.x");
+    assertTrue(matcher.matches("release/1.0/hotfix-42"));
+    assertTrue(matcher.matches("Release/1.0/HOTFIX-42"));
+    assertFalse(matcher.matches("release/1.0/hotfix-42/part"));
+    assertFalse(matcher.matches("release/1.0/2/hotfix-42"));
+    assertFalse(matcher.matches("release/hotfix-42"));
+    assertTrue(matcher.matches("v1.x"));
+    assertFalse(matcher.matches("v10.x"));
+    assertFalse(matcher.matches("v/.x"));
+
+    matcher = BranchMatcher.compile("release/**/rc feature/**");
+    assertTrue(matcher.matches("release/rc"));
+    assertTrue(matcher.matches("release/1.0/2/rc"));
+    assertTrue(matcher.matches("feature/a/b"));
+    assertTrue(BranchMatcher.compile("release/*").matches("release/1.0/rc"));
+  }
+
+  /**
+   * Validate that regular expressions are matched whole and ignore case.
+   */
+  @Test
+  public void shouldMatchRegularExpressions() {
+    BranchMatcher matcher =
+        BranchMatcher.compile("master regex:feature/[A-Z]+-\\d+");
+    assertTrue(matcher.matches("feature/JIRA-12"));
+    assertTrue(matcher.matches("feature/jira-12"));
+    assertFalse(matcher.matches("feature/JIRA-12-fix"));
+    assertTrue(matcher.matches("master"));
+  }
+
+  /**
+   * Validate that invalid and catastrophic patterns are rejected.
+   */
+  @Test
+  public void shouldRejectUnsafePatterns() {
+    assertNull(BranchMatcher.validate("release/**"));
+    assertNull(BranchMatcher.validate("regex:(feature|bugfix)/.+"));
+    assertNull(BranchMatcher.validate("regex:(a+)?b\\p{L}+"));
+    assertNull(BranchMatcher.validate("regex:(?:release|hotfix)/[0-9]+\\.x"));
+    assertNull(BranchMatcher.validate("regex:[a-z]+-[0-9]*"));
+    assertNull(BranchMatcher.validate("regex:[a-z]+.*"));
+    assertNull(BranchMatcher.validate("regex:\\d+.*"));
+    assertNull(BranchMatcher.validate("regex:a*a+"));
+    assertNull(BranchMatcher.validate("regex:\\Q(a+)+\\E"));
+    assertNull(BranchMatcher.validate("regex:release/\\Q1.0\\E.*"));
+    assertNotNull(BranchMatcher.validate("regex:"));
+    assertNotNull(BranchMatcher.validate("regex:feature/[a-z"));
+    assertNotNull(BranchMatcher.validate("regex:(a+)+b"));
+    assertNotNull(BranchMatcher.validate("regex:((ab)*c)*"));
+    assertNotNull(BranchMatcher.validate("regex:(a|a)*"));
+    assertNotNull(BranchMatcher.validate("regex:(?:a|ab)+c"));
+    assertNotNull(BranchMatcher.validate("regex:.*.*.*"));
+    assertNotNull(BranchMatcher.validate("regex:a*a*a+"));
+    assertNotNull(BranchMatcher.validate("regex:\\Qx\\E(a+)+"));
+    assertNotNull(BranchMatcher.validate("regex:(a)\\1"));
+    assertNotNull(BranchMatcher.validate("regex:(?!master).*"));
+  }
+
+  /**
+   * Validate that an invalid pattern doesn't prevent others from matching.
+   */
+  @Test
+  public void shouldIgnoreInvalidPatterns() {
+    BranchMatcher matcher = BranchMatcher.compile("regex:(a+)+ develop");
+    assertTrue(matcher.matches("develop"));
+    assertFalse(matcher.matches("aaa"));
+  }
+}
@@ -1,6 +1,9 @@
 package com.nerdwin15.stash.webhook.service;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.security.KeyManagementException;
@@ -9,7 +12,8 @@ import java.security.NoSuchAlgorithmException;
 import javax.net.ssl.SSLContext;
 
 import org.apache.http.client.HttpClient;
-import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.config.Registry;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -38,12 +42,12 @@ public class ConcreteHttpClientFactoryTest {
     factory.getHttpClient(false, false);
     assertFalse(factory.wasClientCustomConfigured());
     assertFalse(factory.wasSslContextCreated());
-    assertFalse(factory.wasSchemeRegistryCreated());
+    assertFalse(factory.wasSocketFactoriesCreated());
 
     factory.getHttpClient(false, true);
     assertFalse(factory.wasClientCustomConfigured());
     assertFalse(factory.wasSslContextCreated());
-    assertFalse(factory.wasSchemeRegistryCreated());
+    assertFalse(factory.wasSocketFactoriesCreated());
   }
 
   /**
@@ -54,7 +58,7 @@ public class ConcreteHttpClientFactoryTest {
     factory.getHttpClient(true, false);
     assertFalse(factory.wasClientCustomConfigured());
     assertFalse(factory.wasSslContextCreated());
-    assertFalse(factory.wasSchemeRegistryCreated());
+    assertFalse(factory.wasSocketFactoriesCreated());
   }
 
   /**
@@ -65,7 +69,41 @@ public class ConcreteHttpClientFactoryTest {
     factory.getHttpClient(true, true);
     assertTrue(factory.wasClientCustomConfigured());
     assertTrue(factory.wasSslContextCreated());
-    assertTrue(factory.wasSchemeRegistryCreated());
+    assertTrue(factory.wasSocketFactoriesCreated());
+  }
+
+  /**
+   * Validate that the same pooled client is handed out for repeated requests
+   * and that a new one is created after shutdown.
+   */
+  @Test
+  public void validateClientsAreReused() throws Exception {
+    HttpClient client = factory.getHttpClient(false, false);
+    assertSame(client, factory.getHttpClient(false, false));
+    assertSame(client, factory.getHttpClient(true, false));
+
+    HttpClient trustAll = factory.getHttpClient(true, true);
+    assertSame(trustAll, factory.getHttpClient(true, true));
+    assertNotSame(client, trustAll);
+
+    factory.shutdown();
+    assertNotSame(client, factory.getHttpClient(false, false));
+    factory.shutdown();
+  }
+
+  /**
+   * Validate that the SSL context for the trust-all client is only built once,
+   * even when the client itself has to be recreated.
+   */
+  @Test
+  public void validateSslContextIsCached() throws Exception {
+    factory.getHttpClient(true, true);
+    factory.getHttpClient(true, true);
+    factory.shutdown();
+    factory.getHttpClient(true, true);
+    factory.shutdown();
+
+    assertEquals(1, factory.getSslContextCreations());
   }
 
   /**
@@ -79,20 +117,25 @@ public class ConcreteHttpClientFactoryTest {
       extends ConcreteHttpClientFactory {
     private boolean clientConfigured = false;
     private boolean sslContextCreated = false;
-    private boolean schemeRegistryCreated = false;
+    private boolean socketFactoriesCreated = false;
+    private int sslContextCreations = 0;
 
     public boolean wasClientCustomConfigured() {
       return clientConfigured;
     }
 
-    public boolean wasSchemeRegistryCreated() {
-      return schemeRegistryCreated;
+    public boolean wasSocketFactoriesCreated() {
+      return socketFactoriesCreated;
     }
 
     public boolean wasSslContextCreated() {
       return sslContextCreated;
     }
 
+    public int getSslContextCreations() {
+      return sslContextCreations;
+    }
+
     @Override
     protected HttpClient createHttpClient(Boolean useConfigured) 
         throws Exception {
@@ -104,13 +147,15 @@ public class ConcreteHttpClientFactoryTest {
     protected SSLContext createContext() throws NoSuchAlgorithmException,
         KeyManagementException {
       sslContextCreated = true;
+      sslContextCreations++;
       return super.createContext();
     }
 
     @Override
-    protected SchemeRegistry createScheme(SSLContext sslContext) throws Exception  {
-      schemeRegistryCreated = true;
-      return super.createScheme(sslContext);
+    protected Registry<ConnectionSocketFactory> createSocketFactories(
+        SSLContext sslContext) throws Exception {
+      socketFactoriesCreated = true;
+      return super.createSocketFactories(sslContext);
     }
   }
 }
@@ -1,6 +1,8 @@
 package com.nerdwin15.stash.webhook.service;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
@@ -11,9 +13,11 @@ import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 
+import com.atlassian.stash.event.RepositoryHookSettingsChangedEvent;
 import com.atlassian.stash.hook.repository.RepositoryHook;
 import com.atlassian.stash.hook.repository.RepositoryHookService;
 import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryService;
 import com.atlassian.stash.setting.Settings;
 import com.atlassian.stash.user.Permission;
 import com.atlassian.stash.user.SecurityService;
@@ -29,6 +33,7 @@ public class ConcreteSettingsServiceTest {
 
   private ConcreteSettingsService settingsService;
   private RepositoryHookService hookService;
+  private RepositoryService repositoryService;
   private SecurityService securityService;
   private Repository repository;
   
@@ -39,10 +44,12 @@ public class ConcreteSettingsServiceTest {
   public void setUp() {
     hookService = mock(RepositoryHookService.class);
     securityService = mock(SecurityService.class);
-    settingsService = new ConcreteSettingsService(hookService, 
-        securityService);
+    repositoryService = mock(RepositoryService.class);
+    settingsService = new ConcreteSettingsService(hookService,
+        repositoryService, securityService);
     
     repository = mock(Repository.class);
+    when(repository.getId()).thenReturn(1);
   }
   
   /**
@@ -86,4 +93,74 @@ public class ConcreteSettingsServiceTest {
     verify(hookService, times(1)).getSettings(repository, Notifier.KEY);
     assertEquals(settings, returnValue);
   }
+
+  /**
+   * Validate that settings are only retrieved once until the hook settings
+   * change
+   */
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testSettingsAreCachedUntilChanged() throws Throwable {
+    settingsService.getSettings(repository);
+    settingsService.getRepositoryHook(repository);
+    settingsService.getSettings(repository);
+    verify(securityService, times(1)).doWithPermission(
+        eq("Retrieving settings"), eq(Permission.REPO_ADMIN), 
+        any(Operation.class));
+
+    RepositoryHookSettingsChangedEvent otherHook =
+        mock(RepositoryHookSettingsChangedEvent.class);
+    when(otherHook.getRepository()).thenReturn(repository);
+    when(otherHook.getRepositoryHookKey()).thenReturn("some.other:hook");
+    settingsService.onHookSettingsChanged(otherHook);
+    settingsService.getSettings(repository);
+    verify(securityService, times(1)).doWithPermission(
+        eq("Retrieving settings"), eq(Permission.REPO_ADMIN), 
+        any(Operation.class));
+
+    RepositoryHookSettingsChangedEvent event =
+        mock(RepositoryHookSettingsChangedEvent.class);
+    when(event.getRepository()).thenReturn(repository);
+    when(event.getRepositoryHookKey()).thenReturn(Notifier.KEY);
+    settingsService.onHookSettingsChanged(event);
+    settingsService.getSettings(repository);
+    verify(securityService, times(2)).doWithPermission(
+        eq("Retrieving settings"), eq(Permission.REPO_ADMIN), 
+        any(Operation.class));
+  }
+
+  /**
+   * Validate that a runtime exception while retrieving the settings, such as
+   * a missing permission, results in disabled settings rather than escaping
+   */
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testRuntimeFailureDisablesSettings() throws Throwable {
+    when(securityService.doWithPermission(eq("Retrieving repository hook"),
+        eq(Permission.REPO_ADMIN), any(Operation.class)))
+        .thenThrow(new IllegalStateException("No permission"));
+
+    SettingsSnapshot snapshot = settingsService.getSnapshot(repository);
+
+    assertFalse(snapshot.isEnabled());
+    assertEquals(null, snapshot.getSettings());
+  }
+
+  /**
+   * Validate that a repository looked up by id is retrieved with read
+   * permission, and that a deleted repository has no enabled settings
+   */
+  @Test
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  public void testGetSnapshotById() throws Throwable {
+    ArgumentCaptor<Operation> captor = ArgumentCaptor.forClass(Operation.class);
+
+    assertFalse(settingsService.getSnapshot(1).isEnabled());
+    verify(securityService, times(1)).doWithPermission(
+        eq("Retrieving repository"), eq(Permission.REPO_READ),
+        captor.capture());
+
+    when(repositoryService.getById(1)).thenReturn(repository);
+    assertEquals(repository, captor.getValue().perform());
+  }
 }
@@ -0,0 +1,48 @@
+package com.nerdwin15.stash.webhook.service;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test case for the {@link PathMatcher} class.
+ */
+public class PathMatcherTest {
+
+  /**
+   * Validate that every path is relevant when no globs are configured.
+   */
+  @Test
+  public void shouldIncludeEverythingWithoutGlobs() {
+    PathMatcher matcher = PathMatcher.compile(null, " ");
+    assertFalse(matcher.isConfigured());
+    assertTrue(matcher.isRelevant("docs/index.md"));
+  }
+
+  /**
+   * Validate include and exclude globs, including leading directories.
+   */
+  @Test
+  public void shouldApplyIncludesAndExcludes() {
+    PathMatcher matcher =
+        PathMatcher.compile("services/api/** **/pom.xml", "**/*.md");
+    assertTrue(matcher.isConfigured());
+    assertTrue(matcher.isRelevant("services/api/src/Main.java"));
+    assertTrue(matcher.isRelevant("pom.xml"));
+    assertTrue(matcher.isRelevant("services/web/pom.xml"));
+    assertFalse(matcher.isRelevant("services/api/README.md"));
+    assertFalse(matcher.isRelevant("services/web/src/Main.java"));
+    assertFalse(matcher.isRelevant("Services/api/src/Main.java"));
+  }
+
+  /**
+   * Validate that only excludes can be configured.
+   */
+  @Test
+  public void shouldIncludeEverythingNotExcluded() {
+    PathMatcher matcher = PathMatcher.compile(null, "/docs/**");
+    assertTrue(matcher.isRelevant("src/Main.java"));
+    assertFalse(matcher.isRelevant("docs/index.md"));
+  }
+}
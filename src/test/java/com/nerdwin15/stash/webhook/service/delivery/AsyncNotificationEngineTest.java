@@ -0,0 +1,105 @@
+package com.nerdwin15.stash.webhook.service.delivery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.util.concurrent.Future;
+
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.nerdwin15.stash.webhook.NotificationResult;
+import com.nerdwin15.stash.webhook.service.HttpClientFactory;
+
+/**
+ * Test case for the {@link AsyncNotificationEngine} class.
+ */
+public class AsyncNotificationEngineTest {
+
+  private static final String URL = "http://localhost.jenkins/git/notifyCommit";
+
+  private CloseableHttpAsyncClient client;
+  private AsyncNotificationEngine engine;
+
+  /**
+   * Setup tasks
+   */
+  @Before
+  public void setup() {
+    client = mock(CloseableHttpAsyncClient.class);
+    engine = new AsyncNotificationEngine(mock(HttpClientFactory.class), 1, 10,
+        10) {
+      @Override
+      protected CloseableHttpAsyncClient createClient(boolean trustAllCerts) {
+        return client;
+      }
+    };
+  }
+
+  /**
+   * Validate that the future only completes once Jenkins has responded.
+   */
+  @Test
+  public void shouldCompleteWhenJenkinsResponds() throws Exception {
+    Future<NotificationResult> future = engine.notify(URL, false);
+    assertFalse(future.isDone());
+    assertEquals(1, engine.getInFlightCount());
+
+    captureCallback().completed(new NotificationResult(true, URL,
+        "Jenkins response: Scheduled polling"));
+
+    NotificationResult result = future.get();
+    assertTrue(result.isSuccessful());
+    assertEquals(URL, result.getUrl());
+    assertEquals("Jenkins response: Scheduled polling", result.getMessage());
+    assertEquals(0, engine.getInFlightCount());
+    assertEquals(1, engine.getCompletedCount());
+  }
+
+  /**
+   * Validate that a connection failure completes the future with a failed
+   * result.
+   */
+  @Test
+  public void shouldReportFailure() throws Exception {
+    Future<NotificationResult> future = engine.notify(URL, false);
+    captureCallback().failed(new IOException("Connection refused"));
+
+    NotificationResult result = future.get();
+    assertFalse(result.isSuccessful());
+    assertEquals("Connection refused", result.getMessage());
+    assertEquals(0, engine.getInFlightCount());
+    assertEquals(1, engine.getFailedCount());
+  }
+
+  /**
+   * Validate that the clients are started once and shut down with the engine.
+   */
+  @Test
+  public void shouldStartAndShutdownClient() throws Exception {
+    engine.notify(URL, false);
+    verify(client).start();
+
+    engine.shutdown();
+    verify(client).close();
+  }
+
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private FutureCallback<NotificationResult> captureCallback() {
+    ArgumentCaptor<FutureCallback> captor =
+        ArgumentCaptor.forClass(FutureCallback.class);
+    verify(client).execute(any(HttpAsyncRequestProducer.class),
+        any(HttpAsyncResponseConsumer.class), captor.capture());
+    return captor.getValue();
+  }
+}
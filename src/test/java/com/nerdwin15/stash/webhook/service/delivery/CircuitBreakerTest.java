@@ -0,0 +1,58 @@
+package com.nerdwin15.stash.webhook.service.delivery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.nerdwin15.stash.webhook.service.delivery.CircuitBreaker.State;
+
+/**
+ * Test case for the {@link CircuitBreaker} class.
+ */
+public class CircuitBreakerTest {
+
+  /**
+   * Validate that the circuit opens after consecutive failures and fails
+   * fast while open.
+   */
+  @Test
+  public void shouldOpenAfterConsecutiveFailures() {
+    CircuitBreaker breaker = new CircuitBreaker(2, 60000);
+    breaker.recordFailure();
+    breaker.recordSuccess();
+    breaker.recordFailure();
+    assertEquals(State.CLOSED, breaker.getState());
+    assertTrue(breaker.allowRequest());
+
+    breaker.recordFailure();
+    assertEquals(State.OPEN, breaker.getState());
+    assertFalse(breaker.allowRequest());
+  }
+
+  /**
+   * Validate that a single probe is let through once the open period has
+   * passed, and that its outcome decides whether the circuit closes.
+   */
+  @Test
+  public void shouldProbeOnceAfterOpenPeriod() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(1, 50);
+    breaker.recordFailure();
+    assertFalse(breaker.allowRequest());
+
+    Thread.sleep(60);
+    assertTrue(breaker.allowRequest());
+    assertEquals(State.HALF_OPEN, breaker.getState());
+    assertFalse(breaker.allowRequest());
+
+    breaker.recordFailure();
+    assertEquals(State.OPEN, breaker.getState());
+
+    Thread.sleep(60);
+    assertTrue(breaker.allowRequest());
+    breaker.recordSuccess();
+    assertEquals(State.CLOSED, breaker.getState());
+    assertTrue(breaker.allowRequest());
+  }
+}
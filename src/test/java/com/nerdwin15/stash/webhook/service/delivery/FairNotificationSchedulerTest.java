@@ -0,0 +1,230 @@
+package com.nerdwin15.stash.webhook.service.delivery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.nerdwin15.stash.webhook.NotificationResult;
+import com.nerdwin15.stash.webhook.service.delivery.FairNotificationScheduler.ProjectStatistics;
+
+/**
+ * Test case for the {@link FairNotificationScheduler} class.
+ */
+public class FairNotificationSchedulerTest {
+
+  private final List<String> sent = new ArrayList<String>();
+  private final List<SettableFuture<NotificationResult>> inFlight =
+      new ArrayList<SettableFuture<NotificationResult>>();
+  private int completed;
+
+  /**
+   * Validate that projects take turns, each sending as many notifications as
+   * its weight.
+   */
+  @Test
+  public void shouldTakeTurnsByWeight() throws Exception {
+    Map<String, Integer> weights = Collections.singletonMap("CORE", 2);
+    FairNotificationScheduler scheduler =
+        new FairNotificationScheduler(1, 100, 1, weights);
+    for (int i = 0; i < 6; i++)
+      scheduler.schedule("BOT", "BOT" + i, send("BOT" + i));
+    for (int i = 0; i < 3; i++)
+      scheduler.schedule("CORE", "CORE" + i, send("CORE" + i));
+
+    while (sent.size() > completed)
+      completeNext();
+
+    assertEquals(Arrays.asList("BOT0", "BOT1", "CORE0", "CORE1", "BOT2",
+        "CORE2", "BOT3", "BOT4", "BOT5"), sent);
+    assertEquals(0, scheduler.getInFlightCount());
+    assertEquals(0, scheduler.getQueuedCount());
+  }
+
+  /**
+   * Validate that only the maximum number of notifications are sent at once.
+   */
+  @Test
+  public void shouldLimitNotificationsInFlight() throws Exception {
+    FairNotificationScheduler scheduler = new FairNotificationScheduler(2, 100, 1,
+        Collections.<String, Integer>emptyMap());
+    Future<NotificationResult> first = scheduler.schedule("A", "A0",
+        send("A0"));
+    scheduler.schedule("A", "A1", send("A1"));
+    scheduler.schedule("B", "B0", send("B0"));
+
+    assertEquals(Arrays.asList("A0", "A1"), sent);
+    assertEquals(2, scheduler.getInFlightCount());
+    assertEquals(1, scheduler.getQueuedCount());
+
+    completeNext();
+    assertEquals("A0", first.get().getMessage());
+    assertEquals(Arrays.asList("A0", "A1", "B0"), sent);
+    assertEquals(0, scheduler.getQueuedCount());
+  }
+
+  /**
+   * Validate that a notification that can't be handed over fails and frees
+   * its place for the next one.
+   */
+  @Test
+  public void shouldFailWhenSendThrows() throws Exception {
+    FairNotificationScheduler scheduler = new FairNotificationScheduler(1, 100, 1,
+        Collections.<String, Integer>emptyMap());
+    scheduler.schedule("A", "A0", send("A0"));
+    Future<NotificationResult> rejected = scheduler.schedule("A", "A1",
+        new Callable<ListenableFuture<NotificationResult>>() {
+      @Override
+      public ListenableFuture<NotificationResult> call() {
+        throw new RejectedExecutionException("full");
+      }
+    });
+    scheduler.schedule("A", "A2", send("A2"));
+
+    completeNext();
+    try {
+      rejected.get();
+      fail("Expected the notification to fail");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof RejectedExecutionException);
+    }
+    assertEquals(Arrays.asList("A0", "A2"), sent);
+    assertEquals(1, scheduler.getInFlightCount());
+  }
+
+  /**
+   * Validate that a newer notification for a queued key takes its place, and
+   * the queued one is cancelled.
+   */
+  @Test
+  public void shouldCollapseSameKey() throws Exception {
+    FairNotificationScheduler scheduler = new FairNotificationScheduler(1, 100,
+        1, Collections.<String, Integer>emptyMap());
+    scheduler.schedule("A", "1:master", send("A0"));
+    Future<NotificationResult> replaced = scheduler.schedule("A",
+        "1:develop", send("A1"));
+    scheduler.schedule("A", "2:master", send("A2"));
+    scheduler.schedule("A", "1:develop", send("A3"));
+
+    assertTrue(replaced.isCancelled());
+    assertEquals(2, scheduler.getQueuedCount());
+    assertEquals(1, scheduler.getCollapsedCount());
+    while (sent.size() > completed)
+      completeNext();
+    assertEquals(Arrays.asList("A0", "A3", "A2"), sent);
+  }
+
+  /**
+   * Validate that the wait of a collapsed notification is measured from the
+   * newest notification for its key.
+   */
+  @Test
+  public void shouldMeasureWaitFromNewestNotification() throws Exception {
+    FairNotificationScheduler scheduler = new FairNotificationScheduler(1, 100,
+        1, Collections.<String, Integer>emptyMap());
+    scheduler.schedule("A", "1:master", send("A0"));
+    scheduler.schedule("A", "1:develop", send("A1"));
+    Thread.sleep(200);
+    scheduler.schedule("A", "1:develop", send("A2"));
+    completeNext();
+
+    ProjectStatistics statistics = scheduler.getProjectStatistics().get(0);
+    assertEquals(2, statistics.getDispatched());
+    // A0 waited for nothing, A2 only since it replaced A1
+    assertTrue(statistics.getAverageWaitNanos() * 2
+        < TimeUnit.MILLISECONDS.toNanos(200));
+  }
+
+  /**
+   * Validate that a notification for a new key is rejected once the queue is
+   * full, while one for a queued key still replaces it.
+   */
+  @Test
+  public void shouldRejectWhenQueueIsFull() throws Exception {
+    FairNotificationScheduler scheduler = new FairNotificationScheduler(1, 1,
+        1, Collections.<String, Integer>emptyMap());
+    scheduler.schedule("A", "A0", send("A0"));
+    scheduler.schedule("A", "A1", send("A1"));
+    Future<NotificationResult> rejected = scheduler.schedule("B", "B0",
+        send("B0"));
+    scheduler.schedule("A", "A1", send("A1'"));
+
+    try {
+      rejected.get();
+      fail("Expected the notification to be rejected");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof RejectedExecutionException);
+    }
+    assertEquals(1, scheduler.getRejectedCount());
+    assertEquals(1, scheduler.getCollapsedCount());
+    completeNext();
+    assertEquals(Arrays.asList("A0", "A1'"), sent);
+  }
+
+  /**
+   * Validate the queue depth and dispatch counts of each project.
+   */
+  @Test
+  public void shouldReportEachProject() throws Exception {
+    FairNotificationScheduler scheduler = new FairNotificationScheduler(1, 100, 3,
+        Collections.<String, Integer>emptyMap());
+    scheduler.schedule("A", "A0", send("A0"));
+    scheduler.schedule("B", "B0", send("B0"));
+    scheduler.schedule("B", "B1", send("B1"));
+
+    List<ProjectStatistics> stats = scheduler.getProjectStatistics();
+    assertEquals(2, stats.size());
+    assertEquals("A", stats.get(0).getProject());
+    assertEquals(1, stats.get(0).getDispatched());
+    assertEquals(0, stats.get(0).getQueued());
+    assertEquals("B", stats.get(1).getProject());
+    assertEquals(3, stats.get(1).getWeight());
+    assertEquals(0, stats.get(1).getDispatched());
+    assertEquals(2, stats.get(1).getQueued());
+  }
+
+  /**
+   * Validate that well-formed weights are parsed and the rest ignored.
+   */
+  @Test
+  public void shouldParseWeights() {
+    Map<String, Integer> weights =
+        FairNotificationScheduler.parseWeights(" CORE=4, BOT = 1,bad,X=y ");
+    assertEquals(2, weights.size());
+    assertEquals(Integer.valueOf(4), weights.get("CORE"));
+    assertEquals(Integer.valueOf(1), weights.get("BOT"));
+    assertTrue(FairNotificationScheduler.parseWeights(null).isEmpty());
+  }
+
+  private void completeNext() {
+    String message = sent.get(completed);
+    inFlight.get(completed++).set(new NotificationResult(true, null, message));
+  }
+
+  private Callable<ListenableFuture<NotificationResult>> send(
+      final String message) {
+    return new Callable<ListenableFuture<NotificationResult>>() {
+      @Override
+      public ListenableFuture<NotificationResult> call() {
+        SettableFuture<NotificationResult> future = SettableFuture.create();
+        sent.add(message);
+        inFlight.add(future);
+        return future;
+      }
+    };
+  }
+}
@@ -0,0 +1,120 @@
+package com.nerdwin15.stash.webhook.service.delivery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.atlassian.stash.repository.Repository;
+import com.google.common.util.concurrent.Futures;
+import com.nerdwin15.stash.webhook.NotificationResult;
+import com.nerdwin15.stash.webhook.service.SettingsSnapshot;
+
+/**
+ * Test case for the {@link NotificationCoalescer} class.
+ */
+public class NotificationCoalescerTest {
+
+  private final List<String> dispatched = new CopyOnWriteArrayList<String>();
+  private NotificationCoalescer coalescer;
+
+  /**
+   * Setup tasks
+   */
+  @Before
+  public void setUp() {
+    coalescer = new NotificationCoalescer(100, 300,
+        new NotificationCoalescer.Dispatcher() {
+      @Override
+      public Future<NotificationResult> dispatch(Repository repo,
+          SettingsSnapshot snapshot, String strRef, String strSha1) {
+        dispatched.add(strRef + "@" + strSha1);
+        return Futures.immediateFuture(
+            new NotificationResult(true, null, strSha1));
+      }
+    });
+  }
+
+  /**
+   * Teardown tasks
+   */
+  @After
+  public void tearDown() {
+    coalescer.shutdownNow();
+  }
+
+  /**
+   * Validate that notifications within the quiet period are folded into one
+   * for the newest SHA1.
+   */
+  @Test
+  public void shouldOnlyDispatchNewestShaForSameKey() throws Exception {
+    Future<NotificationResult> first =
+        coalescer.submit("1:master", null, null, "master", "sha1");
+    Future<NotificationResult> second =
+        coalescer.submit("1:master", null, null, "master", "sha2");
+    Future<NotificationResult> other =
+        coalescer.submit("1:develop", null, null, "develop", "sha3");
+
+    assertEquals("sha2", first.get(5, TimeUnit.SECONDS).getMessage());
+    assertEquals("sha2", second.get(5, TimeUnit.SECONDS).getMessage());
+    assertEquals("sha3", other.get(5, TimeUnit.SECONDS).getMessage());
+    assertEquals(2, dispatched.size());
+    assertTrue(dispatched.contains("master@sha2"));
+    assertTrue(dispatched.contains("develop@sha3"));
+    assertEquals(1, coalescer.getCoalescedCount());
+    assertEquals(0, coalescer.getPendingCount());
+  }
+
+  /**
+   * Validate that a notification that keeps being superseded is still sent
+   * once the max delay has passed.
+   */
+  @Test
+  public void shouldDispatchOnceMaxDelayIsReached() throws Exception {
+    long start = System.currentTimeMillis();
+    Future<NotificationResult> first = null;
+    for (int i = 0; i < 20; i++) {
+      Future<NotificationResult> future =
+          coalescer.submit("1:master", null, null, "master", "sha" + i);
+      if (first == null)
+        first = future;
+      Thread.sleep(50);
+    }
+
+    NotificationResult result = first.get(5, TimeUnit.SECONDS);
+    assertTrue(result.isSuccessful());
+    assertTrue(dispatched.size() >= 2);
+    assertTrue(System.currentTimeMillis() - start >= 300);
+  }
+
+  /**
+   * Validate that shutting down cancels pending notifications rather than
+   * leaving their callers waiting forever.
+   */
+  @Test
+  public void shouldCancelPendingNotificationsOnShutdown() throws Exception {
+    Future<NotificationResult> future =
+        coalescer.submit("1:master", null, null, "master", "sha1");
+
+    coalescer.shutdownNow();
+
+    assertTrue(future.isCancelled());
+    try {
+      future.get(1, TimeUnit.SECONDS);
+      fail("Expected the notification to be cancelled");
+    } catch (CancellationException e) {
+      assertEquals(0, coalescer.getPendingCount());
+    }
+    assertTrue(dispatched.isEmpty());
+  }
+}
@@ -0,0 +1,167 @@
+package com.nerdwin15.stash.webhook.service.delivery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.nerdwin15.stash.webhook.NotificationResult;
+
+/**
+ * Test case for the {@link NotificationExecutor} class.
+ */
+public class NotificationExecutorTest {
+
+  private final CountDownLatch started = new CountDownLatch(1);
+  private final CountDownLatch release = new CountDownLatch(1);
+  private NotificationExecutor executor;
+
+  /**
+   * Teardown tasks
+   */
+  @After
+  public void tearDown() {
+    release.countDown();
+    executor.shutdownNow();
+  }
+
+  /**
+   * Validate that notifications are rejected once a lane's queue is full.
+   */
+  @Test
+  public void shouldRejectWhenQueueIsFull() throws Exception {
+    executor = new NotificationExecutor(1, 1);
+    fillExecutor("PROJ/1:master");
+
+    try {
+      executor.submit("PROJ/1:master", result("newest"));
+      fail("Expected the notification to be rejected");
+    } catch (RejectedExecutionException e) {
+      assertEquals(1, executor.getRejectedCount());
+    }
+  }
+
+  /**
+   * Validate that every queued notification is sent, even several for the
+   * same branch.
+   */
+  @Test
+  public void shouldSendEveryQueuedNotification() throws Exception {
+    executor = new NotificationExecutor(1, 10);
+    Future<NotificationResult> queued = fillExecutor("PROJ/1:master");
+    Future<NotificationResult> newest =
+        executor.submit("PROJ/1:master", result("newest"));
+
+    release.countDown();
+    assertEquals("newest", newest.get(5, TimeUnit.SECONDS).getMessage());
+    assertEquals("queued", queued.get(5, TimeUnit.SECONDS).getMessage());
+  }
+
+  /**
+   * Validate that queued notifications are cancelled on shutdown.
+   */
+  @Test
+  public void shouldCancelQueuedNotificationsOnShutdown() throws Exception {
+    executor = new NotificationExecutor(1, 10);
+    Future<NotificationResult> queued = fillExecutor("PROJ/1:master");
+
+    executor.shutdownNow();
+    assertTrue(queued.isCancelled());
+  }
+
+  /**
+   * Validate that notifications for a repository are sent in the order they
+   * were submitted, even with several lanes.
+   */
+  @Test
+  public void shouldSendSameRepositoryInOrder() throws Exception {
+    executor = new NotificationExecutor(4, 100);
+    final List<Integer> sent =
+        Collections.synchronizedList(new ArrayList<Integer>());
+    Future<NotificationResult> last = null;
+    for (int i = 0; i < 50; i++) {
+      final int index = i;
+      last = executor.submit("PROJ/7:branch" + i,
+          new Callable<NotificationResult>() {
+        @Override
+        public NotificationResult call() throws Exception {
+          sent.add(index);
+          return new NotificationResult(true, null, null);
+        }
+      });
+    }
+
+    last.get(5, TimeUnit.SECONDS);
+    assertEquals(50, sent.size());
+    for (int i = 0; i < 50; i++)
+      assertEquals(Integer.valueOf(i), sent.get(i));
+  }
+
+  /**
+   * Validate that a repository on another lane isn't held up by a slow one.
+   */
+  @Test
+  public void shouldSendOtherRepositoriesInParallel() throws Exception {
+    executor = new NotificationExecutor(4, 100);
+    String slow = "PROJ/1:master";
+    String fast = null;
+    for (int repo = 2; fast == null; repo++) {
+      if (executor.getLane("PROJ/" + repo + ":master")
+          != executor.getLane(slow))
+        fast = "PROJ/" + repo + ":master";
+    }
+    fillExecutor(slow);
+
+    Future<NotificationResult> future = executor.submit(fast, result("fast"));
+    assertEquals("fast", future.get(5, TimeUnit.SECONDS).getMessage());
+    assertEquals(1, executor.getQueuedCount());
+    assertFalse(executor.getLane(slow) == executor.getLane(fast));
+  }
+
+  /**
+   * Validate that every branch of a repository picks the same lane.
+   */
+  @Test
+  public void shouldPickLaneByRepository() throws Exception {
+    executor = new NotificationExecutor(4, 100);
+    for (int repo = 1; repo < 20; repo++)
+      assertEquals(executor.getLane("PROJ/" + repo + ":master"),
+          executor.getLane("PROJ/" + repo + ":feature/x"));
+  }
+
+  private Future<NotificationResult> fillExecutor(String key)
+      throws Exception {
+    executor.submit(key.substring(0, key.indexOf(':') + 1) + "blocking",
+        new Callable<NotificationResult>() {
+      @Override
+      public NotificationResult call() throws Exception {
+        started.countDown();
+        release.await();
+        return new NotificationResult(true, null, "blocking");
+      }
+    });
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    return executor.submit(key, result("queued"));
+  }
+
+  private Callable<NotificationResult> result(final String message) {
+    return new Callable<NotificationResult>() {
+      @Override
+      public NotificationResult call() throws Exception {
+        return new NotificationResult(true, null, message);
+      }
+    };
+  }
+}
@@ -0,0 +1,81 @@
+package com.nerdwin15.stash.webhook.service.delivery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicStatusLine;
+import org.junit.Test;
+
+import com.nerdwin15.stash.webhook.NotificationResult;
+
+/**
+ * Test case for the {@link ResponseReader} class.
+ */
+public class ResponseReaderTest {
+
+  /**
+   * Validate that a short body is read completely.
+   */
+  @Test
+  public void shouldReadShortBody() throws Exception {
+    InputStream content = stream("Scheduled polling of foo".getBytes("UTF-8"));
+    assertEquals("Scheduled polling of foo", ResponseReader.readPrefix(content));
+    assertTrue(ResponseReader.drain(content));
+  }
+
+  /**
+   * Validate that only a bounded prefix of a large body is kept.
+   */
+  @Test
+  public void shouldOnlyKeepPrefixOfLargeBody() throws Exception {
+    byte[] body = new byte[ResponseReader.MAX_BODY_BYTES * 4];
+    Arrays.fill(body, (byte) 'x');
+
+    String prefix = ResponseReader.readPrefix(stream(body));
+    assertEquals(ResponseReader.MAX_BODY_BYTES + "...".length(),
+        prefix.length());
+    assertTrue(prefix.endsWith("..."));
+  }
+
+  /**
+   * Validate that a body too large to drain is abandoned.
+   */
+  @Test
+  public void shouldGiveUpDrainingHugeBody() throws Exception {
+    byte[] body = new byte[(int) ResponseReader.MAX_DRAIN_BYTES + 1];
+    assertFalse(ResponseReader.drain(stream(body)));
+  }
+
+  /**
+   * Validate how responses are classified.
+   */
+  @Test
+  public void shouldClassifyResponses() {
+    NotificationResult scheduled = ResponseReader.toResult("url",
+        new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK"),
+        "Scheduled polling of foo");
+    assertTrue(scheduled.isSuccessful());
+
+    NotificationResult noJobs = ResponseReader.toResult("url",
+        new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK"),
+        "No git jobs using repository");
+    assertFalse(noJobs.isSuccessful());
+    assertFalse(noJobs.isRetryable());
+
+    NotificationResult proxyError = ResponseReader.toResult("url",
+        new BasicStatusLine(HttpVersion.HTTP_1_1, 502, "Bad Gateway"),
+        "<html>...");
+    assertFalse(proxyError.isSuccessful());
+    assertTrue(proxyError.isRetryable());
+  }
+
+  private InputStream stream(byte[] bytes) {
+    return new ByteArrayInputStream(bytes);
+  }
+}
@@ -0,0 +1,52 @@
+package com.nerdwin15.stash.webhook.service.delivery;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.nerdwin15.stash.webhook.NotificationResult;
+
+/**
+ * Test case for the {@link RetryPolicy} class.
+ */
+public class RetryPolicyTest {
+
+  private final RetryPolicy policy = new RetryPolicy(3, 1000, 5000);
+
+  /**
+   * Validate that only transient failures are retried, up to the maximum
+   * number of attempts.
+   */
+  @Test
+  public void shouldOnlyRetryTransientFailures() {
+    NotificationResult transientFailure =
+        NotificationResult.retryableFailure("url", "Connection refused");
+    assertTrue(policy.shouldRetry(1, transientFailure));
+    assertTrue(policy.shouldRetry(2, transientFailure));
+    assertFalse(policy.shouldRetry(3, transientFailure));
+
+    assertFalse(policy.shouldRetry(1,
+        new NotificationResult(false, "url", "No git jobs")));
+    assertFalse(policy.shouldRetry(1,
+        new NotificationResult(true, "url", "Scheduled polling")));
+  }
+
+  /**
+   * Validate that the delay grows exponentially, is jittered and is capped.
+   */
+  @Test
+  public void shouldBackOffExponentiallyWithJitter() {
+    for (int i = 0; i < 100; i++) {
+      assertBetween(500, 1000, policy.getDelayMs(1));
+      assertBetween(1000, 2000, policy.getDelayMs(2));
+      assertBetween(2000, 4000, policy.getDelayMs(3));
+      assertBetween(2500, 5000, policy.getDelayMs(10));
+    }
+  }
+
+  private void assertBetween(long min, long max, long actual) {
+    assertTrue(actual + " < " + min, actual >= min);
+    assertTrue(actual + " > " + max, actual <= max);
+  }
+}
@@ -1,20 +1,21 @@
 package com.nerdwin15.stash.webhook.service.eligibility;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.Iterator;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.List;
-import java.util.LinkedList;
 
 import com.atlassian.stash.repository.RefChangeType;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import com.atlassian.stash.event.RepositoryPushEvent;
 import com.atlassian.stash.repository.RefChange;
@@ -22,7 +23,7 @@ import com.atlassian.stash.repository.Repository;
 import com.atlassian.stash.setting.Settings;
 import com.nerdwin15.stash.webhook.Notifier;
 import com.nerdwin15.stash.webhook.service.BranchEvaluator;
-import com.nerdwin15.stash.webhook.service.SettingsService;
+import com.nerdwin15.stash.webhook.service.SettingsSnapshot;
 
 /**
  * Test case for the {@link BranchEligibilityFilter} filter.
@@ -31,7 +32,6 @@ import com.nerdwin15.stash.webhook.service.SettingsService;
  */
 public class BranchEligibilityFilterTest {
 
-  private SettingsService settingsService;
   private Settings settings;
   private BranchEvaluator branchEvaluator;
   private BranchEligibilityFilter filter;
@@ -39,8 +39,7 @@ public class BranchEligibilityFilterTest {
   private RepositoryPushEvent event;
   private EventContext eventContext;
   private String branches = "ignoreMe wild*";
-  private Collection<RefChange> changes = mock(LinkedList.class);
-  private Iterator<RefChange> iterChanges = mock(Iterator.class);
+  private List<RefChange> changes = new ArrayList<RefChange>();
   private RefChange change = mock(RefChange.class);
   private RefChangeType changeTypeUpdate = RefChangeType.UPDATE;
   private RefChangeType changeTypeDelete = RefChangeType.DELETE;
@@ -50,7 +49,6 @@ public class BranchEligibilityFilterTest {
    */
   @Before
   public void setUp() {
-    settingsService = mock(SettingsService.class);
     settings = mock(Settings.class);
     branchEvaluator = mock(BranchEvaluator.class);
     event = mock(RepositoryPushEvent.class);
@@ -58,31 +56,22 @@ public class BranchEligibilityFilterTest {
     eventContext = mock(EventContext.class);
 
     when(change.getType()).thenReturn(changeTypeUpdate);
-    when(iterChanges.next()).thenReturn(change);
-    when(changes.iterator()).thenReturn(iterChanges);
+    changes.add(change);
     when(event.getRefChanges()).thenReturn(changes);
     when(eventContext.getEventSource()).thenReturn(event);
     when(eventContext.getRepository()).thenReturn(repo);
-    when(settingsService.getSettings(repo)).thenReturn(settings);
     when(settings.getString(Notifier.BRANCH_OPTIONS)).thenReturn("blacklist");
     when(settings.getString(Notifier.BRANCH_OPTIONS_BRANCHES))
         .thenReturn(branches);
+    // Resolved again for every event, like the listener does
+    when(eventContext.getSnapshot()).thenAnswer(new Answer<SettingsSnapshot>() {
+      @Override
+      public SettingsSnapshot answer(InvocationOnMock invocation) {
+        return new SettingsSnapshot(null, settings);
+      }
+    });
     
-    filter = new BranchEligibilityFilter(settingsService, branchEvaluator);    
-  }
-  
-  /**
-   * Validate that the matcher works as expected
-   */
-  @Test
-  public void testHasMatchMethod() {
-    assertTrue(filter.hasMatch(array("master"), iterable("master")));
-    assertTrue(filter.hasMatch(array("mas*"), iterable("master")));
-    assertFalse(filter.hasMatch(array("master"), iterable("develop")));
-    assertTrue(filter.hasMatch(array("master", "deve*"), iterable("develop")));
-    assertFalse(filter.hasMatch(array("mas*", "dev*"), iterable("issue")));
-    assertTrue(filter.hasMatch(array("MASTER", "DEVE*"), iterable("develop")));
-    assertTrue(filter.hasMatch(array("master", "deve*"), iterable("DEVELOP")));
+    filter = new BranchEligibilityFilter(branchEvaluator);    
   }
   
   /**
@@ -92,7 +81,9 @@ public class BranchEligibilityFilterTest {
   @Test
   public void testEnsureOnlyWorksWithRepositoryPushEvents() {
     when(eventContext.getEventSource()).thenReturn("Something else");
-    assertTrue(filter.shouldDeliverNotification(eventContext));
+    assertTrue(new ConcreteEligibilityFilterChain(
+        Collections.<EligibilityFilter>singletonList(filter))
+        .shouldDeliverNotification(eventContext));
   }
   
   /**
@@ -104,7 +95,6 @@ public class BranchEligibilityFilterTest {
     when(settings.getString(Notifier.BRANCH_OPTIONS)).thenReturn(null);
     assertTrue(filter.shouldDeliverNotification(eventContext));
     
-    when(settingsService.getSettings(repo)).thenReturn(settings);
     when(settings.getString(Notifier.BRANCH_OPTIONS)).thenReturn("somethingElse");
     assertTrue(filter.shouldDeliverNotification(eventContext));
   }
@@ -114,10 +104,10 @@ public class BranchEligibilityFilterTest {
    */
   @Test
   public void testBlacklistingWorks() {
-    when(branchEvaluator.getBranches(changes)).thenReturn(iterable("wildCard"));
+    when(branchEvaluator.getBranch(change)).thenReturn("wildCard");
     assertFalse(filter.shouldDeliverNotification(eventContext));
 
-    when(branchEvaluator.getBranches(changes)).thenReturn(iterable("asdf"));
+    when(branchEvaluator.getBranch(change)).thenReturn("asdf");
     assertTrue(filter.shouldDeliverNotification(eventContext));
   }
   
@@ -127,10 +117,10 @@ public class BranchEligibilityFilterTest {
   @Test
   public void testWhitelistingWorks() {
     when(settings.getString(Notifier.BRANCH_OPTIONS)).thenReturn("whitelist");
-    when(branchEvaluator.getBranches(changes)).thenReturn(iterable("wildCard"));
+    when(branchEvaluator.getBranch(change)).thenReturn("wildCard");
     assertTrue(filter.shouldDeliverNotification(eventContext));
 
-    when(branchEvaluator.getBranches(changes)).thenReturn(iterable("asdf"));
+    when(branchEvaluator.getBranch(change)).thenReturn("asdf");
     assertFalse(filter.shouldDeliverNotification(eventContext));
   }
 
@@ -140,19 +130,48 @@ public class BranchEligibilityFilterTest {
   @Test
   public void testEnsureDeleteBranchNoNotification() {
     when(change.getType()).thenReturn(changeTypeDelete);
-    when(iterChanges.next()).thenReturn(change);
-    when(changes.iterator()).thenReturn(iterChanges);
-    when(event.getRefChanges()).thenReturn(changes);
-    when(eventContext.getEventSource()).thenReturn(event);
     assertFalse(filter.shouldDeliverNotification(eventContext));
   }
   
-  private String[] array(String... elements) {
-    return elements;
+  /**
+   * Ensure that when a single ref change is being evaluated, only that ref
+   * change is considered.
+   */
+  @Test
+  public void testOnlyFocusedRefChangeIsEvaluated() {
+    RefChange deleted = mock(RefChange.class);
+    when(deleted.getType()).thenReturn(changeTypeDelete);
+    when(eventContext.getRefChange()).thenReturn(deleted);
+    assertFalse(filter.shouldDeliverNotification(eventContext));
+
+    RefChange updated = mock(RefChange.class);
+    when(updated.getType()).thenReturn(changeTypeUpdate);
+    when(eventContext.getRefChange()).thenReturn(updated);
+    when(branchEvaluator.getBranch(updated)).thenReturn("asdf");
+    assertTrue(filter.shouldDeliverNotification(eventContext));
   }
-  
-  private List<String> iterable(String... elements) {
-    return new ArrayList<String>(Arrays.asList(elements));
+
+  /**
+   * Ensure that deleted and blacklisted ref changes are dropped on their own,
+   * without affecting the other ref changes of the push.
+   */
+  @Test
+  public void testEachRefChangeIsJudgedOnItsOwn() {
+    RefChange deleted = mock(RefChange.class);
+    when(deleted.getType()).thenReturn(changeTypeDelete);
+    RefChange blacklisted = mock(RefChange.class);
+    when(blacklisted.getType()).thenReturn(changeTypeUpdate);
+    when(branchEvaluator.getBranch(blacklisted)).thenReturn("ignoreMe");
+    when(branchEvaluator.getBranch(change)).thenReturn("develop");
+    changes.add(0, deleted);
+    changes.add(blacklisted);
+
+    BitSet eligible = new BitSet();
+    eligible.set(0, changes.size());
+    filter.retainEligible(eventContext, changes, eligible);
+    assertEquals(1, eligible.cardinality());
+    assertTrue(eligible.get(1));
+    assertTrue(filter.shouldDeliverNotification(eventContext));
   }
-  
+
 }
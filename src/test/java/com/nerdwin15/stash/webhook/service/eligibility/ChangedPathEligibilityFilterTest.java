@@ -0,0 +1,175 @@
+package com.nerdwin15.stash.webhook.service.eligibility;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.atlassian.stash.content.Change;
+import com.atlassian.stash.content.Changeset;
+import com.atlassian.stash.content.ChangesetsBetweenRequest;
+import com.atlassian.stash.content.ChangesRequest;
+import com.atlassian.stash.content.Path;
+import com.atlassian.stash.event.RepositoryPushEvent;
+import com.atlassian.stash.history.HistoryService;
+import com.atlassian.stash.repository.RefChange;
+import com.atlassian.stash.repository.RefChangeType;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.setting.Settings;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.SecurityService;
+import com.atlassian.stash.util.Operation;
+import com.atlassian.stash.util.Page;
+import com.atlassian.stash.util.PageRequest;
+import com.nerdwin15.stash.webhook.Notifier;
+import com.nerdwin15.stash.webhook.service.SettingsSnapshot;
+
+/**
+ * Test case for the {@link ChangedPathEligibilityFilter} class
+ * 
+ */
+public class ChangedPathEligibilityFilterTest {
+
+  private HistoryService historyService;
+  private SecurityService securityService;
+  private ChangedPathEligibilityFilter filter;
+  private Settings settings;
+  private EventContext eventContext;
+  private RefChange refChange;
+  private List<Change> changes = new ArrayList<Change>();
+
+  /**
+   * Setup tasks
+   */
+  @Before
+  @SuppressWarnings("unchecked")
+  public void setUp() throws Exception {
+    historyService = mock(HistoryService.class);
+    securityService = mock(SecurityService.class);
+    settings = mock(Settings.class);
+    eventContext = mock(EventContext.class);
+    refChange = mock(RefChange.class);
+    RepositoryPushEvent event = mock(RepositoryPushEvent.class);
+
+    when(securityService.doWithPermission(anyString(), any(Permission.class),
+        any(Operation.class))).thenAnswer(new Answer<Object>() {
+      @Override
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        return ((Operation<?, ?>) invocation.getArguments()[2]).perform();
+      }
+    });
+    when(refChange.getType()).thenReturn(RefChangeType.UPDATE);
+    when(refChange.getFromHash()).thenReturn("from");
+    when(refChange.getToHash()).thenReturn("to");
+    when(event.getRefChanges()).thenReturn(Arrays.asList(refChange));
+    when(eventContext.getEventSource()).thenReturn(event);
+    when(eventContext.getRepository()).thenReturn(mock(Repository.class));
+    when(eventContext.getSnapshot()).thenAnswer(new Answer<SettingsSnapshot>() {
+      @Override
+      public SettingsSnapshot answer(InvocationOnMock invocation) {
+        return new SettingsSnapshot(null, settings);
+      }
+    });
+
+    Changeset changeset = mock(Changeset.class);
+    when(changeset.getId()).thenReturn("to");
+    Page<Changeset> changesets = page(Arrays.asList(changeset));
+    when(historyService.getChangesetsBetween(
+        any(ChangesetsBetweenRequest.class), any(PageRequest.class)))
+        .thenReturn(changesets);
+    Page<Change> changePage = page(changes);
+    when(historyService.getChanges(any(ChangesRequest.class),
+        any(PageRequest.class))).thenReturn(changePage);
+
+    filter = new ChangedPathEligibilityFilter(historyService, securityService);
+  }
+
+  /**
+   * Validate that the changes aren't read when no globs are configured.
+   */
+  @Test
+  public void shouldDeliverWithoutReadingChangesWhenNotConfigured() {
+    assertTrue(filter.shouldDeliverNotification(eventContext));
+    verify(historyService, never()).getChangesetsBetween(
+        any(ChangesetsBetweenRequest.class), any(PageRequest.class));
+  }
+
+  /**
+   * Validate that a push only touching excluded paths is ignored.
+   */
+  @Test
+  public void shouldNotDeliverWhenOnlyExcludedPathsChanged() {
+    when(settings.getString(Notifier.PATH_EXCLUDES)).thenReturn("docs/**");
+    changes.add(change("docs/index.md"));
+    changes.add(change("docs/guide/setup.md"));
+    assertFalse(filter.shouldDeliverNotification(eventContext));
+  }
+
+  /**
+   * Validate that a push touching an included path is delivered.
+   */
+  @Test
+  public void shouldDeliverWhenIncludedPathChanged() {
+    when(settings.getString(Notifier.PATH_INCLUDES)).thenReturn("src/**");
+    changes.add(change("docs/index.md"));
+    changes.add(change("src/Main.java"));
+    assertTrue(filter.shouldDeliverNotification(eventContext));
+  }
+
+  /**
+   * Validate that the first relevant path ends the scan.
+   */
+  @Test
+  public void shouldStopAtFirstRelevantPath() {
+    when(settings.getString(Notifier.PATH_INCLUDES)).thenReturn("src/**");
+    Change first = change("src/Main.java");
+    Change second = change("src/Other.java");
+    changes.add(first);
+    changes.add(second);
+    assertTrue(filter.shouldDeliverNotification(eventContext));
+    verify(first, times(1)).getPath();
+    verify(second, never()).getPath();
+  }
+
+  /**
+   * Validate that new branches are always delivered.
+   */
+  @Test
+  public void shouldDeliverNewBranches() {
+    when(settings.getString(Notifier.PATH_INCLUDES)).thenReturn("src/**");
+    when(refChange.getType()).thenReturn(RefChangeType.ADD);
+    assertTrue(filter.shouldDeliverNotification(eventContext));
+  }
+
+  private Change change(String path) {
+    Change change = mock(Change.class);
+    Path changePath = mock(Path.class);
+    when(changePath.toString()).thenReturn(path);
+    when(change.getPath()).thenReturn(changePath);
+    return change;
+  }
+
+  @SuppressWarnings("unchecked")
+  private <T> Page<T> page(List<T> values) {
+    Page<T> page = mock(Page.class);
+    when(page.getValues()).thenReturn(values);
+    when(page.getSize()).thenReturn(values.size());
+    when(page.getIsLastPage()).thenReturn(true);
+    return page;
+  }
+
+}
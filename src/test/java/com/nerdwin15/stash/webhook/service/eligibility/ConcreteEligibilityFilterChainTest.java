@@ -1,15 +1,28 @@
 package com.nerdwin15.stash.webhook.service.eligibility;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
+import java.util.Map;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.atlassian.stash.repository.RefChange;
 
 /**
  * Test case for the {@link ConcreteEligibilityFilterChain} class.
@@ -55,4 +68,121 @@ public class ConcreteEligibilityFilterChainTest {
     when(filter.shouldDeliverNotification(event)).thenReturn(false);
     assertFalse(filterChain.shouldDeliverNotification(event));
   }
+
+  /**
+   * Validate that a filter is only consulted for the event types it declares.
+   * @throws Exception
+   */
+  @Test
+  public void shouldOnlyConsultFiltersForTheirEventTypes() throws Exception {
+    EligibilityFilter typed = mock(EligibilityFilter.class);
+    when(typed.getEventTypes())
+        .thenReturn(new Class<?>[] { CharSequence.class });
+    when(typed.shouldDeliverNotification(event)).thenReturn(false);
+    when(filter.shouldDeliverNotification(event)).thenReturn(true);
+    filters.add(typed);
+
+    when(event.getEventSource()).thenReturn(Integer.valueOf(1));
+    assertTrue(filterChain.shouldDeliverNotification(event));
+    verify(typed, never()).shouldDeliverNotification(event);
+
+    when(event.getEventSource()).thenReturn("source");
+    assertFalse(filterChain.shouldDeliverNotification(event));
+  }
+
+  /**
+   * Validate that a filter that rejects events cheaply is moved in front of
+   * a costly one that never rejects, without changing the decision.
+   * @throws Exception
+   */
+  @Test
+  public void shouldRunCheapRejectingFiltersFirstAfterReorder()
+      throws Exception {
+    when(filter.shouldDeliverNotification(event)).thenAnswer(
+        new Answer<Boolean>() {
+      @Override
+      public Boolean answer(InvocationOnMock invocation) throws Throwable {
+        Thread.sleep(2);
+        return true;
+      }
+    });
+    EligibilityFilter rejecting = mock(EligibilityFilter.class);
+    when(rejecting.shouldDeliverNotification(event)).thenReturn(false);
+    filters.add(rejecting);
+
+    for (int i = 0; i < 5; i++)
+      assertFalse(filterChain.shouldDeliverNotification(event));
+    verify(filter, times(5)).shouldDeliverNotification(event);
+
+    filterChain.reorder();
+    assertFalse(filterChain.shouldDeliverNotification(event));
+    verify(filter, times(5)).shouldDeliverNotification(event);
+    verify(rejecting, times(6)).shouldDeliverNotification(event);
+  }
+
+  /**
+   * Validate that each ref change is judged on its own, in a single pass by
+   * ref change filters and one ref change at a time by the others.
+   * @throws Exception
+   */
+  @Test
+  public void shouldProduceADecisionPerRefChange() throws Exception {
+    RefChange first = mock(RefChange.class);
+    RefChange second = mock(RefChange.class);
+    final RefChange third = mock(RefChange.class);
+    List<RefChange> refChanges = Arrays.asList(first, second, third);
+
+    RefChangeEligibilityFilter dropsSecond =
+        mock(RefChangeEligibilityFilter.class);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        ((BitSet) invocation.getArguments()[2]).clear(1);
+        return null;
+      }
+    }).when(dropsSecond).retainEligible(event, refChanges, bits(0, 1, 2));
+    filters.add(0, dropsSecond);
+    when(filter.shouldDeliverNotification(any(EventContext.class))).thenAnswer(
+        new Answer<Boolean>() {
+      @Override
+      public Boolean answer(InvocationOnMock invocation) throws Throwable {
+        return ((EventContext) invocation.getArguments()[0]).getRefChange()
+            != third;
+      }
+    });
+
+    assertEquals(bits(0), filterChain.getEligibleRefChanges(event, refChanges));
+    verify(filter, times(2)).shouldDeliverNotification(any(EventContext.class));
+  }
+
+  /**
+   * Validate that each event type keeps its own statistics, and that they
+   * are halved on every reorder.
+   * @throws Exception
+   */
+  @Test
+  public void shouldKeepStatisticsPerEventTypeAndDecayThem() throws Exception {
+    when(filter.shouldDeliverNotification(event)).thenReturn(false);
+    when(event.getEventSource()).thenReturn("source");
+    for (int i = 0; i < 4; i++)
+      filterChain.shouldDeliverNotification(event);
+    when(event.getEventSource()).thenReturn(Integer.valueOf(1));
+    filterChain.shouldDeliverNotification(event);
+
+    Map<Class<?>, List<FilterStatistics>> order = filterChain.getOrder();
+    assertEquals(4, order.get(String.class).get(0).getRejections());
+    assertEquals(1, order.get(Integer.class).get(0).getRejections());
+
+    filterChain.reorder();
+    order = filterChain.getOrder();
+    assertEquals(2, order.get(String.class).get(0).getInvocations());
+    assertEquals(0, order.get(Integer.class).get(0).getRejections());
+  }
+
+  private static BitSet bits(int... indexes) {
+    BitSet bits = new BitSet();
+    for (int index : indexes)
+      bits.set(index);
+    return bits;
+  }
 }
@@ -0,0 +1,184 @@
+package com.nerdwin15.stash.webhook.service.eligibility;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.atlassian.stash.repository.Repository;
+import com.nerdwin15.stash.webhook.service.eligibility.EventRingBuffer.WaitStrategy;
+
+/**
+ * Test case for the {@link EligibilityStage} class.
+ */
+public class EligibilityStageTest {
+
+  private final CountDownLatch started = new CountDownLatch(1);
+  private final CountDownLatch release = new CountDownLatch(1);
+  private final AtomicReference<Thread> thread =
+      new AtomicReference<Thread>();
+  private EligibilityStage stage;
+
+  /**
+   * Teardown tasks
+   */
+  @After
+  public void tearDown() {
+    release.countDown();
+    stage.destroy();
+  }
+
+  /**
+   * Validate that events are evaluated on the stage's threads, with every
+   * wait strategy.
+   */
+  @Test
+  public void shouldEvaluateOffTheSubmittingThread() throws Exception {
+    for (WaitStrategy waitStrategy : WaitStrategy.values()) {
+      stage = new EligibilityStage(1, 4, 2, waitStrategy, false);
+      final CountDownLatch done = new CountDownLatch(1);
+      stage.submit(new EligibilityStage.Handler() {
+        @Override
+        public void evaluate(Object event, Repository repository,
+            String user) {
+          thread.set(Thread.currentThread());
+          done.countDown();
+        }
+      }, "event", null, "pinky");
+
+      assertTrue(waitStrategy.name(), done.await(5, TimeUnit.SECONDS));
+      assertNotSame(Thread.currentThread(), thread.get());
+      stage.destroy();
+    }
+  }
+
+  /**
+   * Validate that an event that doesn't fit in the full ring waits on the
+   * overflow queue and is evaluated by a worker.
+   */
+  @Test
+  public void shouldOverflowWhenQueueIsFull() throws Exception {
+    stage = new EligibilityStage(1, 2, 1, WaitStrategy.BLOCKING, false);
+    givenFullRing();
+    final CountDownLatch done = new CountDownLatch(1);
+    final AtomicReference<Thread> overflowThread =
+        new AtomicReference<Thread>();
+
+    assertTrue(stage.submit(new EligibilityStage.Handler() {
+      @Override
+      public void evaluate(Object event, Repository repository, String user) {
+        overflowThread.set(Thread.currentThread());
+        done.countDown();
+      }
+    }, "overflow", null, null));
+    assertEquals(2, stage.getQueuedCount());
+    assertEquals(1, stage.getOverflowCount());
+    assertEquals(0, stage.getCallerRunsCount());
+
+    release.countDown();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertNotSame(Thread.currentThread(), overflowThread.get());
+    assertEquals(3, stage.getSubmittedCount());
+  }
+
+  /**
+   * Validate that an event is evaluated on the submitting thread once the
+   * ring is full, if asked to.
+   */
+  @Test
+  public void shouldRunOnCallerWhenQueueIsFull() throws Exception {
+    stage = new EligibilityStage(1, 2, 1, WaitStrategy.BLOCKING, true);
+    EligibilityStage.Handler recording = givenFullRing();
+
+    assertTrue(stage.submit(recording, "overflow", null, null));
+    assertSame(Thread.currentThread(), thread.get());
+    assertEquals(0, stage.getOverflowCount());
+    assertEquals(1, stage.getCallerRunsCount());
+    assertEquals(3, stage.getSubmittedCount());
+  }
+
+  /**
+   * Validate that a failing event is counted and doesn't stop the stage.
+   */
+  @Test
+  public void shouldCountFailures() throws Exception {
+    stage = new EligibilityStage(1, 4, 4, WaitStrategy.BLOCKING, false);
+    stage.submit(new EligibilityStage.Handler() {
+      @Override
+      public void evaluate(Object event, Repository repository, String user) {
+        throw new IllegalStateException("boom");
+      }
+    }, "failing", null, null);
+    final CountDownLatch done = new CountDownLatch(1);
+    stage.submit(new EligibilityStage.Handler() {
+      @Override
+      public void evaluate(Object event, Repository repository, String user) {
+        done.countDown();
+      }
+    }, "next", null, null);
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(1, stage.getFailedCount());
+  }
+
+  /**
+   * Validate that an event submitted once the stage is shut down is refused
+   * rather than left in the ring.
+   */
+  @Test
+  public void shouldRefuseEventsOnceDestroyed() throws Exception {
+    stage = new EligibilityStage(1, 4, 1, WaitStrategy.BLOCKING, false);
+    stage.destroy();
+
+    assertFalse(stage.submit(new EligibilityStage.Handler() {
+      @Override
+      public void evaluate(Object event, Repository repository, String user) {
+        thread.set(Thread.currentThread());
+      }
+    }, "late", null, null));
+    assertEquals(0, stage.getQueuedCount());
+    assertEquals(0, stage.getOverflowCount());
+  }
+
+  /**
+   * Blocks the only worker and fills the rest of the ring.
+   * @return A handler recording the thread it ran on
+   */
+  private EligibilityStage.Handler givenFullRing() throws Exception {
+    stage.submit(new EligibilityStage.Handler() {
+      @Override
+      public void evaluate(Object event, Repository repository, String user) {
+        started.countDown();
+        await(release);
+      }
+    }, "blocking", null, null);
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+
+    EligibilityStage.Handler recording = new EligibilityStage.Handler() {
+      @Override
+      public void evaluate(Object event, Repository repository, String user) {
+        thread.set(Thread.currentThread());
+      }
+    };
+    // The event being evaluated keeps its slot until it is done
+    assertTrue(stage.submit(recording, "queued", null, null));
+    assertEquals(null, thread.get());
+    return recording;
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,101 @@
+package com.nerdwin15.stash.webhook.service.eligibility;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.nerdwin15.stash.webhook.service.eligibility.EventRingBuffer.Slot;
+import com.nerdwin15.stash.webhook.service.eligibility.EventRingBuffer.SlotConsumer;
+import com.nerdwin15.stash.webhook.service.eligibility.EventRingBuffer.WaitStrategy;
+
+/**
+ * Test case for the {@link EventRingBuffer} class.
+ */
+public class EventRingBufferTest {
+
+  private final List<Object> consumed = new ArrayList<Object>();
+  private final SlotConsumer recorder = new SlotConsumer() {
+    @Override
+    public void consume(Slot slot) {
+      consumed.add(slot.getEvent());
+    }
+  };
+
+  /**
+   * Validate that the capacity is rounded up to a power of two.
+   */
+  @Test
+  public void shouldRoundCapacityUpToPowerOfTwo() {
+    assertEquals(1024, new EventRingBuffer(1000, WaitStrategy.BLOCKING)
+        .getCapacity());
+    assertEquals(8, new EventRingBuffer(8, WaitStrategy.BLOCKING)
+        .getCapacity());
+  }
+
+  /**
+   * Validate that publishing fails once every slot is taken and succeeds
+   * again once they are drained.
+   */
+  @Test
+  public void shouldRejectWhenFull() {
+    EventRingBuffer ring = new EventRingBuffer(2, WaitStrategy.BLOCKING);
+    assertTrue(ring.publish(null, "a", null, null));
+    assertTrue(ring.publish(null, "b", null, null));
+    assertFalse(ring.publish(null, "c", null, null));
+    assertEquals(2, ring.size());
+
+    assertEquals(2, ring.drain(recorder, 10));
+    assertTrue(ring.isEmpty());
+    assertTrue(ring.publish(null, "c", null, null));
+  }
+
+  /**
+   * Validate that events are drained in order, in batches, across laps of
+   * the ring.
+   */
+  @Test
+  public void shouldDrainInBatchesAcrossLaps() {
+    EventRingBuffer ring = new EventRingBuffer(4, WaitStrategy.BUSY_SPIN);
+    List<Object> expected = new ArrayList<Object>();
+    for (int lap = 0; lap < 3; lap++) {
+      for (int i = 0; i < 4; i++) {
+        String event = lap + ":" + i;
+        expected.add(event);
+        assertTrue(ring.publish(null, event, null, null));
+      }
+      assertEquals(3, ring.drain(recorder, 3));
+      assertEquals(1, ring.drain(recorder, 3));
+      assertEquals(0, ring.drain(recorder, 3));
+    }
+    assertEquals(expected, consumed);
+  }
+
+  /**
+   * Validate that a failing consumer still frees every slot of its batch.
+   */
+  @Test
+  public void shouldFreeTheWholeBatchWhenConsumerFails() {
+    EventRingBuffer ring = new EventRingBuffer(2, WaitStrategy.BLOCKING);
+    ring.publish(null, "a", null, null);
+    ring.publish(null, "b", null, null);
+    try {
+      ring.drain(new SlotConsumer() {
+        @Override
+        public void consume(Slot slot) {
+          throw new IllegalStateException("boom");
+        }
+      }, 2);
+      fail("Expected the consumer's exception");
+    } catch (IllegalStateException e) {
+      assertEquals(0, ring.size());
+      assertTrue(ring.publish(null, "c", null, null));
+      assertTrue(ring.publish(null, "d", null, null));
+    }
+  }
+}
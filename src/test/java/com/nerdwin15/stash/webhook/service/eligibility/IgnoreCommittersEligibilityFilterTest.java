@@ -11,7 +11,7 @@ import org.junit.Test;
 import com.atlassian.stash.repository.Repository;
 import com.atlassian.stash.setting.Settings;
 import com.nerdwin15.stash.webhook.Notifier;
-import com.nerdwin15.stash.webhook.service.SettingsService;
+import com.nerdwin15.stash.webhook.service.SettingsSnapshot;
 
 /**
  * Test case for the {@link IgnoreCommittersEligibilityFilter} class
@@ -20,7 +20,6 @@ import com.nerdwin15.stash.webhook.service.SettingsService;
  */
 public class IgnoreCommittersEligibilityFilterTest {
 
-  private SettingsService settingsService;
   private IgnoreCommittersEligibilityFilter filter;
   private Settings settings;
   private Repository repo;
@@ -32,11 +31,9 @@ public class IgnoreCommittersEligibilityFilterTest {
    */
   @Before
   public void setUp() throws Exception {
-    settingsService = mock(SettingsService.class);
     repo = mock(Repository.class);
-    filter = new IgnoreCommittersEligibilityFilter(settingsService);
+    filter = new IgnoreCommittersEligibilityFilter();
     settings = mock(Settings.class);
-    when(settingsService.getSettings(repo)).thenReturn(settings);
     
     eventContext = mock(EventContext.class);
     when(eventContext.getEventSource()).thenReturn(null);
@@ -51,7 +48,7 @@ public class IgnoreCommittersEligibilityFilterTest {
    */
   @Test
   public void shouldAllowWhenIgnoredCommittersNull() throws Exception {
-    when(settings.getString(Notifier.IGNORE_COMMITTERS)).thenReturn(null);
+    givenIgnoredCommitters(null);
     assertTrue(filter.shouldDeliverNotification(eventContext));
   }
   
@@ -62,8 +59,7 @@ public class IgnoreCommittersEligibilityFilterTest {
    */
   @Test
   public void shouldAllowWhenIgnoredCommittersDoesntMatch() throws Exception {
-    when(settings.getString(Notifier.IGNORE_COMMITTERS))
-      .thenReturn(username + "-notmatching");
+    givenIgnoredCommitters(username + "-notmatching");
     assertTrue(filter.shouldDeliverNotification(eventContext));
   }
   
@@ -73,7 +69,7 @@ public class IgnoreCommittersEligibilityFilterTest {
    */
   @Test
   public void shouldCancelWhenIgnoredCommittersMatches() throws Exception {
-    when(settings.getString(Notifier.IGNORE_COMMITTERS)).thenReturn(username);
+    givenIgnoredCommitters(username);
     assertFalse(filter.shouldDeliverNotification(eventContext));
   }
   
@@ -83,9 +79,25 @@ public class IgnoreCommittersEligibilityFilterTest {
    */
   @Test
   public void shouldCancelWhenMatchesWithMultipleCommitters() throws Exception {
-    when(settings.getString(Notifier.IGNORE_COMMITTERS)).thenReturn(username 
+    givenIgnoredCommitters(username 
         + " anotherUser");
     assertFalse(filter.shouldDeliverNotification(eventContext));
   }
-  
+
+  /**
+   * Validate that committers are matched regardless of case and spacing
+   * @throws Exception
+   */
+  @Test
+  public void shouldCancelWhenMatchesIgnoringCase() throws Exception {
+    givenIgnoredCommitters("  build-bot   PINKY ");
+    assertFalse(filter.shouldDeliverNotification(eventContext));
+  }
+
+  private void givenIgnoredCommitters(String committers) {
+    when(settings.getString(Notifier.IGNORE_COMMITTERS)).thenReturn(committers);
+    when(eventContext.getSnapshot())
+      .thenReturn(new SettingsSnapshot(null, settings));
+  }
+
 }
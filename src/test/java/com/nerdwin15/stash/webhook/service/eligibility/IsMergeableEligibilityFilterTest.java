@@ -1,12 +1,22 @@
 package com.nerdwin15.stash.webhook.service.eligibility;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.Collections;
+
 import org.junit.Before;
+import org.junit.After;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import com.atlassian.stash.event.pull.PullRequestRescopedEvent;
 import com.atlassian.stash.pull.PullRequest;
@@ -15,6 +25,9 @@ import com.atlassian.stash.pull.PullRequestRef;
 import com.atlassian.stash.pull.PullRequestService;
 import com.atlassian.stash.pull.PullRequestState;
 import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.SecurityService;
+import com.atlassian.stash.util.Operation;
 
 /**
  * Test case for the {@link IsMergeableEligibilityFilter} class
@@ -24,6 +37,7 @@ import com.atlassian.stash.repository.Repository;
 public class IsMergeableEligibilityFilterTest {
 
   private PullRequestService pullRequestService;
+  private SecurityService securityService;
   private IsMergeableEligibilityFilter filter;
   private Repository repo;
   private EventContext eventContext;
@@ -38,6 +52,7 @@ public class IsMergeableEligibilityFilterTest {
   @Before
   public void setUp() throws Exception {
     pullRequestService = mock(PullRequestService.class);
+    securityService = mock(SecurityService.class);
     repo = mock(Repository.class);
     pullRequest = mock(PullRequest.class);
     eventContext = mock(EventContext.class);
@@ -45,7 +60,15 @@ public class IsMergeableEligibilityFilterTest {
 
     when(repo.getId()).thenReturn(repoId);
     
-    filter = new IsMergeableEligibilityFilter(pullRequestService);
+    when(securityService.doWithPermission(anyString(), any(Permission.class),
+        any(Operation.class))).thenAnswer(new Answer<Object>() {
+      @Override
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        return ((Operation<?, ?>) invocation.getArguments()[2]).perform();
+      }
+    });
+    filter = new IsMergeableEligibilityFilter(pullRequestService,
+        securityService);
     
     when(event.getPullRequest()).thenReturn(pullRequest);
     when(pullRequest.getState()).thenReturn(PullRequestState.OPEN);
@@ -54,6 +77,14 @@ public class IsMergeableEligibilityFilterTest {
     when(eventContext.getUsername()).thenReturn(username);
   }
   
+  /**
+   * Teardown tasks
+   */
+  @After
+  public void tearDown() {
+    filter.destroy();
+  }
+
   /**
    * Validate that when the event source is not a PullRequestEvent,
    * the filter just passes it on.
@@ -63,7 +94,9 @@ public class IsMergeableEligibilityFilterTest {
     String event = "Hi there";
     when(eventContext.getEventSource()).thenReturn(event);
     
-    assertTrue(filter.shouldDeliverNotification(eventContext));
+    assertTrue(new ConcreteEligibilityFilterChain(
+        Collections.<EligibilityFilter>singletonList(filter))
+        .shouldDeliverNotification(eventContext));
   }
   
   /**
@@ -117,5 +150,32 @@ public class IsMergeableEligibilityFilterTest {
     
     assertTrue(filter.shouldDeliverNotification(eventContext));
   }
-  
+
+  /**
+   * Validate that the mergeability of an unchanged pull request is only
+   * checked once.
+   */
+  @Test
+  public void shouldReuseResultForUnchangedPullRequest() {
+    Long prId = 2L;
+    PullRequestRef ref = mock(PullRequestRef.class);
+    PullRequestMergeability mergability = mock(PullRequestMergeability.class);
+    
+    when(pullRequest.getFromRef()).thenReturn(ref);
+    when(pullRequest.getId()).thenReturn(prId);
+    when(ref.getLatestChangeset()).thenReturn("ref-hash");
+    when(pullRequestService.canMerge(repoId, prId)).thenReturn(mergability);
+    when(mergability.isConflicted()).thenReturn(true);
+    
+    assertFalse(filter.shouldDeliverNotification(eventContext));
+    assertFalse(filter.shouldDeliverNotification(eventContext));
+    verify(pullRequestService, times(1)).canMerge(repoId, prId);
+    assertEquals(1, filter.getMissCount());
+    assertEquals(1, filter.getHitCount());
+
+    when(ref.getLatestChangeset()).thenReturn("new-hash");
+    assertFalse(filter.shouldDeliverNotification(eventContext));
+    verify(pullRequestService, times(2)).canMerge(repoId, prId);
+  }
+
 }
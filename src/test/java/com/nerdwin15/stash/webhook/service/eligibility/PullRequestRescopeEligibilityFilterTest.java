@@ -5,6 +5,8 @@ import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
+import java.util.Collections;
+
 import org.junit.Before;
 import org.junit.Test;
 
@@ -54,7 +56,9 @@ public class PullRequestRescopeEligibilityFilterTest {
     PullRequestOpenedEvent event = mock(PullRequestOpenedEvent.class);
     when(eventContext.getEventSource()).thenReturn(event);
     
-    assertTrue(filter.shouldDeliverNotification(eventContext));
+    assertTrue(new ConcreteEligibilityFilterChain(
+        Collections.<EligibilityFilter>singletonList(filter))
+        .shouldDeliverNotification(eventContext));
   }
 
   /**
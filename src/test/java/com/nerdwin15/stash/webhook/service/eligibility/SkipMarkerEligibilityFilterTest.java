@@ -0,0 +1,148 @@
+package com.nerdwin15.stash.webhook.service.eligibility;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.atlassian.stash.content.Changeset;
+import com.atlassian.stash.content.ChangesetsBetweenRequest;
+import com.atlassian.stash.event.RepositoryPushEvent;
+import com.atlassian.stash.history.HistoryService;
+import com.atlassian.stash.repository.RefChange;
+import com.atlassian.stash.repository.RefChangeType;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.setting.Settings;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.SecurityService;
+import com.atlassian.stash.util.Operation;
+import com.atlassian.stash.util.Page;
+import com.atlassian.stash.util.PageRequest;
+import com.nerdwin15.stash.webhook.Notifier;
+import com.nerdwin15.stash.webhook.service.SettingsSnapshot;
+
+/**
+ * Test case for the {@link SkipMarkerEligibilityFilter} class
+ * 
+ */
+public class SkipMarkerEligibilityFilterTest {
+
+  private HistoryService historyService;
+  private SecurityService securityService;
+  private SkipMarkerEligibilityFilter filter;
+  private Settings settings;
+  private EventContext eventContext;
+  private RefChange refChange;
+  private List<Changeset> changesets = new ArrayList<Changeset>();
+
+  /**
+   * Setup tasks
+   */
+  @Before
+  @SuppressWarnings("unchecked")
+  public void setUp() throws Exception {
+    historyService = mock(HistoryService.class);
+    securityService = mock(SecurityService.class);
+    settings = mock(Settings.class);
+    eventContext = mock(EventContext.class);
+    refChange = mock(RefChange.class);
+    RepositoryPushEvent event = mock(RepositoryPushEvent.class);
+
+    when(securityService.doWithPermission(anyString(), any(Permission.class),
+        any(Operation.class))).thenAnswer(new Answer<Object>() {
+      @Override
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        return ((Operation<?, ?>) invocation.getArguments()[2]).perform();
+      }
+    });
+    when(refChange.getType()).thenReturn(RefChangeType.UPDATE);
+    when(refChange.getFromHash()).thenReturn("from");
+    when(refChange.getToHash()).thenReturn("to");
+    when(event.getRefChanges()).thenReturn(Arrays.asList(refChange));
+    when(eventContext.getEventSource()).thenReturn(event);
+    when(eventContext.getRepository()).thenReturn(mock(Repository.class));
+    when(eventContext.getSnapshot()).thenAnswer(new Answer<SettingsSnapshot>() {
+      @Override
+      public SettingsSnapshot answer(InvocationOnMock invocation) {
+        return new SettingsSnapshot(null, settings);
+      }
+    });
+
+    Page<Changeset> page = mock(Page.class);
+    when(page.getValues()).thenReturn(changesets);
+    when(page.getIsLastPage()).thenReturn(true);
+    when(historyService.getChangesetsBetween(
+        any(ChangesetsBetweenRequest.class), any(PageRequest.class)))
+        .thenReturn(page);
+
+    filter = new SkipMarkerEligibilityFilter(historyService, securityService);
+  }
+
+  /**
+   * Validate that the commits aren't read when no marker is configured.
+   */
+  @Test
+  public void shouldDeliverWithoutReadingCommitsWhenNotConfigured() {
+    changesets.add(changeset("Fix docs [skip ci]"));
+    assertTrue(filter.shouldDeliverNotification(eventContext));
+    verify(historyService, never()).getChangesetsBetween(
+        any(ChangesetsBetweenRequest.class), any(PageRequest.class));
+  }
+
+  /**
+   * Validate that a push whose commits are all marked is ignored.
+   */
+  @Test
+  public void shouldNotDeliverWhenEveryCommitIsMarked() {
+    when(settings.getString(Notifier.SKIP_MARKER)).thenReturn("[skip ci]");
+    changesets.add(changeset("Fix typo [SKIP CI]"));
+    changesets.add(changeset("[skip ci] Update docs"));
+    assertFalse(filter.shouldDeliverNotification(eventContext));
+  }
+
+  /**
+   * Validate that the first unmarked commit ends the scan.
+   */
+  @Test
+  public void shouldStopAtFirstUnmarkedCommit() {
+    when(settings.getString(Notifier.SKIP_MARKER)).thenReturn("[skip ci]");
+    Changeset unmarked = changeset("Fix the build");
+    Changeset marked = changeset("Update docs [skip ci]");
+    changesets.add(unmarked);
+    changesets.add(marked);
+    assertTrue(filter.shouldDeliverNotification(eventContext));
+    verify(marked, never()).getMessage();
+  }
+
+  /**
+   * Validate that deleted branches don't need reading.
+   */
+  @Test
+  public void shouldIgnoreDeletedBranches() {
+    when(settings.getString(Notifier.SKIP_MARKER)).thenReturn("[skip ci]");
+    when(refChange.getType()).thenReturn(RefChangeType.DELETE);
+    assertTrue(filter.shouldDeliverNotification(eventContext));
+    verify(historyService, never()).getChangesetsBetween(
+        any(ChangesetsBetweenRequest.class), any(PageRequest.class));
+  }
+
+  private Changeset changeset(String message) {
+    Changeset changeset = mock(Changeset.class);
+    when(changeset.getMessage()).thenReturn(message);
+    return changeset;
+  }
+
+}